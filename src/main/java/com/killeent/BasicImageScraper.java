@@ -3,10 +3,11 @@ package com.killeent;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashSet;
+import java.util.HashMap;
 import java.util.LinkedList;
-import java.util.Set;
+import java.util.Map;
 
 /**
  * Original Author: Trevor Killeen (2014)
@@ -15,96 +16,323 @@ import java.util.Set;
  */
 public class BasicImageScraper implements ImageScraper {
 
-    private final Set<String> visitedPages;   // Pages we have scraped
-    private final Set<String> visitedImages;  // Images we have scraped
+    private final UrlStore visitedPages;      // Pages we have scraped
+    private final UrlStore visitedImages;     // Images we have scraped
+    private CrawlStats stats;                 // Stats of the crawl in progress
+    private ImageStore store;                 // Stores images for the crawl in progress
+    private CrawlManifest manifest;           // Record of what the crawl in progress fetched
+    private volatile CrawlDeadline deadline;  // Time budget of the crawl in progress
+    private volatile boolean cancelRequested; // Cancel the crawl in progress, or the next one
+    private int pagesStarted;                 // Pages we have tried to fetch
+    private final ImageStoreFactory stores;   // Opens the image store of each crawl
+    private TrapDetector detector;            // Spots traps in the crawl in progress, or null
+    private final boolean console;            // Whether to report crawls on standard out
 
     public BasicImageScraper() {
-        visitedPages = new HashSet<String>();
-        visitedImages = new HashSet<String>();
+        this(ImageStoreFactory.DEFAULT, true);
+    }
+
+    /**
+     * @param stores Opens the image store of each crawl.
+     * @param console Whether to report each crawl on standard out: its manifest, unless it
+     *                goes to a file, and its summary.
+     */
+    BasicImageScraper(ImageStoreFactory stores, boolean console) {
+        visitedPages = new UrlStore();
+        visitedImages = new UrlStore();
+        this.stores = stores;
+        this.console = console;
     }
 
     @Override
     public void scrapePage(ImageScraperParams params) {
-        visitedPages.add(params.getURL().toString());
-        scrapePage(params.getURL(), 0, params);
+        try {
+            manifest = params.getManifest() != null || console ?
+                    new CrawlManifest(params.getManifest()) :
+                    new CrawlManifest();
+        } catch (IOException e) {
+            System.err.printf("Failed to open manifest: %s\n", e.getMessage());
+            return;
+        }
+        stats = new CrawlStats();
+        Fetcher fetcher;
+        try {
+            fetcher = Utils.openFetcher(params, stats);
+        } catch (IOException e) {
+            System.err.printf("Failed to open fetch archive: %s\n", e.getMessage());
+            manifest.close();
+            return;
+        }
+        deadline = CrawlDeadline.forParams(params, fetcher);
+        if (cancelRequested) {
+            // cancelled before the deadline existed to take it
+            deadline.cancel();
+        }
+        store = stores.open(params, deadline);
+        detector = params.trapThreshold() > 0 ?
+                new TrapDetector(params.trapThreshold(), stats) :
+                null;
+        pagesStarted = 0;
+        int root = visitedPages.add(params.getURL().toString());
+        if (params.bestFirst()) {
+            scrapeBestFirst(root, params);
+        } else {
+            scrapeDepthFirst(root, params);
+        }
+        if (deadline.isCancelled() && console) {
+            System.out.println("Crawl cancelled before it completed");
+        }
+        try {
+            store.close();
+        } catch (IOException e) {
+            System.err.printf("Failed to finish storing images: %s\n", e.getMessage());
+        }
+        deadline.shutdown();
+        try {
+            fetcher.close();
+        } catch (IOException e) {
+            System.err.printf("Failed to finish fetch archive: %s\n", e.getMessage());
+        }
+        manifest.close();
+        if (console) {
+            System.out.println(stats.summary());
+        }
         visitedPages.clear();
         visitedImages.clear();
+        cancelRequested = false;
+    }
+
+    @Override
+    public void cancel() {
+        // set before reading the deadline, so that either we see the new deadline or the
+        // crawl starting sees the request
+        cancelRequested = true;
+        CrawlDeadline current = deadline;
+        if (current != null) {
+            current.cancel();
+        }
+    }
+
+    /**
+     * Crawls from the page specified by params in document order, depth first. Pages waiting
+     * to be scraped are kept on a stack by their ID in the visited pages, and decoded as they
+     * are scraped.
+     *
+     * @param root The ID of the page in the visited pages.
+     * @param params The scraping params.
+     */
+    private void scrapeDepthFirst(int root, ImageScraperParams params) {
+        int[] ids = new int[16];
+        int[] depths = new int[16];
+        ids[0] = root;
+        int size = 1;
+
+        while (size > 0 && !deadline.isCancelled() && withinBudget(params)) {
+            size--;
+            int depth = depths[size];
+            URL page = depth == 0 ?
+                    params.getURL() :
+                    scopedURL(visitedPages.get(ids[size]), params);
+            Collection<String> links = new LinkedList<String>();
+            if (page == null || !scrapePage(page, depth, params, links, null)
+                    || depth >= params.maxDepth()) {
+                continue;
+            }
+
+            // push the new links, then reverse them so that the first one is on top
+            int first = size;
+            for (String link : links) {
+                int id = visitedPages.add(link);
+                if (id < 0) {
+                    continue;
+                }
+                if (size == ids.length) {
+                    ids = Arrays.copyOf(ids, size * 2);
+                    depths = Arrays.copyOf(depths, size * 2);
+                }
+                ids[size] = id;
+                depths[size++] = depth + 1;
+            }
+            for (int i = first, j = size - 1; i < j; i++, j--) {
+                int id = ids[i];
+                ids[i] = ids[j];
+                ids[j] = id;
+            }
+        }
+    }
+
+    /**
+     * Crawls from the page specified by params, always fetching the page from which we expect
+     * the most new images next.
+     *
+     * @param root The ID of the page in the visited pages.
+     * @param params The scraping params.
+     */
+    private void scrapeBestFirst(int root, ImageScraperParams params) {
+        LinkScorer scorer = new LinkScorer();
+        CrawlFrontier frontier = new CrawlFrontier(scorer);
+        frontier.push(root, params.getURL(), 0, null);
+
+        CrawlFrontier.Entry entry;
+        while (!deadline.isCancelled() && withinBudget(params)
+                && (entry = frontier.pop()) != null) {
+            URL page;
+            try {
+                page = new URL(visitedPages.get(entry.getId()));
+            } catch (MalformedURLException e) {
+                continue;
+            }
+            Collection<String> links = new LinkedList<String>();
+            Map<String, String> anchorText = new HashMap<String, String>();
+            int found = visitedImages.size();
+            boolean scraped = scrapePage(page, entry.getDepth(), params, links, anchorText);
+            scorer.update(entry.getFeatures(), visitedImages.size() - found);
+            if (!scraped || entry.getDepth() >= params.maxDepth()) {
+                continue;
+            }
+
+            for (String link : links) {
+                int id = visitedPages.add(link);
+                if (id < 0) {
+                    continue;
+                }
+                URL linkURL = scopedURL(link, params);
+                if (linkURL != null) {
+                    frontier.push(id, linkURL, entry.getDepth() + 1, anchorText.get(link));
+                }
+            }
+        }
     }
 
     /**
-     * Scrapes the content of the page specified by page.
+     * Scrapes the content of the page specified by page: fetches and parses it, and
+     * downloads all the new images on it.
      *
      * @param page The page to scrape. Should be a new page - i.e. one we haven't visited before.
      * @param depth The current depth of links followed.
      * @param params The scraping params.
+     * @param links The collection where we will store the links on the page.
+     * @param anchorText If not null, where we will store the anchor text of the links.
+     * @return true if the page was scraped, false if it could not be fetched.
      */
-    private void scrapePage(URL page, int depth, ImageScraperParams params) {
-        System.out.printf("Scraping page: %s/%s\n", page.getHost(), page.getPath());
-
-        Collection<String> links = new LinkedList<String>();
+    private boolean scrapePage(URL page, int depth, ImageScraperParams params,
+                               Collection<String> links, Map<String, String> anchorText) {
+        pagesStarted++;
         Collection<String> images = new LinkedList<String>();
+        StringBuilder text = detector == null ? null : new StringBuilder();
+        long start = System.nanoTime();
+        FetchedPage html = null;
         try {
-            // get the HTML for the page
-            String html = Utils.getHTML(page);
-
-            // parse it
-            PageParser.extractLinksAndImages(html, links, images);
+            // fetch the page and parse it as it streams in
+            html = Utils.openPage(page, stats, deadline, params.maxPageSize());
+            try {
+                PageParser.extractLinksAndImages(html.getBody(), html.getCharset(),
+                        page.toString(), links, images, params.getImageResolutionPolicy(),
+                        anchorText, text);
+            } finally {
+                html.close();
+            }
 
         } catch (IOException e) {
-            System.err.printf(
-                    "Failed to scrape page: %s; error: %s\n", page.toString(), e.getMessage());
-            return;
+            manifest.page(page.toString(), failureStatus(e),
+                    html == null ? 0 : html.getWireBytes(), Utils.millisSince(start), depth,
+                    e.getMessage());
+            return false;
+        }
+        manifest.page(page.toString(), CrawlManifest.STATUS_OK, html.getWireBytes(),
+                Utils.millisSince(start), depth, null);
+        if (params.routeImageLinks()) {
+            FetchGuard.routeImageLinks(links, images);
+        }
+
+        // don't expand pages we have essentially seen before
+        if (detector != null && detector.isNearDuplicate(page,
+                TrapDetector.fingerprint(text.toString(), links, images))) {
+            links.clear();
         }
 
         // download the images
         for (String image : images) {
-            if (visitedImages.contains(image)) {
-                continue;
+            if (deadline.isCancelled()) {
+                break;
             }
-            visitedImages.add(image);
-
-            // create a path for the image
-            String path = Utils.generateImagePath(image, params.getDirectory());
-            if (path == null) {
+            if (visitedImages.add(image) < 0) {
                 continue;
             }
 
+            start = System.nanoTime();
             try {
-                System.out.printf("Downloading Image: %s\n", image);
-                Utils.downloadImage(new URL(image), path);
+                StoredImage stored = store.store(new URL(image), page.toString(), depth);
+                if (stored == null) {
+                    continue;
+                }
+                stats.imageDownloaded();
+                manifest.image(image, CrawlManifest.STATUS_OK, stored.getBytes(),
+                        Utils.millisSince(start), stored.getLocation(), depth, null);
             } catch (MalformedURLException e) {
                 // fail silently
             } catch (IOException e) {
-                System.err.printf("Failed to download image: %s\n", image);
+                manifest.image(image, failureStatus(), 0, Utils.millisSince(start),
+                        null, depth, e.getMessage());
             }
         }
+        return true;
+    }
 
-        // recursively scrape other pages
-        if (depth < params.maxDepth()) {
-            for (String link : links) {
-                // check to see if we've been here before
-                if (visitedPages.contains(link)) {
-                    continue;
-                }
-                visitedPages.add(link);
-
-                try {
-                    URL linkURL = new URL(link);
-                    // check if the link is outbound; if it is, only scrape it if the params
-                    // allow us to follow outbound links
-                    boolean outbound = Utils.isOutboundLink(params.getURL(), linkURL);
-                    if (outbound && !params.followOutboundLinks()) {
-                        continue;
-                    }
-
-                    // good to go!
-                    scrapePage(linkURL, depth + 1, params);
-                } catch (MalformedURLException e) {
-                    // fail silently
-                }
+    /**
+     * Decides whether we should follow a link.
+     *
+     * @param link The link.
+     * @param params The scraping params.
+     * @return the URL of the link, or null if we shouldn't go there.
+     */
+    private URL scopedURL(String link, ImageScraperParams params) {
+        try {
+            URL linkURL = new URL(link);
+            // check the link against the scope rules, which also decide whether outbound
+            // links may be followed
+            if (!params.getScope().contains(linkURL)) {
+                return null;
+            }
+            if (detector != null && detector.isTrap(linkURL)) {
+                return null;
             }
+
+            // good to go!
+            return linkURL;
+        } catch (MalformedURLException e) {
+            // fail silently
+            return null;
         }
     }
 
+    /**
+     * @return true if the crawl may fetch another page under the page budget in params.
+     */
+    private boolean withinBudget(ImageScraperParams params) {
+        return params.maxPages() == 0 || pagesStarted < params.maxPages();
+    }
+
+    /**
+     * @param e Why a page fetch failed.
+     * @return the manifest status of the fetch: rejected if the fetch guard aborted it,
+     * otherwise as {@link #failureStatus()}. Rejected fetches are counted in the stats.
+     */
+    private String failureStatus(IOException e) {
+        if (e instanceof PageRejectedException) {
+            stats.pageRejected();
+            return CrawlManifest.STATUS_REJECTED;
+        }
+        return failureStatus();
+    }
 
+    /**
+     * @return the manifest status of a request that failed: cancelled if the crawl was
+     * cancelled, failed otherwise.
+     */
+    private String failureStatus() {
+        return deadline.isCancelled() ?
+                CrawlManifest.STATUS_CANCELLED :
+                CrawlManifest.STATUS_FAILED;
+    }
 }
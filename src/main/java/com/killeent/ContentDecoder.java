@@ -0,0 +1,262 @@
+package com.killeent;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.io.SequenceInputStream;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * Decodes HTTP response bodies sent with a Content-Encoding. Decompression is streaming,
+ * so the decoded body can be handed straight to the parser, and the {@link Inflater}s doing
+ * the work are pooled: they hold native memory and are relatively expensive to set up.
+ *
+ * Only gzip and deflate are supported, as those are the encodings the JDK can decode.
+ */
+public class ContentDecoder {
+
+    /**
+     * Value to send in the Accept-Encoding header of requests.
+     */
+    public static final String ACCEPT_ENCODING = "gzip, deflate";
+
+    private static final int MAX_POOLED_INFLATERS = 64;
+
+    // Separate pools since the nowrap setting of an Inflater cannot be changed after creation
+    private static final InflaterPool RAW_INFLATERS = new InflaterPool(true);
+    private static final InflaterPool ZLIB_INFLATERS = new InflaterPool(false);
+
+    // gzip header flags, see RFC 1952
+    private static final int GZIP_MAGIC = 0x8b1f;
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+
+    /**
+     * Wraps in with a stream that decodes the given content encoding.
+     *
+     * @param in The raw response body.
+     * @param contentEncoding The value of the Content-Encoding header. May be null.
+     * @throws java.io.IOException if the encoding is not supported or the body is malformed.
+     * @return a stream of the decoded body. Closing it closes in.
+     */
+    public static InputStream decode(InputStream in, String contentEncoding) throws IOException {
+        if (contentEncoding == null) {
+            return in;
+        }
+        String encoding = contentEncoding.trim().toLowerCase();
+        if (encoding.isEmpty() || encoding.equals("identity")) {
+            return in;
+        } else if (encoding.equals("gzip") || encoding.equals("x-gzip")) {
+            readGzipHeader(in);
+            return new PooledGzipInputStream(in);
+        } else if (encoding.equals("deflate")) {
+            // Servers disagree on whether "deflate" means zlib wrapped or raw deflate data, so
+            // check for a zlib header before picking the inflater.
+            PushbackInputStream pushback = new PushbackInputStream(in, 2);
+            int cmf = pushback.read();
+            int flg = pushback.read();
+            if (flg >= 0) {
+                pushback.unread(flg);
+            }
+            if (cmf >= 0) {
+                pushback.unread(cmf);
+            }
+            boolean zlib = cmf >= 0 && flg >= 0
+                    && (cmf & 0x0f) == 8 && ((cmf << 8) | flg) % 31 == 0;
+            return new PooledInflaterInputStream(pushback, zlib ? ZLIB_INFLATERS : RAW_INFLATERS);
+        }
+        throw new IOException(String.format("Unsupported content encoding: %s", contentEncoding));
+    }
+
+    /**
+     * Consumes a gzip member header from in, leaving it positioned at the deflate data.
+     */
+    private static void readGzipHeader(InputStream in) throws IOException {
+        if (readUnsignedShort(in) != GZIP_MAGIC) {
+            throw new IOException("Not in gzip format");
+        }
+        if (readUnsignedByte(in) != 8) {
+            throw new IOException("Unsupported gzip compression method");
+        }
+        int flags = readUnsignedByte(in);
+        skipFully(in, 6);  // modification time, extra flags, operating system
+        if ((flags & FEXTRA) != 0) {
+            skipFully(in, readUnsignedShort(in));
+        }
+        if ((flags & FNAME) != 0) {
+            while (readUnsignedByte(in) != 0) {
+                // skip zero terminated file name
+            }
+        }
+        if ((flags & FCOMMENT) != 0) {
+            while (readUnsignedByte(in) != 0) {
+                // skip zero terminated comment
+            }
+        }
+        if ((flags & FHCRC) != 0) {
+            skipFully(in, 2);
+        }
+    }
+
+    private static long readUnsignedInt(InputStream in) throws IOException {
+        long low = readUnsignedShort(in);
+        return ((long) readUnsignedShort(in) << 16) | low;
+    }
+
+    private static int readUnsignedShort(InputStream in) throws IOException {
+        int low = readUnsignedByte(in);
+        return (readUnsignedByte(in) << 8) | low;
+    }
+
+    private static int readUnsignedByte(InputStream in) throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            throw new EOFException("Unexpected end of gzip stream");
+        }
+        return b;
+    }
+
+    private static void skipFully(InputStream in, int n) throws IOException {
+        for (int i = 0; i < n; i++) {
+            readUnsignedByte(in);
+        }
+    }
+
+    /**
+     * A bounded pool of Inflaters sharing the same nowrap setting.
+     */
+    private static class InflaterPool {
+
+        private final boolean nowrap;
+        private final Queue<Inflater> inflaters;
+        private final AtomicInteger size;
+
+        private InflaterPool(boolean nowrap) {
+            this.nowrap = nowrap;
+            this.inflaters = new ConcurrentLinkedQueue<Inflater>();
+            this.size = new AtomicInteger();
+        }
+
+        private Inflater acquire() {
+            Inflater inflater = inflaters.poll();
+            if (inflater == null) {
+                return new Inflater(nowrap);
+            }
+            size.decrementAndGet();
+            return inflater;
+        }
+
+        private void release(Inflater inflater) {
+            if (size.incrementAndGet() > MAX_POOLED_INFLATERS) {
+                size.decrementAndGet();
+                inflater.end();
+                return;
+            }
+            inflater.reset();
+            inflaters.offer(inflater);
+        }
+    }
+
+    /**
+     * InflaterInputStream that borrows its Inflater from a pool and returns it on close.
+     */
+    private static class PooledInflaterInputStream extends InflaterInputStream {
+
+        private final InflaterPool pool;
+        private boolean closed;
+
+        private PooledInflaterInputStream(InputStream in, InflaterPool pool) {
+            this(in, pool, pool.acquire());
+        }
+
+        private PooledInflaterInputStream(InputStream in, InflaterPool pool, Inflater inflater) {
+            super(in, inflater);
+            this.pool = pool;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                super.close();
+            } finally {
+                pool.release(inf);
+            }
+        }
+    }
+
+    /**
+     * Inflates gzip data like {@link java.util.zip.GZIPInputStream}: the trailer of each member
+     * is checked against the CRC-32 and size of the data inflated from it, so corrupt and
+     * truncated bodies fail, and any members that follow are decoded in turn.
+     */
+    private static class PooledGzipInputStream extends PooledInflaterInputStream {
+
+        private final CRC32 crc;
+        private boolean eos;
+
+        private PooledGzipInputStream(InputStream in) {
+            super(in, RAW_INFLATERS);
+            this.crc = new CRC32();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int length) throws IOException {
+            while (!eos) {
+                int n = super.read(b, off, length);
+                if (n >= 0) {
+                    crc.update(b, off, n);
+                    return n;
+                }
+                readTrailer();
+            }
+            return -1;
+        }
+
+        /**
+         * Checks the trailer of the member just inflated, and readies the inflater for the
+         * next member if there is one.
+         */
+        private void readTrailer() throws IOException {
+            // the trailer starts with whatever input the inflater didn't consume
+            int remaining = inf.getRemaining();
+            PushbackInputStream rest = new PushbackInputStream(new SequenceInputStream(
+                    new ByteArrayInputStream(Arrays.copyOfRange(buf, len - remaining, len)), in));
+            if (readUnsignedInt(rest) != crc.getValue()
+                    || readUnsignedInt(rest) != (inf.getBytesWritten() & 0xffffffffL)) {
+                throw new ZipException("Corrupt gzip trailer");
+            }
+
+            int next = rest.read();
+            if (next < 0) {
+                eos = true;
+                return;
+            }
+            rest.unread(next);
+            try {
+                readGzipHeader(rest);
+            } catch (IOException e) {
+                // trailing garbage rather than another member, which GZIPInputStream ignores too
+                eos = true;
+                return;
+            }
+            in = rest;
+            inf.reset();
+            crc.reset();
+        }
+    }
+}
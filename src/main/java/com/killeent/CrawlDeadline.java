@@ -0,0 +1,206 @@
+package com.killeent;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * The time budget of a single crawl. All connections of a crawl are opened through its
+ * deadline, which applies the per-request connect and read timeouts, enforces a total time
+ * limit on each request, and keeps track of the requests in flight so that they can be
+ * aborted when the crawl is cancelled or runs out of time. A request still in flight when the
+ * crawl's time is up is aborted then, like one that outlives its own time limit.
+ *
+ * Cancellation is cooperative: scrapers are expected to check {@link #isCancelled()} before
+ * starting new work. Requests already in flight are disconnected, which makes the threads
+ * blocked on them fail fast with an IOException.
+ */
+public class CrawlDeadline {
+
+    // placeholder for connections without a request timeout, as the map can't hold nulls
+    private static final Future<?> NO_TIMEOUT = new FutureTask<Void>(new Runnable() {
+        @Override
+        public void run() {
+        }
+    }, null);
+
+    private final long deadlineNanos;       // System.nanoTime() at which the crawl ends, or 0
+    private final int connectTimeout;
+    private final int readTimeout;
+    private final long requestTimeout;
+    private final Fetcher fetcher;
+    private final Map<URLConnection, Future<?>> inFlight;
+    private final ScheduledExecutorService timer;
+    private volatile boolean cancelled;
+
+    /**
+     * Starts the clock on a crawl.
+     *
+     * @param crawlTimeout The time budget of the whole crawl, in milliseconds. 0 for none.
+     * @param connectTimeout The connect timeout of each request, in milliseconds. 0 for none.
+     * @param readTimeout The read timeout of each request, in milliseconds. 0 for none.
+     * @param requestTimeout The total time a single request may take, in milliseconds. 0 for
+     *                       none.
+     */
+    public CrawlDeadline(long crawlTimeout, int connectTimeout, int readTimeout,
+                         long requestTimeout) {
+        this(crawlTimeout, connectTimeout, readTimeout, requestTimeout, new LiveFetcher());
+    }
+
+    /**
+     * Starts the clock on a crawl whose connections are opened by the given fetcher.
+     *
+     * @param crawlTimeout The time budget of the whole crawl, in milliseconds. 0 for none.
+     * @param connectTimeout The connect timeout of each request, in milliseconds. 0 for none.
+     * @param readTimeout The read timeout of each request, in milliseconds. 0 for none.
+     * @param requestTimeout The total time a single request may take, in milliseconds. 0 for
+     *                       none.
+     * @param fetcher Opens the connections of the crawl.
+     */
+    public CrawlDeadline(long crawlTimeout, int connectTimeout, int readTimeout,
+                         long requestTimeout, Fetcher fetcher) {
+        this.fetcher = fetcher;
+        this.deadlineNanos = crawlTimeout > 0 ?
+                System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(crawlTimeout) :
+                0;
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        this.requestTimeout = requestTimeout;
+        this.inFlight = new ConcurrentHashMap<URLConnection, Future<?>>();
+        this.timer = requestTimeout > 0 || crawlTimeout > 0 ?
+                Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "reggie-deadline");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                }) :
+                null;
+    }
+
+    /**
+     * Creates the deadline for a crawl with the given params.
+     *
+     * @param params The scraping params.
+     * @param fetcher Opens the connections of the crawl.
+     * @return the deadline, with the clock already running.
+     */
+    public static CrawlDeadline forParams(ImageScraperParams params, Fetcher fetcher) {
+        return new CrawlDeadline(params.crawlTimeout(), params.connectTimeout(),
+                params.readTimeout(), params.requestTimeout(), fetcher);
+    }
+
+    /**
+     * @return true if the crawl has been cancelled or has run out of time.
+     */
+    public boolean isCancelled() {
+        if (!cancelled && deadlineNanos != 0 && System.nanoTime() - deadlineNanos >= 0) {
+            cancel();
+        }
+        return cancelled;
+    }
+
+    /**
+     * @return the number of milliseconds left in the crawl's budget, or Long.MAX_VALUE if the
+     * crawl has no time limit.
+     */
+    public long remainingMillis() {
+        if (deadlineNanos == 0) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime()));
+    }
+
+    /**
+     * Cancels the crawl: no new requests may be opened and all requests in flight are
+     * disconnected. Safe to call from any thread, any number of times.
+     */
+    public void cancel() {
+        cancelled = true;
+        for (URLConnection connection : inFlight.keySet()) {
+            abort(connection);
+        }
+    }
+
+    /**
+     * Releases the resources held by the deadline. Call once the crawl is over.
+     */
+    public void shutdown() {
+        if (timer != null) {
+            timer.shutdownNow();
+        }
+    }
+
+    /**
+     * Opens a connection to url with the crawl's timeouts applied. The connection is tracked
+     * until {@link #release(java.net.URLConnection)} is called, and is aborted if it outlives
+     * the request timeout or the crawl, or if the crawl is cancelled.
+     *
+     * @param url The URL to connect to.
+     * @throws java.io.InterruptedIOException if the crawl has been cancelled.
+     * @throws java.io.IOException if the connection cannot be created.
+     * @return the connection, not yet connected.
+     */
+    public URLConnection open(URL url) throws IOException {
+        checkCancelled();
+        final URLConnection connection = fetcher.open(url);
+        connection.setConnectTimeout(connectTimeout);
+        connection.setReadTimeout(readTimeout);
+
+        long limit = requestTimeout > 0 ? requestTimeout : Long.MAX_VALUE;
+        limit = Math.min(limit, remainingMillis());
+        Future<?> timeout = null;
+        if (limit != Long.MAX_VALUE) {
+            timeout = timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    abort(connection);
+                }
+            }, limit, TimeUnit.MILLISECONDS);
+        }
+        inFlight.put(connection, timeout == null ? NO_TIMEOUT : timeout);
+
+        // we may have been cancelled between the check and registering the connection
+        if (cancelled) {
+            release(connection);
+            throw new InterruptedIOException(String.format("Crawl cancelled: %s", url));
+        }
+        return connection;
+    }
+
+    /**
+     * Stops tracking a connection opened with {@link #open(java.net.URL)}.
+     *
+     * @param connection The connection.
+     */
+    public void release(URLConnection connection) {
+        Future<?> timeout = inFlight.remove(connection);
+        if (timeout != null) {
+            timeout.cancel(false);
+        }
+    }
+
+    /**
+     * @throws java.io.InterruptedIOException if the crawl has been cancelled.
+     */
+    public void checkCancelled() throws InterruptedIOException {
+        if (isCancelled()) {
+            throw new InterruptedIOException("Crawl cancelled");
+        }
+    }
+
+    private static void abort(URLConnection connection) {
+        // disconnecting a connection that hasn't connected yet doesn't stop it from connecting
+        // later, so make sure it won't get far if it does
+        connection.setConnectTimeout(1);
+        connection.setReadTimeout(1);
+        if (connection instanceof HttpURLConnection) {
+            ((HttpURLConnection) connection).disconnect();
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.killeent;
+
+import java.net.URL;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+/**
+ * Queue of pages waiting to be fetched, ordered best-first by the score a
+ * {@link com.killeent.LinkScorer} gives them. Scores are computed when a page is pushed but
+ * the scorer keeps learning, so a page's score is refreshed when it reaches the head of the
+ * queue; if it has dropped below the next page's score it is put back instead of returned.
+ *
+ * Pages are held by their ID in the crawl's {@link com.killeent.UrlStore} rather than as URL
+ * objects.
+ *
+ * Not thread safe.
+ */
+public class CrawlFrontier {
+
+    // Bound on how often pop() refreshes and re-queues stale heads before giving up
+    private static final int MAX_RESCORES_PER_POP = 16;
+
+    private final LinkScorer scorer;
+    private final PriorityQueue<Entry> queue;
+    private long sequence;
+
+    public CrawlFrontier(LinkScorer scorer) {
+        this.scorer = scorer;
+        this.queue = new PriorityQueue<Entry>(64, BEST_FIRST);
+    }
+
+    /**
+     * A page waiting to be fetched.
+     */
+    public static class Entry {
+        private final int id;
+        private final int depth;
+        private final LinkScorer.Features features;
+        private final long sequence;
+        private double score;
+
+        private Entry(int id, int depth, LinkScorer.Features features, long sequence,
+                      double score) {
+            this.id = id;
+            this.depth = depth;
+            this.features = features;
+            this.sequence = sequence;
+            this.score = score;
+        }
+
+        /**
+         * @return the ID of the page in the crawl's {@link com.killeent.UrlStore}.
+         */
+        public int getId() {
+            return id;
+        }
+
+        public int getDepth() {
+            return depth;
+        }
+
+        public LinkScorer.Features getFeatures() {
+            return features;
+        }
+    }
+
+    /**
+     * Orders entries by descending score, then shallowest first, then in discovery order.
+     */
+    private static final Comparator<Entry> BEST_FIRST = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            if (a.score != b.score) {
+                return a.score > b.score ? -1 : 1;
+            }
+            if (a.depth != b.depth) {
+                return a.depth < b.depth ? -1 : 1;
+            }
+            return a.sequence < b.sequence ? -1 : (a.sequence == b.sequence ? 0 : 1);
+        }
+    };
+
+    /**
+     * Adds a page to the frontier.
+     *
+     * @param id The ID of the page in the crawl's {@link com.killeent.UrlStore}.
+     * @param url The page. Only used to score it; the frontier keeps the ID.
+     * @param depth The depth the page will be fetched at.
+     * @param anchorText The anchor text of the link to the page, or null.
+     */
+    public void push(int id, URL url, int depth, String anchorText) {
+        LinkScorer.Features features = LinkScorer.features(url, anchorText, depth);
+        queue.offer(new Entry(id, depth, features, sequence++, scorer.score(features)));
+    }
+
+    /**
+     * Removes the most promising page from the frontier.
+     *
+     * @return the page, or null if the frontier is empty.
+     */
+    public Entry pop() {
+        for (int i = 0; i < MAX_RESCORES_PER_POP; i++) {
+            Entry head = queue.poll();
+            if (head == null) {
+                return null;
+            }
+            head.score = scorer.score(head.features);
+            Entry next = queue.peek();
+            if (next == null || BEST_FIRST.compare(head, next) <= 0) {
+                return head;
+            }
+            queue.offer(head);
+        }
+        return queue.poll();
+    }
+
+    public boolean isEmpty() {
+        return queue.isEmpty();
+    }
+
+    public int size() {
+        return queue.size();
+    }
+}
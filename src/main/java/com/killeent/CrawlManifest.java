@@ -0,0 +1,289 @@
+package com.killeent;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Record of every page and image fetched during a crawl. Scraper threads hand records off
+ * with a single lock-free queue offer; a dedicated writer thread drains the queue in batches
+ * and writes them out with buffered NIO writes, so workers never contend on the console or
+ * on the output file. The writer parks while the queue is empty and is unparked by the next
+ * offer, so an idle manifest costs nothing.
+ *
+ * If the manifest has a file, records are written to it as JSON lines. Otherwise they are
+ * printed to standard out in human readable form, unless the manifest records nothing.
+ */
+public class CrawlManifest {
+
+    public static final String STATUS_OK = "ok";
+    public static final String STATUS_FAILED = "failed";
+    public static final String STATUS_CANCELLED = "cancelled";
+    public static final String STATUS_REJECTED = "rejected";  // not a page, or too large
+
+    private static final int BATCH_SIZE = 512;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Queue<Entry> queue;
+    private final WritableByteChannel out;
+    private final boolean json;
+    private final Thread writer;
+    private volatile boolean waiting;   // whether the writer is about to park on an empty queue
+    private volatile boolean closed;
+
+    /**
+     * Opens a manifest and starts its writer thread.
+     *
+     * @param path The file to write the manifest to, or null to print to standard out.
+     * @throws java.io.IOException if the file cannot be opened.
+     */
+    public CrawlManifest(String path) throws IOException {
+        this.queue = new ConcurrentLinkedQueue<Entry>();
+        this.json = path != null;
+        this.out = json ?
+                new FileOutputStream(path).getChannel() :
+                Channels.newChannel(System.out);
+        this.writer = new Thread(new Writer(), "reggie-manifest");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Opens a manifest that records nothing, for crawls that don't report to standard out.
+     */
+    CrawlManifest() {
+        this.queue = null;
+        this.json = false;
+        this.out = null;
+        this.writer = null;
+    }
+
+    /**
+     * Records a fetched page.
+     *
+     * @param url The URL of the page.
+     * @param status The outcome of the fetch, e.g. {@link #STATUS_OK}.
+     * @param bytes The number of bytes transferred.
+     * @param latencyMillis How long the fetch took.
+     * @param depth The depth of the page in the crawl.
+     * @param error A description of the failure, or null.
+     */
+    public void page(String url, String status, long bytes, long latencyMillis, int depth,
+                     String error) {
+        offer(new Entry("page", url, status, bytes, latencyMillis, null, depth, error));
+    }
+
+    /**
+     * Records a downloaded image.
+     *
+     * @param url The URL of the image.
+     * @param status The outcome of the download, e.g. {@link #STATUS_OK}.
+     * @param bytes The number of bytes transferred.
+     * @param latencyMillis How long the download took.
+     * @param path The local path the image was stored at.
+     * @param depth The depth of the page the image was found on.
+     * @param error A description of the failure, or null.
+     */
+    public void image(String url, String status, long bytes, long latencyMillis, String path,
+                      int depth, String error) {
+        offer(new Entry("image", url, status, bytes, latencyMillis, path, depth, error));
+    }
+
+    /**
+     * Writes out all pending records and stops the writer thread. Records offered after this
+     * call are dropped.
+     */
+    public void close() {
+        if (writer == null) {
+            return;
+        }
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void offer(Entry entry) {
+        if (writer == null) {
+            return;
+        }
+        queue.offer(entry);
+        if (waiting) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    /**
+     * Drains the queue until the manifest is closed.
+     */
+    private class Writer implements Runnable {
+
+        private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private final StringBuilder batch = new StringBuilder();
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    // read closed before draining, so nothing offered before close is missed
+                    boolean last = closed;
+                    int drained = 0;
+                    Entry entry;
+                    while (drained < BATCH_SIZE && (entry = queue.poll()) != null) {
+                        if (json) {
+                            entry.appendJson(batch);
+                        } else {
+                            entry.appendText(batch);
+                        }
+                        drained++;
+                    }
+                    if (drained > 0) {
+                        write();
+                    } else if (last) {
+                        break;
+                    } else {
+                        // an offer after waiting is set either is seen by the check below or
+                        // unparks us, so no record can be left waiting for the next one
+                        waiting = true;
+                        if (queue.isEmpty() && !closed) {
+                            LockSupport.park(this);
+                        }
+                        waiting = false;
+                    }
+                }
+            } catch (IOException e) {
+                System.err.printf("Failed to write crawl manifest: %s\n", e.getMessage());
+            } finally {
+                if (json) {
+                    try {
+                        out.close();
+                    } catch (IOException e) {
+                        // nothing more we can do
+                    }
+                }
+            }
+        }
+
+        private void write() throws IOException {
+            CharBuffer chars = CharBuffer.wrap(batch);
+            encoder.reset();
+            CoderResult result;
+            do {
+                result = encoder.encode(chars, buffer, true);
+                flush();
+            } while (result.isOverflow());
+            batch.setLength(0);
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+
+    /**
+     * A single manifest record.
+     */
+    private static class Entry {
+
+        private final String type;
+        private final String url;
+        private final String status;
+        private final long bytes;
+        private final long latencyMillis;
+        private final String path;
+        private final int depth;
+        private final String error;
+
+        private Entry(String type, String url, String status, long bytes, long latencyMillis,
+                      String path, int depth, String error) {
+            this.type = type;
+            this.url = url;
+            this.status = status;
+            this.bytes = bytes;
+            this.latencyMillis = latencyMillis;
+            this.path = path;
+            this.depth = depth;
+            this.error = error;
+        }
+
+        private void appendJson(StringBuilder sb) {
+            sb.append("{\"type\":\"").append(type).append("\",\"url\":");
+            appendJsonString(sb, url);
+            sb.append(",\"status\":\"").append(status)
+                    .append("\",\"bytes\":").append(bytes)
+                    .append(",\"latency_ms\":").append(latencyMillis)
+                    .append(",\"depth\":").append(depth);
+            if (path != null) {
+                sb.append(",\"path\":");
+                appendJsonString(sb, path);
+            }
+            if (error != null) {
+                sb.append(",\"error\":");
+                appendJsonString(sb, error);
+            }
+            sb.append("}\n");
+        }
+
+        private void appendText(StringBuilder sb) {
+            if (status.equals(STATUS_REJECTED)) {
+                sb.append(String.format("Skipped %s: %s; %s\n", type, url, error));
+            } else if (!status.equals(STATUS_OK)) {
+                sb.append(String.format("Failed to fetch %s: %s; error: %s\n", type, url, error));
+            } else if (path == null) {
+                sb.append(String.format("Scraped page: %s (%d bytes, %d ms, depth %d)\n",
+                        url, bytes, latencyMillis, depth));
+            } else {
+                sb.append(String.format("Downloaded image: %s -> %s (%d bytes, %d ms)\n",
+                        url, path, bytes, latencyMillis));
+            }
+        }
+
+        private static void appendJsonString(StringBuilder sb, String value) {
+            sb.append('"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                switch (c) {
+                    case '"':
+                        sb.append("\\\"");
+                        break;
+                    case '\\':
+                        sb.append("\\\\");
+                        break;
+                    case '\n':
+                        sb.append("\\n");
+                        break;
+                    case '\r':
+                        sb.append("\\r");
+                        break;
+                    case '\t':
+                        sb.append("\\t");
+                        break;
+                    default:
+                        if (c < 0x20) {
+                            sb.append(String.format("\\u%04x", (int) c));
+                        } else {
+                            sb.append(c);
+                        }
+                }
+            }
+            sb.append('"');
+        }
+    }
+}
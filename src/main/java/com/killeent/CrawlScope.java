@@ -0,0 +1,476 @@
+package com.killeent;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Decides which links a crawl may follow. Rules take the form kind:value, where kind is one of:
+ *
+ * - host: a host suffix. "host:example.com" matches example.com and all of its subdomains.
+ * - path: a glob over the path of the URL. "*" matches within a path segment, "**" across
+ *   segments and "?" a single character, e.g. "path:/gallery/**.html".
+ * - regex: a regular expression that must match the whole URL. Backreferences must be to
+ *   named groups, e.g. "(?<n>\\d+)/\\k<n>", as groups are renumbered when rules are joined.
+ * - query: a query parameter, either "query:name" for any value or "query:name=value".
+ *
+ * A link is in scope if it matches no exclude rule, and for each kind of rule that has include
+ * rules, it matches at least one of them. Without host include rules, links to hosts other than
+ * the seed's are out of scope unless outbound links are followed.
+ *
+ * All the rules of a kind are compiled into a single matcher, so that each link is checked in
+ * one pass however many rules there are: hosts into a trie of reversed labels, path globs into
+ * an automaton that is lazily determinized as paths are matched, query parameters into a hash
+ * table, and regexes into one alternation each for include and exclude rules.
+ *
+ * Safe to use from multiple threads.
+ */
+public class CrawlScope {
+
+    public static final String HOST = "host";
+    public static final String PATH = "path";
+    public static final String REGEX = "regex";
+    public static final String QUERY = "query";
+
+    // What a matcher found: a match with an include rule, with an exclude rule, or both
+    private static final int INCLUDE = 1;
+    private static final int EXCLUDE = 2;
+
+    private final URL seed;
+    private final boolean followOutboundLinks;
+    private final HostTrie hosts;
+    private final GlobAutomaton paths;
+    private final QueryTable queries;
+    private final Pattern includeRegex;  // null if there are no such rules
+    private final Pattern excludeRegex;
+
+    /**
+     * Compiles scope rules.
+     *
+     * @param seed The URL the crawl starts from.
+     * @param followOutboundLinks Whether links to other hosts are in scope when there are no
+     *                            host include rules.
+     * @param includes The include rules.
+     * @param excludes The exclude rules.
+     * @throws java.lang.IllegalArgumentException if a rule is malformed.
+     */
+    public CrawlScope(URL seed, boolean followOutboundLinks, List<String> includes,
+                      List<String> excludes) throws IllegalArgumentException {
+        this.seed = seed;
+        this.followOutboundLinks = followOutboundLinks;
+        this.hosts = new HostTrie();
+        List<String> includeGlobs = new ArrayList<String>();
+        List<String> excludeGlobs = new ArrayList<String>();
+        this.queries = new QueryTable();
+        StringBuilder includeRegex = new StringBuilder();
+        StringBuilder excludeRegex = new StringBuilder();
+
+        for (int i = 0; i < includes.size() + excludes.size(); i++) {
+            boolean include = i < includes.size();
+            String rule = include ? includes.get(i) : excludes.get(i - includes.size());
+            checkRule(rule);
+            int flag = include ? INCLUDE : EXCLUDE;
+            String kind = kind(rule);
+            String value = rule.substring(kind.length() + 1);
+            if (kind.equals(HOST)) {
+                hosts.add(value, flag);
+            } else if (kind.equals(PATH)) {
+                (include ? includeGlobs : excludeGlobs).add(value);
+            } else if (kind.equals(QUERY)) {
+                queries.add(value, flag);
+            } else {
+                StringBuilder regex = include ? includeRegex : excludeRegex;
+                regex.append(regex.length() == 0 ? "" : "|")
+                        .append("(?:").append(value).append(')');
+            }
+        }
+        this.paths = new GlobAutomaton(includeGlobs, excludeGlobs);
+        this.includeRegex = includeRegex.length() == 0 ?
+                null :
+                Pattern.compile(includeRegex.toString());
+        this.excludeRegex = excludeRegex.length() == 0 ?
+                null :
+                Pattern.compile(excludeRegex.toString());
+    }
+
+    /**
+     * Checks that a rule is well formed.
+     *
+     * @param rule The rule.
+     * @throws java.lang.IllegalArgumentException if it is not.
+     */
+    public static void checkRule(String rule) throws IllegalArgumentException {
+        String kind = kind(rule);
+        String value = kind == null ? "" : rule.substring(kind.length() + 1);
+        if (kind == null || value.isEmpty()) {
+            throw new IllegalArgumentException(String.format(
+                    "Scope rule must be host:, path:, regex: or query: and a value: %s", rule));
+        }
+        if (kind.equals(REGEX)) {
+            try {
+                Pattern.compile(value);
+            } catch (PatternSyntaxException e) {
+                throw new IllegalArgumentException(String.format(
+                        "Invalid regex in scope rule %s: %s", rule, e.getDescription()), e);
+            }
+            if (hasNumberedBackreference(value)) {
+                throw new IllegalArgumentException(String.format(
+                        "Regex scope rule must refer back to named groups, with \\k<name>: %s",
+                        rule));
+            }
+        }
+        if (kind.equals(PATH) && !value.startsWith("/") && !value.startsWith("*")) {
+            throw new IllegalArgumentException(
+                    String.format("Path glob must start with / or *: %s", rule));
+        }
+    }
+
+    /**
+     * @param link A link found during the crawl.
+     * @return true if the crawl may follow the link.
+     */
+    public boolean contains(URL link) {
+        int host = hosts.match(link.getHost());
+        int path = paths.match(link.getPath());
+        int query = queries.match(link.getQuery());
+        String url = null;
+        if (((host | path | query) & EXCLUDE) != 0) {
+            return false;
+        }
+        if (excludeRegex != null) {
+            url = link.toString();
+            if (excludeRegex.matcher(url).matches()) {
+                return false;
+            }
+        }
+
+        if (hosts.hasIncludes()) {
+            if ((host & INCLUDE) == 0) {
+                return false;
+            }
+        } else if (!followOutboundLinks && Utils.isOutboundLink(seed, link)) {
+            return false;
+        }
+        if (paths.hasIncludes() && (path & INCLUDE) == 0) {
+            return false;
+        }
+        if (queries.hasIncludes() && (query & INCLUDE) == 0) {
+            return false;
+        }
+        return includeRegex == null
+                || includeRegex.matcher(url == null ? link.toString() : url).matches();
+    }
+
+    /**
+     * @return true if a valid regex refers back to a group by number. All the regex rules of a
+     * kind are joined into one pattern, which renumbers their groups.
+     */
+    private static boolean hasNumberedBackreference(String regex) {
+        for (int i = 0; i < regex.length() - 1; i++) {
+            if (regex.charAt(i) != '\\') {
+                continue;
+            }
+            char next = regex.charAt(++i);
+            if (next == 'Q') {
+                // quoted up to \E, or to the end
+                int end = regex.indexOf("\\E", i + 1);
+                i = end < 0 ? regex.length() : end + 1;
+            } else if (next >= '1' && next <= '9') {
+                // can't be in a character class, where Pattern rejects it
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the kind of a rule, or null if it has none.
+     */
+    private static String kind(String rule) {
+        int colon = rule.indexOf(':');
+        if (colon < 0) {
+            return null;
+        }
+        String kind = rule.substring(0, colon);
+        if (kind.equals(HOST) || kind.equals(PATH) || kind.equals(REGEX) || kind.equals(QUERY)) {
+            return kind;
+        }
+        return null;
+    }
+
+    /**
+     * Host suffixes, as a trie keyed on host labels from the top level domain down. A host is
+     * matched by walking its labels backwards, collecting the rules of every node on the way.
+     */
+    private static class HostTrie {
+        private final Map<String, HostTrie> children = new HashMap<String, HostTrie>();
+        private int flags;
+        private boolean hasIncludes;
+
+        private void add(String suffix, int flag) {
+            String[] labels = normalize(suffix).split("\\.");
+            HostTrie node = this;
+            for (int i = labels.length - 1; i >= 0; i--) {
+                HostTrie child = node.children.get(labels[i]);
+                if (child == null) {
+                    child = new HostTrie();
+                    node.children.put(labels[i], child);
+                }
+                node = child;
+            }
+            node.flags |= flag;
+            hasIncludes |= flag == INCLUDE;
+        }
+
+        private int match(String host) {
+            host = normalize(host);
+            int flags = 0;
+            HostTrie node = this;
+            int end = host.length();
+            while (node != null && end > 0) {
+                int start = host.lastIndexOf('.', end - 1) + 1;
+                node = node.children.get(host.substring(start, end));
+                if (node != null) {
+                    flags |= node.flags;
+                }
+                end = start - 1;
+            }
+            return flags;
+        }
+
+        private boolean hasIncludes() {
+            return hasIncludes;
+        }
+
+        private static String normalize(String host) {
+            host = host.toLowerCase(Locale.ROOT);
+            if (host.startsWith("*.")) {
+                host = host.substring(2);
+            } else if (host.startsWith(".")) {
+                host = host.substring(1);
+            }
+            return host.endsWith(".") ? host.substring(0, host.length() - 1) : host;
+        }
+    }
+
+    /**
+     * Query parameter rules, keyed on the parameter name.
+     */
+    private static class QueryTable {
+        private final Map<String, Integer> anyValue = new HashMap<String, Integer>();
+        private final Map<String, Integer> byValue = new HashMap<String, Integer>();
+        private boolean hasIncludes;
+
+        private void add(String rule, int flag) {
+            Map<String, Integer> table = rule.indexOf('=') < 0 ? anyValue : byValue;
+            Integer flags = table.get(rule);
+            table.put(rule, flags == null ? flag : flags | flag);
+            hasIncludes |= flag == INCLUDE;
+        }
+
+        private int match(String query) {
+            if (query == null || (anyValue.isEmpty() && byValue.isEmpty())) {
+                return 0;
+            }
+            int flags = 0;
+            for (String parameter : query.split("&")) {
+                int equals = parameter.indexOf('=');
+                Integer any = anyValue.get(equals < 0 ? parameter : parameter.substring(0, equals));
+                Integer exact = equals < 0 ? null : byValue.get(parameter);
+                flags |= (any == null ? 0 : any) | (exact == null ? 0 : exact);
+            }
+            return flags;
+        }
+
+        private boolean hasIncludes() {
+            return hasIncludes;
+        }
+    }
+
+    /**
+     * All the path globs, compiled into one nondeterministic automaton. Its states are the
+     * positions in each glob; matching a path tracks the set of positions reachable so far.
+     * Sets of positions are cached as deterministic states, with their transitions, as they
+     * are reached, so that in the steady state a path is matched with one lookup per character.
+     */
+    private static class GlobAutomaton {
+
+        private static final char ONE = 0xFFFF;       // "?": one character within a segment
+        private static final char SEGMENT = 0xFFFE;   // "*": any characters within a segment
+        private static final char ANY = 0xFFFD;       // "**": any characters
+
+        // Bound on the number of cached states. Past it, paths are still matched correctly
+        // but new states are not remembered.
+        private static final int MAX_STATES = 1 << 14;
+
+        private final char[][] globs;     // the tokens of each glob
+        private final int[] firstState;   // the state of the first position of each glob
+        private final int[] globOfState;
+        private final int[] flagsOfGlob;
+        private final boolean hasIncludes;
+        private final State start;
+        private final Map<BitSet, State> states;
+        private final AtomicInteger stateCount;
+
+        /**
+         * A set of glob positions, and the transitions out of it discovered so far.
+         */
+        private class State {
+            private final BitSet positions;
+            private final int flags;  // the rules of the globs that are fully matched
+            private final ConcurrentHashMap<Character, State> next;
+
+            private State(BitSet positions) {
+                this.positions = positions;
+                int flags = 0;
+                for (int s = positions.nextSetBit(0); s >= 0; s = positions.nextSetBit(s + 1)) {
+                    int glob = globOfState[s];
+                    if (s - firstState[glob] == globs[glob].length) {
+                        flags |= flagsOfGlob[glob];
+                    }
+                }
+                this.flags = flags;
+                this.next = new ConcurrentHashMap<Character, State>();
+            }
+        }
+
+        private GlobAutomaton(List<String> includes, List<String> excludes) {
+            int count = includes.size() + excludes.size();
+            globs = new char[count][];
+            firstState = new int[count];
+            flagsOfGlob = new int[count];
+            int stateTotal = 0;
+            for (int i = 0; i < count; i++) {
+                boolean include = i < includes.size();
+                globs[i] = tokenize(include ? includes.get(i) : excludes.get(i - includes.size()));
+                flagsOfGlob[i] = include ? INCLUDE : EXCLUDE;
+                firstState[i] = stateTotal;
+                stateTotal += globs[i].length + 1;
+            }
+            globOfState = new int[stateTotal];
+            for (int i = 0; i < count; i++) {
+                for (int p = 0; p <= globs[i].length; p++) {
+                    globOfState[firstState[i] + p] = i;
+                }
+            }
+            hasIncludes = !includes.isEmpty();
+            states = new ConcurrentHashMap<BitSet, State>();
+            stateCount = new AtomicInteger();
+
+            BitSet initial = new BitSet(stateTotal);
+            for (int i = 0; i < count; i++) {
+                addClosure(initial, i, 0);
+            }
+            start = intern(initial);
+        }
+
+        private int match(String path) {
+            if (globs.length == 0) {
+                return 0;
+            }
+            if (path.isEmpty()) {
+                path = "/";
+            }
+            State state = start;
+            for (int i = 0; i < path.length(); i++) {
+                char c = path.charAt(i);
+                State next = state.next.get(c);
+                if (next == null) {
+                    next = step(state, c);
+                    if (stateCount.get() < MAX_STATES) {
+                        state.next.put(c, next);
+                    }
+                }
+                if (next.positions.isEmpty()) {
+                    return 0;
+                }
+                state = next;
+            }
+            return state.flags;
+        }
+
+        private boolean hasIncludes() {
+            return hasIncludes;
+        }
+
+        /**
+         * @return the state reached from state on character c.
+         */
+        private State step(State state, char c) {
+            BitSet positions = new BitSet(globOfState.length);
+            BitSet from = state.positions;
+            for (int s = from.nextSetBit(0); s >= 0; s = from.nextSetBit(s + 1)) {
+                int glob = globOfState[s];
+                int position = s - firstState[glob];
+                if (position == globs[glob].length) {
+                    continue;
+                }
+                char token = globs[glob][position];
+                if (token == ANY || (token == SEGMENT && c != '/')) {
+                    addClosure(positions, glob, position);
+                } else if (token == c || (token == ONE && c != '/')) {
+                    addClosure(positions, glob, position + 1);
+                }
+            }
+            return intern(positions);
+        }
+
+        /**
+         * Adds a position to a set, along with the positions after it that can be reached
+         * without consuming a character: wildcards match the empty string.
+         */
+        private void addClosure(BitSet positions, int glob, int position) {
+            while (true) {
+                positions.set(firstState[glob] + position);
+                if (position == globs[glob].length
+                        || (globs[glob][position] != SEGMENT && globs[glob][position] != ANY)) {
+                    return;
+                }
+                position++;
+            }
+        }
+
+        private State intern(BitSet positions) {
+            State state = states.get(positions);
+            if (state != null) {
+                return state;
+            }
+            state = new State(positions);
+            if (stateCount.get() >= MAX_STATES) {
+                return state;
+            }
+            State existing = states.putIfAbsent(positions, state);
+            if (existing != null) {
+                return existing;
+            }
+            stateCount.incrementAndGet();
+            return state;
+        }
+
+        private static char[] tokenize(String glob) {
+            StringBuilder tokens = new StringBuilder(glob.length());
+            for (int i = 0; i < glob.length(); i++) {
+                char c = glob.charAt(i);
+                if (c == '*' && i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                    tokens.append(ANY);
+                    i++;
+                } else if (c == '*') {
+                    tokens.append(SEGMENT);
+                } else if (c == '?') {
+                    tokens.append(ONE);
+                } else {
+                    tokens.append(c);
+                }
+            }
+            return tokens.toString().toCharArray();
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package com.killeent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters describing a single crawl. Safe to update from multiple threads.
+ */
+public class CrawlStats {
+
+    // number of flagged crawler traps listed by name in the summary
+    private static final int TRAPS_LISTED = 5;
+
+    private final AtomicLong pagesFetched = new AtomicLong();
+    private final AtomicLong imagesDownloaded = new AtomicLong();
+    private final AtomicLong wireBytes = new AtomicLong();      // bytes as received on the wire
+    private final AtomicLong decodedBytes = new AtomicLong();   // bytes after content decoding
+    private final AtomicLong requestsRetried = new AtomicLong();
+    private final AtomicLong requestsShed = new AtomicLong();   // refused by a circuit breaker
+    private final AtomicLong nearDuplicates = new AtomicLong(); // pages whose links we dropped
+    private final Queue<String> trapsFlagged = new ConcurrentLinkedQueue<String>();
+    private final AtomicLong trapLinksSkipped = new AtomicLong();
+    private final AtomicLong pagesRejected = new AtomicLong();  // not HTML, or too large
+    private final long startNanos = System.nanoTime();
+
+    public void pageFetched() {
+        pagesFetched.incrementAndGet();
+    }
+
+    public void imageDownloaded() {
+        imagesDownloaded.incrementAndGet();
+    }
+
+    public void addWireBytes(long bytes) {
+        wireBytes.addAndGet(bytes);
+    }
+
+    public void addDecodedBytes(long bytes) {
+        decodedBytes.addAndGet(bytes);
+    }
+
+    public void requestRetried() {
+        requestsRetried.incrementAndGet();
+    }
+
+    public void requestShed() {
+        requestsShed.incrementAndGet();
+    }
+
+    public void nearDuplicateFound() {
+        nearDuplicates.incrementAndGet();
+    }
+
+    /**
+     * @param pattern The URL pattern that was flagged as a crawler trap.
+     */
+    public void trapFlagged(String pattern) {
+        trapsFlagged.add(pattern);
+    }
+
+    public void trapLinkSkipped() {
+        trapLinksSkipped.incrementAndGet();
+    }
+
+    public void pageRejected() {
+        pagesRejected.incrementAndGet();
+    }
+
+    public long getPagesFetched() {
+        return pagesFetched.get();
+    }
+
+    public long getImagesDownloaded() {
+        return imagesDownloaded.get();
+    }
+
+    public long getWireBytes() {
+        return wireBytes.get();
+    }
+
+    public long getDecodedBytes() {
+        return decodedBytes.get();
+    }
+
+    public long getRequestsRetried() {
+        return requestsRetried.get();
+    }
+
+    public long getRequestsShed() {
+        return requestsShed.get();
+    }
+
+    public long getNearDuplicates() {
+        return nearDuplicates.get();
+    }
+
+    public long getTrapsFlagged() {
+        return trapsFlagged.size();
+    }
+
+    /**
+     * @return the URL patterns flagged as crawler traps, in the order they were flagged.
+     */
+    public List<String> getFlaggedTraps() {
+        return new ArrayList<String>(trapsFlagged);
+    }
+
+    public long getTrapLinksSkipped() {
+        return trapLinksSkipped.get();
+    }
+
+    public long getPagesRejected() {
+        return pagesRejected.get();
+    }
+
+    /**
+     * @return the number of milliseconds since the crawl started.
+     */
+    public long getElapsedMillis() {
+        return Utils.millisSince(startNanos);
+    }
+
+    /**
+     * @return a human readable, single line summary of the crawl.
+     */
+    public String summary() {
+        long pages = getPagesFetched();
+        long images = getImagesDownloaded();
+        long wire = getWireBytes();
+        long decoded = getDecodedBytes();
+        String summary = String.format("Fetched %d pages: %d bytes on the wire, "
+                        + "%d bytes decoded (%.1fx); "
+                        + "downloaded %d images (%.2f images per page fetched) in %.1fs",
+                pages, wire, decoded, wire == 0 ? 1.0 : (double) decoded / wire,
+                images, pages == 0 ? 0.0 : (double) images / pages,
+                getElapsedMillis() / 1000.0);
+        long retried = getRequestsRetried();
+        long shed = getRequestsShed();
+        if (retried > 0 || shed > 0) {
+            summary += String.format("; retried %d requests, refused %d to failing hosts",
+                    retried, shed);
+        }
+        long duplicates = getNearDuplicates();
+        long skipped = getTrapLinksSkipped();
+        if (duplicates > 0 || skipped > 0) {
+            List<String> traps = getFlaggedTraps();
+            summary += String.format("; %d near-duplicate pages not expanded, "
+                            + "skipped %d fetches in %d crawler traps",
+                    duplicates, skipped, traps.size());
+            if (!traps.isEmpty()) {
+                summary += String.format(" (%s%s)",
+                        String.join(", ", traps.subList(0, Math.min(traps.size(), TRAPS_LISTED))),
+                        traps.size() > TRAPS_LISTED ?
+                                String.format(" and %d more", traps.size() - TRAPS_LISTED) :
+                                "");
+            }
+        }
+        long rejected = getPagesRejected();
+        if (rejected > 0) {
+            summary += String.format("; aborted %d non-HTML or oversized responses", rejected);
+        }
+        return summary;
+    }
+}
@@ -0,0 +1,37 @@
+package com.killeent;
+
+import java.io.IOException;
+import java.net.URL;
+
+/**
+ * Stores every image as its own file in a single directory, named after the image. Large
+ * images may be fetched in byte ranges by a {@link com.killeent.RangeDownloader}.
+ */
+public class DirectoryImageStore implements ImageStore {
+
+    private final String directory;
+    private final RangeDownloader downloader;
+
+    /**
+     * @param directory The directory to write images to.
+     * @param downloader Downloads the images.
+     */
+    public DirectoryImageStore(String directory, RangeDownloader downloader) {
+        this.directory = directory;
+        this.downloader = downloader;
+    }
+
+    @Override
+    public StoredImage store(URL image, String page, int depth) throws IOException {
+        String path = Utils.generateImagePath(image.toString(), directory);
+        if (path == null) {
+            return null;
+        }
+        return new StoredImage(path, downloader.download(image, path));
+    }
+
+    @Override
+    public void close() {
+        downloader.shutdown();
+    }
+}
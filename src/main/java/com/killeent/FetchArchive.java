@@ -0,0 +1,192 @@
+package com.killeent;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The on-disk format of the archives written by {@link com.killeent.RecordingFetcher} and
+ * read by {@link com.killeent.ReplayFetcher}.
+ *
+ * An archive is a pair of files. The data file holds one record per response, appended in
+ * the order the responses completed: the request key, the status code and message, the
+ * headers, the body exactly as received on the wire (i.e. still compressed if the server
+ * compressed it), and whether the body was cut short, e.g. because reading it timed out or
+ * the crawl stopped reading it part way. The index file, written when recording ends, maps
+ * every request key to the offset and length of its record, so a replay reads each response
+ * with one positional read.
+ */
+public class FetchArchive {
+
+    private static final int INDEX_MAGIC = 0x52474642;  // "RGFB"
+
+    /**
+     * A recorded response.
+     */
+    public static class Response {
+
+        private final String key;
+        private final int status;
+        private final String message;
+        private final List<String[]> headers;  // name, value
+        private final byte[] body;
+        private final boolean truncated;
+
+        public Response(String key, int status, String message, List<String[]> headers,
+                        byte[] body) {
+            this(key, status, message, headers, body, false);
+        }
+
+        /**
+         * @param truncated Whether body is only the part of the body that was read before
+         *                  reading it failed or was given up on.
+         */
+        public Response(String key, int status, String message, List<String[]> headers,
+                        byte[] body, boolean truncated) {
+            this.key = key;
+            this.status = status;
+            this.message = message;
+            this.headers = headers;
+            this.body = body;
+            this.truncated = truncated;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        public List<String[]> getHeaders() {
+            return headers;
+        }
+
+        public byte[] getBody() {
+            return body;
+        }
+
+        /**
+         * @return true if the body is incomplete, in which case reading past it should fail.
+         */
+        public boolean isTruncated() {
+            return truncated;
+        }
+
+        /**
+         * @return the serialized record of the response.
+         */
+        byte[] toRecord() throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.length + 512);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeUTF(key);
+            out.writeInt(status);
+            out.writeUTF(message == null ? "" : message);
+            out.writeInt(headers.size());
+            for (String[] header : headers) {
+                out.writeUTF(header[0]);
+                out.writeUTF(header[1]);
+            }
+            out.writeInt(body.length);
+            out.write(body);
+            out.writeBoolean(truncated);
+            out.close();
+            return bytes.toByteArray();
+        }
+
+        /**
+         * Deserializes a record written by {@link #toRecord()}.
+         */
+        static Response fromRecord(byte[] record) throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+            String key = in.readUTF();
+            int status = in.readInt();
+            String message = in.readUTF();
+            int count = in.readInt();
+            List<String[]> headers = new ArrayList<String[]>(count);
+            for (int i = 0; i < count; i++) {
+                headers.add(new String[] {in.readUTF(), in.readUTF()});
+            }
+            byte[] body = new byte[in.readInt()];
+            in.readFully(body);
+            return new Response(key, status, message.isEmpty() ? null : message, headers, body,
+                    in.readBoolean());
+        }
+    }
+
+    /**
+     * Identifies a request in an archive. Range requests are keyed by their range too, so a
+     * replayed range download gets back exactly the chunks that were recorded.
+     *
+     * @param method The request method.
+     * @param url The URL requested.
+     * @param range The value of the Range header, or null.
+     * @return the key of the request.
+     */
+    public static String key(String method, String url, String range) {
+        return range == null ?
+                String.format("%s %s", method, url) :
+                String.format("%s %s %s", method, url, range);
+    }
+
+    /**
+     * @param archive The path of an archive's data file.
+     * @return the path of the archive's index.
+     */
+    public static String indexPath(String archive) {
+        return archive + ".idx";
+    }
+
+    /**
+     * Writes the index of an archive.
+     *
+     * @param path The path of the index.
+     * @param offsets The offset and length of the record of each request key.
+     */
+    static void writeIndex(String path, Map<String, long[]> offsets) throws IOException {
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(path)));
+        try {
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(offsets.size());
+            for (Map.Entry<String, long[]> entry : offsets.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue()[0]);
+                out.writeLong(entry.getValue()[1]);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Reads the index of an archive.
+     *
+     * @param path The path of the index.
+     * @return the offset and length of the record of each request key.
+     */
+    static Map<String, long[]> readIndex(String path) throws IOException {
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(path)));
+        try {
+            if (in.readInt() != INDEX_MAGIC) {
+                throw new IOException(String.format("Not a fetch archive index: %s", path));
+            }
+            int count = in.readInt();
+            Map<String, long[]> offsets = new HashMap<String, long[]>(count * 2);
+            for (int i = 0; i < count; i++) {
+                offsets.put(in.readUTF(), new long[] {in.readLong(), in.readLong()});
+            }
+            return offsets;
+        } finally {
+            in.close();
+        }
+    }
+}
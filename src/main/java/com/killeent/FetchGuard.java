@@ -0,0 +1,296 @@
+package com.killeent;
+
+import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLConnection;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Locale;
+
+/**
+ * Keeps the crawl from downloading things that aren't web pages. Links to PDFs, archives,
+ * videos and huge files look like any other link, so before a response is handed to
+ * {@link com.killeent.PageParser} its headers are checked and its first bytes sniffed, and
+ * the transfer is aborted as soon as it is clear that it isn't an HTML page of a sane size.
+ */
+public class FetchGuard {
+
+    // Number of bytes sniffed at the start of a response, as in the WHATWG sniffing algorithm
+    static final int SNIFF_BYTES = 512;
+
+    // Media types that may be HTML pages. Generic types are sniffed to decide.
+    private static final String[] HTML_TYPES = {"text/html", "application/xhtml+xml"};
+    private static final String[] GENERIC_TYPES =
+            {"text/plain", "application/octet-stream", "application/unknown", "unknown/unknown",
+                    "*/*", "binary/octet-stream"};
+
+    // Signatures of common binary formats, and the media type each identifies
+    private static final Object[][] SIGNATURES = {
+            {"%PDF-", "application/pdf"},
+            {"%!PS", "application/postscript"},
+            {"PK\u0003\u0004", "application/zip"},
+            {"\u001f\u008b", "application/gzip"},
+            {"7z\u00bc\u00af'\u001c", "application/x-7z-compressed"},
+            {"Rar!", "application/vnd.rar"},
+            {"\u007fELF", "application/x-elf"},
+            {"MZ", "application/x-msdownload"},
+            {"\u0089PNG", "image/png"},
+            {"\u00ff\u00d8\u00ff", "image/jpeg"},
+            {"GIF8", "image/gif"},
+            {"\u0000\u0000\u0001\u0000", "image/x-icon"},
+            {"OggS", "application/ogg"},
+            {"ID3", "audio/mpeg"},
+            {"fLaC", "audio/flac"},
+            {"\u001aE\u00df\u00a3", "video/webm"},
+    };
+
+    private static final String[] IMAGE_EXTENSIONS =
+            {".jpg", ".jpeg", ".png", ".gif", ".webp", ".avif", ".bmp", ".svg", ".tif", ".tiff"};
+
+    /**
+     * Checks the headers of a response, before any of its body is read.
+     *
+     * @param connection The connection, with its response headers received.
+     * @param maxPageSize The largest page we accept in bytes, or 0 for no limit.
+     * @throws com.killeent.PageRejectedException if the headers show that the response is not
+     * an HTML page, or that it is too large.
+     */
+    static void checkHeaders(URLConnection connection, long maxPageSize)
+            throws PageRejectedException {
+        String type = mediaType(connection.getContentType());
+        if (type != null && !isHtml(type) && !isGeneric(type)) {
+            throw new PageRejectedException(String.format("Not an HTML page: %s", type), type);
+        }
+        long length = connection.getContentLengthLong();
+        if (maxPageSize > 0 && length > maxPageSize) {
+            throw new PageRejectedException(String.format(
+                    "Page larger than %d bytes: %d bytes", maxPageSize, length), type);
+        }
+    }
+
+    /**
+     * Sniffs the first bytes of a response body, and rejects it if they belong to a binary
+     * format, or if the server didn't say it was HTML and it doesn't look like markup.
+     *
+     * @param body The decoded body.
+     * @param contentType The Content-Type header of the response, or null.
+     * @param maxPageSize The largest page we accept in bytes, or 0 for no limit. Enforced
+     *                    on the decoded body as it is read.
+     * @throws java.io.IOException if the body cannot be read.
+     * @throws com.killeent.PageRejectedException if the body is not HTML.
+     * @return a stream over the whole body, including the sniffed bytes.
+     */
+    static InputStream sniff(InputStream body, String contentType, long maxPageSize)
+            throws IOException {
+        BufferedInputStream in = new BufferedInputStream(body, SNIFF_BYTES);
+        in.mark(SNIFF_BYTES);
+        byte[] head = new byte[SNIFF_BYTES];
+        int length = 0;
+        int n;
+        while (length < head.length && (n = in.read(head, length, head.length - length)) > 0) {
+            length += n;
+        }
+        in.reset();
+
+        String sniffed = sniffBinary(head, length);
+        if (sniffed != null) {
+            throw new PageRejectedException(
+                    String.format("Not an HTML page: %s (sniffed)", sniffed), sniffed);
+        }
+        String type = mediaType(contentType);
+        if ((type == null || !isHtml(type)) && length > 0 && !looksLikeMarkup(head, length)) {
+            throw new PageRejectedException(String.format("Not an HTML page: %s without markup",
+                    type == null ? "response" : type), type);
+        }
+        return maxPageSize > 0 ? new LimitedInputStream(in, maxPageSize) : in;
+    }
+
+    /**
+     * Moves the links that point straight at images from links to images, so that they are
+     * downloaded as images instead of being fetched as pages.
+     *
+     * @param links The links to pages found on a page.
+     * @param images The images found on the page.
+     */
+    public static void routeImageLinks(Collection<String> links, Collection<String> images) {
+        Iterator<String> i = links.iterator();
+        while (i.hasNext()) {
+            String link = i.next();
+            if (isImageLink(link)) {
+                i.remove();
+                images.add(link);
+            }
+        }
+    }
+
+    /**
+     * @param link A link to a page.
+     * @return true if the path of the link ends in the extension of an image format.
+     */
+    public static boolean isImageLink(String link) {
+        int end = link.length();
+        int hash = link.indexOf('#');
+        end = hash < 0 ? end : hash;
+        int query = link.indexOf('?');
+        end = query < 0 || query > end ? end : query;
+        String path = link.substring(0, end).toLowerCase(Locale.ROOT);
+        for (String extension : IMAGE_EXTENSIONS) {
+            if (path.endsWith(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the media type of a Content-Type header value, lower case and without
+     * parameters, or null if there is none.
+     */
+    private static String mediaType(String contentType) {
+        if (contentType == null) {
+            return null;
+        }
+        int semicolon = contentType.indexOf(';');
+        String type = (semicolon < 0 ? contentType : contentType.substring(0, semicolon))
+                .trim().toLowerCase(Locale.ROOT);
+        return type.isEmpty() ? null : type;
+    }
+
+    private static boolean isHtml(String type) {
+        for (String html : HTML_TYPES) {
+            if (type.equals(html)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isGeneric(String type) {
+        for (String generic : GENERIC_TYPES) {
+            if (type.equals(generic)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the media type of the binary format the bytes start with, or null if they don't
+     * start with a known signature nor contain bytes that never appear in text.
+     */
+    private static String sniffBinary(byte[] head, int length) {
+        for (Object[] signature : SIGNATURES) {
+            String magic = (String) signature[0];
+            if (startsWith(head, length, 0, magic)) {
+                return (String) signature[1];
+            }
+        }
+        if (startsWith(head, length, 0, "RIFF") && startsWith(head, length, 8, "WEBP")) {
+            return "image/webp";
+        }
+        if (startsWith(head, length, 0, "RIFF")) {
+            return "application/x-riff";
+        }
+        if (startsWith(head, length, 4, "ftyp")) {
+            return "video/mp4";
+        }
+        if (length >= 2 && ((head[0] == (byte) 0xfe && head[1] == (byte) 0xff)
+                || (head[0] == (byte) 0xff && head[1] == (byte) 0xfe))) {
+            return null;  // UTF-16 text is full of zero bytes
+        }
+        for (int i = 0; i < length; i++) {
+            int b = head[i] & 0xff;
+            // control characters that don't occur in text, as in the WHATWG binary check
+            if (b <= 0x08 || b == 0x0b || (b >= 0x0e && b <= 0x1a) || (b >= 0x1c && b <= 0x1f)) {
+                return "application/octet-stream";
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return true if the first character other than a byte order mark or whitespace is "<".
+     */
+    private static boolean looksLikeMarkup(byte[] head, int length) {
+        int i = 0;
+        if (length >= 3 && head[0] == (byte) 0xef && head[1] == (byte) 0xbb
+                && head[2] == (byte) 0xbf) {
+            i = 3;
+        } else if (length >= 2 && (head[0] == (byte) 0xfe || head[0] == (byte) 0xff)) {
+            return true;  // UTF-16; leave it to the parser
+        }
+        while (i < length && (head[i] == ' ' || head[i] == '\t' || head[i] == '\n'
+                || head[i] == '\r' || head[i] == '\f')) {
+            i++;
+        }
+        return i < length && head[i] == '<';
+    }
+
+    private static boolean startsWith(byte[] head, int length, int offset, String magic) {
+        if (length < offset + magic.length()) {
+            return false;
+        }
+        for (int i = 0; i < magic.length(); i++) {
+            if (head[offset + i] != (byte) magic.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Input stream that fails once more than a given number of bytes have been read through
+     * it, so that a page without a Content-Length, or one that decompresses into far more
+     * than it declared, is still cut off.
+     */
+    private static class LimitedInputStream extends FilterInputStream {
+
+        private final long limit;
+        private long count;
+
+        private LimitedInputStream(InputStream in, long limit) {
+            super(in);
+            this.limit = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count(n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count(skipped);
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        private void count(long n) throws PageRejectedException {
+            count += n;
+            if (count > limit) {
+                throw new PageRejectedException(
+                        String.format("Page larger than %d bytes", limit), null);
+            }
+        }
+    }
+}
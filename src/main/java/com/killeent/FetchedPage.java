@@ -0,0 +1,130 @@
+package com.killeent;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URLConnection;
+
+/**
+ * An open connection to a web page, as returned by
+ * {@link com.killeent.Utils#openPage(java.net.URL, CrawlStats, CrawlDeadline, long)}. The body
+ * is already decoded from whatever content encoding the server used. Closing the page records
+ * the number of bytes transferred in the crawl's {@link com.killeent.CrawlStats}, and counts
+ * the page as fetched unless it was rejected while its body was being read; rejected pages
+ * are counted by the scrapers.
+ *
+ * Responses that aren't HTML pages, or are too large, are rejected by a
+ * {@link com.killeent.FetchGuard}: the connection is dropped as soon as that is known.
+ */
+public class FetchedPage implements Closeable {
+
+    private final URLConnection connection;
+    private final CrawlDeadline deadline;
+    private final CountingInputStream wire;
+    private final CountingInputStream body;
+    private final InputStream guarded;  // body, checked by the fetch guard
+    private final String charset;
+    private final CrawlStats stats;
+    private boolean rejected;           // whether the fetch guard cut the body off
+    private boolean closed;
+
+    FetchedPage(URLConnection connection, CrawlDeadline deadline, CrawlStats stats,
+                long maxPageSize) throws IOException {
+        this.connection = connection;
+        this.deadline = deadline;
+        this.wire = new CountingInputStream(connection.getInputStream());
+        try {
+            FetchGuard.checkHeaders(connection, maxPageSize);
+            this.body = new CountingInputStream(
+                    ContentDecoder.decode(wire, connection.getContentEncoding()));
+            this.guarded = new FilterInputStream(
+                    FetchGuard.sniff(body, connection.getContentType(), maxPageSize)) {
+                @Override
+                public int read() throws IOException {
+                    try {
+                        return super.read();
+                    } catch (PageRejectedException e) {
+                        rejected = true;
+                        throw e;
+                    }
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    try {
+                        return super.read(b, off, len);
+                    } catch (PageRejectedException e) {
+                        rejected = true;
+                        throw e;
+                    }
+                }
+
+                @Override
+                public long skip(long n) throws IOException {
+                    try {
+                        return super.skip(n);
+                    } catch (PageRejectedException e) {
+                        rejected = true;
+                        throw e;
+                    }
+                }
+            };
+        } catch (PageRejectedException e) {
+            // drop the connection rather than let the rest of the response be drained
+            if (connection instanceof HttpURLConnection) {
+                ((HttpURLConnection) connection).disconnect();
+            }
+            wire.close();
+            stats.addWireBytes(wire.getCount());
+            throw e;
+        } catch (IOException e) {
+            wire.close();
+            throw e;
+        }
+        this.charset = Utils.parseCharset(connection.getContentType());
+        this.stats = stats;
+    }
+
+    /**
+     * @return the decoded body of the page. Reading it fails with a
+     * {@link com.killeent.PageRejectedException} once the page is larger than allowed.
+     */
+    public InputStream getBody() {
+        return guarded;
+    }
+
+    /**
+     * @return the number of bytes received on the wire so far.
+     */
+    public long getWireBytes() {
+        return wire.getCount();
+    }
+
+    /**
+     * @return the charset declared in the Content-Type header, or null if the server didn't
+     * declare one.
+     */
+    public String getCharset() {
+        return charset;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            guarded.close();
+        } finally {
+            deadline.release(connection);
+            if (!rejected) {
+                stats.pageFetched();
+            }
+            stats.addWireBytes(wire.getCount());
+            stats.addDecodedBytes(body.getCount());
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.killeent;
+
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLConnection;
+
+/**
+ * Opens the connections of a crawl. Every request a crawl makes, for pages and images alike,
+ * goes through its fetcher, so swapping the fetcher changes where responses come from without
+ * touching the scrapers: see {@link com.killeent.RecordingFetcher} and
+ * {@link com.killeent.ReplayFetcher}.
+ */
+public interface Fetcher {
+
+    /**
+     * Opens a connection to url.
+     *
+     * @param url The URL to connect to.
+     * @throws java.io.IOException if the connection cannot be created.
+     * @return the connection, not yet connected.
+     */
+    URLConnection open(URL url) throws IOException;
+
+    /**
+     * Releases the resources of the fetcher. Call once the crawl is over.
+     *
+     * @throws java.io.IOException if the fetcher cannot finish writing out what it holds.
+     */
+    void close() throws IOException;
+}
@@ -0,0 +1,165 @@
+package com.killeent;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-host circuit breaker. After a number of consecutive failed requests to a host, its
+ * circuit opens and further requests to it are refused on the spot for a cool-down period,
+ * instead of each tying up a worker until it times out. Once the cool-down is over a single
+ * trial request is let through: if it succeeds the circuit closes again, otherwise it reopens
+ * for twice as long, up to a limit. A trial that is abandoned before it has an outcome must be
+ * released, so that another request can take its place.
+ *
+ * A host that asks us to back off (429 or 503 with Retry-After) has its circuit held open for
+ * at least as long as it asked, whatever its failure count.
+ */
+public class HostCircuitBreaker {
+
+    private static final long MAX_COOLDOWN_FACTOR = 16;
+
+    private final int threshold;
+    private final long cooldownNanos;
+    private final ConcurrentMap<String, Circuit> circuits;
+
+    /**
+     * @param threshold The number of consecutive failures after which a host's circuit opens.
+     *                  If 0, circuits never open, even for hosts that ask us to back off.
+     * @param cooldown How long a circuit stays open the first time it opens, in milliseconds.
+     */
+    public HostCircuitBreaker(int threshold, long cooldown) {
+        this.threshold = threshold;
+        this.cooldownNanos = TimeUnit.MILLISECONDS.toNanos(cooldown);
+        this.circuits = new ConcurrentHashMap<String, Circuit>();
+    }
+
+    /**
+     * Asks for permission to send a request to host.
+     *
+     * @param host The host.
+     * @return true if the request is the trial request of the host's circuit, which must be
+     * followed by a call to success, failure or release.
+     * @throws java.io.IOException if the host's circuit is open.
+     */
+    public boolean acquire(String host) throws IOException {
+        Circuit circuit = circuits.get(host);
+        if (circuit == null) {
+            return false;
+        }
+        int permit = circuit.tryAcquire();
+        if (permit == Circuit.REFUSED) {
+            throw new IOException(String.format("Circuit open for host %s", host));
+        }
+        return permit == Circuit.TRIAL;
+    }
+
+    /**
+     * Records a request to host that succeeded.
+     *
+     * @param host The host.
+     */
+    public void success(String host) {
+        Circuit circuit = circuits.get(host);
+        if (circuit != null) {
+            circuit.success();
+        }
+    }
+
+    /**
+     * Gives up the trial request of host's circuit without an outcome, e.g. because it was
+     * aborted, so that the next request is let through as the trial instead.
+     *
+     * @param host The host.
+     */
+    public void release(String host) {
+        Circuit circuit = circuits.get(host);
+        if (circuit != null) {
+            circuit.release();
+        }
+    }
+
+    /**
+     * Records a request to host that failed.
+     *
+     * @param host The host.
+     * @param retryAfter How long the host asked us to wait before trying again, in
+     *                   milliseconds, or 0 if it didn't say.
+     */
+    public void failure(String host, long retryAfter) {
+        if (threshold == 0) {
+            return;
+        }
+        Circuit circuit = circuits.get(host);
+        if (circuit == null) {
+            circuit = new Circuit();
+            Circuit existing = circuits.putIfAbsent(host, circuit);
+            if (existing != null) {
+                circuit = existing;
+            }
+        }
+        circuit.failure(TimeUnit.MILLISECONDS.toNanos(retryAfter));
+    }
+
+    /**
+     * The state of the circuit of one host.
+     */
+    private class Circuit {
+
+        private int failures;          // consecutive failures
+        private long openUntil;        // System.nanoTime() until which the circuit is open
+        private long cooldown = cooldownNanos;
+        private boolean open;
+        private boolean trialInFlight;
+
+        private static final int REFUSED = 0;
+        private static final int ADMITTED = 1;
+        private static final int TRIAL = 2;
+
+        private synchronized int tryAcquire() {
+            if (!open) {
+                return ADMITTED;
+            }
+            if (System.nanoTime() - openUntil < 0 || trialInFlight) {
+                return REFUSED;
+            }
+            trialInFlight = true;  // half open: let one request through
+            return TRIAL;
+        }
+
+        private synchronized void success() {
+            failures = 0;
+            open = false;
+            trialInFlight = false;
+            cooldown = cooldownNanos;
+        }
+
+        private synchronized void release() {
+            trialInFlight = false;
+        }
+
+        private synchronized void failure(long retryAfterNanos) {
+            failures++;
+            long now = System.nanoTime();
+            if (trialInFlight) {
+                // the trial failed: back off for longer this time
+                trialInFlight = false;
+                cooldown = Math.min(cooldown * 2, cooldownNanos * MAX_COOLDOWN_FACTOR);
+                openFor(now, cooldown);
+            } else if (threshold > 0 && failures >= threshold) {
+                openFor(now, cooldown);
+            }
+            if (retryAfterNanos > 0) {
+                openFor(now, retryAfterNanos);
+            }
+        }
+
+        private void openFor(long now, long nanos) {
+            if (!open || openUntil - (now + nanos) < 0) {
+                openUntil = now + nanos;
+            }
+            open = true;
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package com.killeent;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.concurrent.Flow;
+
+/**
+ * Publishes the images of a crawl to a {@link java.util.concurrent.Flow.Subscriber} instead of
+ * writing them to disk, so that they can be fed straight into a pipeline.
+ *
+ * Each subscriber gets a crawl of its own, run on a new thread as described by the params;
+ * the params' directory and image store settings are ignored. The crawl is driven by the
+ * subscriber's demand: an image is only downloaded once the subscriber has requested it, and
+ * the crawl stalls while there is no outstanding demand, so at most as many images as were
+ * requested are held in memory. Cancelling the subscription cancels the crawl.
+ *
+ * The subscriber is completed once the crawl is over, including when it runs out of time.
+ * Images that fail to download are recorded in the manifest, if any, and skipped. Nothing is
+ * printed to standard out: without a manifest file the crawl is not recorded at all.
+ */
+public class ImagePublisher implements Flow.Publisher<ScrapedImage> {
+
+    // worker threads of a parallel crawl. Workers block while waiting for demand, so unlike
+    // the default parallel scraper's the pool is bounded.
+    private static final int PARALLEL_THREADS = 16;
+
+    // how often a download waiting for demand checks whether the crawl is over
+    private static final long DEMAND_POLL = 100;  // 100ms
+
+    private final ImageScraperParams params;
+
+    /**
+     * @param params Parameters that specify the crawl.
+     */
+    public ImagePublisher(ImageScraperParams params) {
+        this.params = params;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super ScrapedImage> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("Subscriber must not be null");
+        }
+        CrawlSubscription subscription = new CrawlSubscription(subscriber);
+        subscriber.onSubscribe(subscription);
+        Thread crawl = new Thread(subscription, "reggie-publisher");
+        crawl.start();
+    }
+
+    /**
+     * The subscription of a single subscriber, and the crawl that serves it.
+     */
+    private class CrawlSubscription implements Flow.Subscription, Runnable {
+
+        private final Flow.Subscriber<? super ScrapedImage> subscriber;
+        private final ImageScraper scraper;
+        private final Object demandLock;   // guards demand, cancelled and failure
+        private final Object signalLock;   // serializes the signals to the subscriber
+        private long demand;
+        private boolean cancelled;
+        private Throwable failure;         // error to signal instead of completing
+        private boolean terminated;        // whether onComplete or onError has been signalled
+
+        private CrawlSubscription(Flow.Subscriber<? super ScrapedImage> subscriber) {
+            this.subscriber = subscriber;
+            this.demandLock = new Object();
+            this.signalLock = new Object();
+            ImageStoreFactory stores = new ImageStoreFactory() {
+                @Override
+                public ImageStore open(ImageScraperParams params, CrawlDeadline deadline) {
+                    return new PublishingStore(CrawlSubscription.this, deadline);
+                }
+            };
+            this.scraper = params.scrapeInParallel() ?
+                    new ParallelImageScraper(stores, PARALLEL_THREADS, false) :
+                    new BasicImageScraper(stores, false);
+        }
+
+        @Override
+        public void request(long n) {
+            synchronized (demandLock) {
+                if (cancelled) {
+                    return;
+                }
+                if (n <= 0) {
+                    failure = new IllegalArgumentException(
+                            String.format("Requested a non-positive number of images: %d", n));
+                    cancelled = true;
+                } else {
+                    demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+                }
+                demandLock.notifyAll();
+            }
+            if (n <= 0) {
+                scraper.cancel();
+            }
+        }
+
+        @Override
+        public void cancel() {
+            synchronized (demandLock) {
+                if (cancelled) {
+                    return;
+                }
+                cancelled = true;
+                demandLock.notifyAll();
+            }
+            scraper.cancel();
+        }
+
+        @Override
+        public void run() {
+            boolean start;
+            synchronized (demandLock) {
+                // the subscriber may have cancelled, or failed, from onSubscribe
+                start = !cancelled;
+            }
+            if (start) {
+                try {
+                    scraper.scrapePage(params);
+                } catch (RuntimeException e) {
+                    synchronized (demandLock) {
+                        if (failure == null) {
+                            failure = e;
+                        }
+                    }
+                }
+            }
+            Throwable error;
+            synchronized (demandLock) {
+                if (cancelled && failure == null) {
+                    // the subscriber cancelled; it must not be signalled again
+                    return;
+                }
+                error = failure;
+                cancelled = true;
+            }
+            synchronized (signalLock) {
+                if (terminated) {
+                    return;
+                }
+                terminated = true;
+                if (error != null) {
+                    subscriber.onError(error);
+                } else {
+                    subscriber.onComplete();
+                }
+            }
+        }
+
+        /**
+         * Blocks until the subscriber has requested another image, and takes that request.
+         *
+         * @param deadline The deadline of the crawl.
+         * @return true if an image may be published, false if the subscription was cancelled.
+         * @throws java.io.InterruptedIOException if the crawl was cancelled while waiting.
+         */
+        private boolean awaitDemand(CrawlDeadline deadline) throws IOException {
+            synchronized (demandLock) {
+                while (demand == 0 && !cancelled) {
+                    deadline.checkCancelled();
+                    try {
+                        demandLock.wait(Math.max(1,
+                                Math.min(deadline.remainingMillis(), DEMAND_POLL)));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        deadline.checkCancelled();
+                        return false;
+                    }
+                }
+                if (cancelled) {
+                    return false;
+                }
+                if (demand != Long.MAX_VALUE) {
+                    demand--;
+                }
+                return true;
+            }
+        }
+
+        /**
+         * Hands back a request taken by {@link #awaitDemand(CrawlDeadline)} whose image could
+         * not be downloaded.
+         */
+        private void returnDemand() {
+            synchronized (demandLock) {
+                if (demand != Long.MAX_VALUE) {
+                    demand++;
+                    demandLock.notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Signals an image to the subscriber. A subscriber that throws is treated as having
+         * cancelled its subscription.
+         */
+        private void publish(ScrapedImage image) {
+            synchronized (signalLock) {
+                if (terminated) {
+                    return;
+                }
+                try {
+                    subscriber.onNext(image);
+                } catch (RuntimeException e) {
+                    terminated = true;
+                    cancel();
+                }
+            }
+        }
+    }
+
+    /**
+     * Image store of a published crawl: downloads each image into memory once the subscriber
+     * has asked for one, then hands it to the subscriber.
+     */
+    private static class PublishingStore implements ImageStore {
+
+        private final CrawlSubscription subscription;
+        private final CrawlDeadline deadline;
+
+        private PublishingStore(CrawlSubscription subscription, CrawlDeadline deadline) {
+            this.subscription = subscription;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public StoredImage store(URL image, String page, int depth) throws IOException {
+            if (!subscription.awaitDemand(deadline)) {
+                return null;
+            }
+            ScrapedImage scraped;
+            try {
+                scraped = Utils.readImage(image, page, depth, deadline);
+            } catch (IOException e) {
+                subscription.returnDemand();
+                throw e;
+            }
+            subscription.publish(scraped);
+            return new StoredImage("subscriber", scraped.getLength());
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
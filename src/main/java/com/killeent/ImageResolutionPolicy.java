@@ -0,0 +1,90 @@
+package com.killeent;
+
+/**
+ * Policy for picking a single variant of a responsive image. A page may advertise
+ * the same image at several resolutions (via srcset, picture sources, or lazy-load
+ * attributes); the policy decides which one of those we actually download.
+ */
+public class ImageResolutionPolicy {
+
+    public enum Mode {
+        LARGEST,            // the widest variant available
+        SMALLEST_ABOVE,     // the narrowest variant at least as wide as the target width
+        CLOSEST_TO          // the variant whose width is nearest to the target width
+    }
+
+    private final Mode mode;
+    private final int width;
+
+    private ImageResolutionPolicy(Mode mode, int width) {
+        if (width < 0) {
+            throw new IllegalArgumentException(
+                    String.format("Image width must be non-negative: %d", width));
+        }
+        this.mode = mode;
+        this.width = width;
+    }
+
+    /**
+     * @return a policy that always picks the widest variant.
+     */
+    public static ImageResolutionPolicy largest() {
+        return new ImageResolutionPolicy(Mode.LARGEST, 0);
+    }
+
+    /**
+     * @param width The minimum acceptable width, in pixels.
+     * @return a policy that picks the narrowest variant at least width pixels wide. If no
+     * variant is wide enough we fall back to the widest one.
+     */
+    public static ImageResolutionPolicy smallestAbove(int width) {
+        return new ImageResolutionPolicy(Mode.SMALLEST_ABOVE, width);
+    }
+
+    /**
+     * @param width The desired width, in pixels.
+     * @return a policy that picks the variant whose width is closest to width.
+     */
+    public static ImageResolutionPolicy closestTo(int width) {
+        return new ImageResolutionPolicy(Mode.CLOSEST_TO, width);
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Decides whether a candidate of width candidate is preferable to the current best
+     * choice of width best.
+     *
+     * @param candidate The width of the candidate variant.
+     * @param best The width of the best variant seen so far.
+     * @return True if the candidate should replace the current best choice.
+     */
+    boolean prefers(double candidate, double best) {
+        switch (mode) {
+            case SMALLEST_ABOVE:
+                boolean candidateFits = candidate >= width;
+                boolean bestFits = best >= width;
+                if (candidateFits != bestFits) {
+                    return candidateFits;
+                }
+                // both fit: take the smaller one; neither fits: take the larger one
+                return candidateFits ? candidate < best : candidate > best;
+            case CLOSEST_TO:
+                return Math.abs(candidate - width) < Math.abs(best - width);
+            case LARGEST:
+            default:
+                return candidate > best;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return mode == Mode.LARGEST ? mode.toString() : String.format("%s(%d)", mode, width);
+    }
+}
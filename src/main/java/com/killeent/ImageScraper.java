@@ -18,4 +18,12 @@ public interface ImageScraper {
      */
     void scrapePage(ImageScraperParams params);
 
+    /**
+     * Cancels the crawl in progress. Requests in flight are aborted and no new pages or images
+     * are fetched; {@link #scrapePage(ImageScraperParams)} returns once its workers have wound
+     * down. If no crawl is in progress, the next one is cancelled as soon as it starts. May be
+     * called from any thread.
+     */
+    void cancel();
+
 }
@@ -1,6 +1,8 @@
 package com.killeent;
 
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Original Author: Trevor Killeen (2014)
@@ -14,6 +16,27 @@ public class ImageScraperParams {
     // to specify defaults for every single optional parameter.
     public static final int DEFAULT_MAX_DEPTH = 3;
     public static final boolean DEFAULT_FOLLOW_OUTBOUND_LINKS = false;
+    public static final ImageResolutionPolicy DEFAULT_IMAGE_RESOLUTION_POLICY =
+            ImageResolutionPolicy.largest();
+    public static final long DEFAULT_RANGE_THRESHOLD = 0;   // range downloads disabled
+    public static final int DEFAULT_RANGE_CONNECTIONS = 4;
+    public static final long DEFAULT_CRAWL_TIMEOUT = 0;             // no time limit
+    public static final int DEFAULT_CONNECT_TIMEOUT = 10 * 1000;    // 10s
+    public static final int DEFAULT_READ_TIMEOUT = 30 * 1000;       // 30s
+    public static final long DEFAULT_REQUEST_TIMEOUT = 0;           // no time limit
+    public static final int DEFAULT_MAX_PAGES = 0;                  // no page budget
+    public static final long DEFAULT_PACK_SIZE = 0;                 // one file per image
+    public static final int DEFAULT_PACK_WRITERS = 4;
+    public static final long DEFAULT_REPLAY_LATENCY = 0;            // no simulated latency
+    public static final long DEFAULT_REPLAY_BANDWIDTH = 0;          // unlimited
+    public static final int DEFAULT_MAX_RETRIES = 2;
+    public static final long DEFAULT_RETRY_DELAY = 500;             // 0.5s, doubling
+    public static final long DEFAULT_MAX_RETRY_DELAY = 30 * 1000;   // 30s
+    public static final int DEFAULT_BREAKER_THRESHOLD = 5;          // consecutive failures
+    public static final long DEFAULT_BREAKER_COOLDOWN = 30 * 1000;  // 30s
+    public static final int DEFAULT_TRAP_THRESHOLD = 0;             // trap detection disabled
+    public static final long DEFAULT_MAX_PAGE_SIZE = 16 * 1024 * 1024;  // 16MB
+    public static final boolean DEFAULT_ROUTE_IMAGE_LINKS = false;
 
     // The parameters themselves
     private final URL url;
@@ -21,6 +44,31 @@ public class ImageScraperParams {
     private final int maxDepth;
     private final boolean followOutboundLinks;
     private final boolean scrapeInParallel;
+    private final ImageResolutionPolicy imageResolutionPolicy;
+    private final long rangeThreshold;
+    private final int rangeConnections;
+    private final String manifest;
+    private final long crawlTimeout;
+    private final int connectTimeout;
+    private final int readTimeout;
+    private final long requestTimeout;
+    private final boolean bestFirst;
+    private final int maxPages;
+    private final long packSize;
+    private final int packWriters;
+    private final String recordArchive;
+    private final String replayArchive;
+    private final long replayLatency;
+    private final long replayBandwidth;
+    private final int maxRetries;
+    private final long retryDelay;
+    private final long maxRetryDelay;
+    private final int breakerThreshold;
+    private final long breakerCooldown;
+    private final int trapThreshold;
+    private final CrawlScope scope;
+    private final long maxPageSize;
+    private final boolean routeImageLinks;
 
     public URL getURL() {
         return url;
@@ -42,12 +90,140 @@ public class ImageScraperParams {
         return scrapeInParallel;
     }
 
+    public ImageResolutionPolicy getImageResolutionPolicy() {
+        return imageResolutionPolicy;
+    }
+
+    public long rangeThreshold() {
+        return rangeThreshold;
+    }
+
+    public int rangeConnections() {
+        return rangeConnections;
+    }
+
+    public String getManifest() {
+        return manifest;
+    }
+
+    public long crawlTimeout() {
+        return crawlTimeout;
+    }
+
+    public int connectTimeout() {
+        return connectTimeout;
+    }
+
+    public int readTimeout() {
+        return readTimeout;
+    }
+
+    public long requestTimeout() {
+        return requestTimeout;
+    }
+
+    public boolean bestFirst() {
+        return bestFirst;
+    }
+
+    public int maxPages() {
+        return maxPages;
+    }
+
+    public long packSize() {
+        return packSize;
+    }
+
+    public int packWriters() {
+        return packWriters;
+    }
+
+    public String getRecordArchive() {
+        return recordArchive;
+    }
+
+    public String getReplayArchive() {
+        return replayArchive;
+    }
+
+    public long replayLatency() {
+        return replayLatency;
+    }
+
+    public long replayBandwidth() {
+        return replayBandwidth;
+    }
+
+    public int maxRetries() {
+        return maxRetries;
+    }
+
+    public long retryDelay() {
+        return retryDelay;
+    }
+
+    public long maxRetryDelay() {
+        return maxRetryDelay;
+    }
+
+    public int breakerThreshold() {
+        return breakerThreshold;
+    }
+
+    public long breakerCooldown() {
+        return breakerCooldown;
+    }
+
+    public int trapThreshold() {
+        return trapThreshold;
+    }
+
+    public long maxPageSize() {
+        return maxPageSize;
+    }
+
+    public boolean routeImageLinks() {
+        return routeImageLinks;
+    }
+
+    /**
+     * @return the links the crawl may follow, as compiled from the scope rules.
+     */
+    public CrawlScope getScope() {
+        return scope;
+    }
+
     private ImageScraperParams(Builder builder) {
         this.url = builder.url;
         this.directory = builder.directory;
         this.maxDepth = builder.maxDepth;
         this.followOutboundLinks = builder.followOutboundLinks;
         this.scrapeInParallel = builder.scrapeInParallel;
+        this.imageResolutionPolicy = builder.imageResolutionPolicy;
+        this.rangeThreshold = builder.rangeThreshold;
+        this.rangeConnections = builder.rangeConnections;
+        this.manifest = builder.manifest;
+        this.crawlTimeout = builder.crawlTimeout;
+        this.connectTimeout = builder.connectTimeout;
+        this.readTimeout = builder.readTimeout;
+        this.requestTimeout = builder.requestTimeout;
+        this.bestFirst = builder.bestFirst;
+        this.maxPages = builder.maxPages;
+        this.packSize = builder.packSize;
+        this.packWriters = builder.packWriters;
+        this.recordArchive = builder.recordArchive;
+        this.replayArchive = builder.replayArchive;
+        this.replayLatency = builder.replayLatency;
+        this.replayBandwidth = builder.replayBandwidth;
+        this.maxRetries = builder.maxRetries;
+        this.retryDelay = builder.retryDelay;
+        this.maxRetryDelay = builder.maxRetryDelay;
+        this.breakerThreshold = builder.breakerThreshold;
+        this.breakerCooldown = builder.breakerCooldown;
+        this.trapThreshold = builder.trapThreshold;
+        this.scope = new CrawlScope(url, followOutboundLinks, builder.includes, builder.excludes);
+        this.maxPageSize = builder.maxPageSize;
+        this.routeImageLinks = builder.routeImageLinks;
     }
 
     public static class Builder {
@@ -59,6 +235,32 @@ public class ImageScraperParams {
         private int maxDepth = DEFAULT_MAX_DEPTH;
         private boolean followOutboundLinks = DEFAULT_FOLLOW_OUTBOUND_LINKS;
         private boolean scrapeInParallel = false;
+        private ImageResolutionPolicy imageResolutionPolicy = DEFAULT_IMAGE_RESOLUTION_POLICY;
+        private long rangeThreshold = DEFAULT_RANGE_THRESHOLD;
+        private int rangeConnections = DEFAULT_RANGE_CONNECTIONS;
+        private String manifest = null;
+        private long crawlTimeout = DEFAULT_CRAWL_TIMEOUT;
+        private int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+        private int readTimeout = DEFAULT_READ_TIMEOUT;
+        private long requestTimeout = DEFAULT_REQUEST_TIMEOUT;
+        private boolean bestFirst = false;
+        private int maxPages = DEFAULT_MAX_PAGES;
+        private long packSize = DEFAULT_PACK_SIZE;
+        private int packWriters = DEFAULT_PACK_WRITERS;
+        private String recordArchive = null;
+        private String replayArchive = null;
+        private long replayLatency = DEFAULT_REPLAY_LATENCY;
+        private long replayBandwidth = DEFAULT_REPLAY_BANDWIDTH;
+        private int maxRetries = DEFAULT_MAX_RETRIES;
+        private long retryDelay = DEFAULT_RETRY_DELAY;
+        private long maxRetryDelay = DEFAULT_MAX_RETRY_DELAY;
+        private int breakerThreshold = DEFAULT_BREAKER_THRESHOLD;
+        private long breakerCooldown = DEFAULT_BREAKER_COOLDOWN;
+        private int trapThreshold = DEFAULT_TRAP_THRESHOLD;
+        private final List<String> includes = new ArrayList<String>();
+        private final List<String> excludes = new ArrayList<String>();
+        private long maxPageSize = DEFAULT_MAX_PAGE_SIZE;
+        private boolean routeImageLinks = DEFAULT_ROUTE_IMAGE_LINKS;
 
         /**
          * Constructs a {@link com.killeent.ImageScraperParams} builder with the required
@@ -112,7 +314,390 @@ public class ImageScraperParams {
             return this;
         }
 
+        /**
+         * Sets the policy used to pick a single variant of a responsive image. Pages often
+         * offer the same image at several resolutions; we only ever download one of them.
+         *
+         * @param imageResolutionPolicy The policy to use.
+         * @return the Builder object
+         */
+        public Builder imageResolutionPolicy(ImageResolutionPolicy imageResolutionPolicy) {
+            this.imageResolutionPolicy = imageResolutionPolicy;
+            return this;
+        }
+
+        /**
+         * Enables range downloads. Images of at least rangeThreshold bytes, on servers that
+         * accept byte ranges, are split into chunks that are fetched concurrently and written
+         * in place. Interrupted range downloads are resumed rather than restarted. If 0,
+         * every image is downloaded with a single request.
+         *
+         * @param rangeThreshold The minimum image size, in bytes, to download in ranges.
+         * @return the Builder object
+         */
+        public Builder rangeThreshold(long rangeThreshold) {
+            if (rangeThreshold < 0) {
+                throw new IllegalArgumentException(
+                        String.format("Range threshold must be non-negative: %d", rangeThreshold));
+            }
+            this.rangeThreshold = rangeThreshold;
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of concurrent range requests used to download a single
+         * image. Only relevant if range downloads are enabled.
+         *
+         * @param rangeConnections The number of connections per image.
+         * @return the Builder object
+         */
+        public Builder rangeConnections(int rangeConnections) {
+            if (rangeConnections < 1) {
+                throw new IllegalArgumentException(
+                        String.format("Range connections must be positive: %d", rangeConnections));
+            }
+            this.rangeConnections = rangeConnections;
+            return this;
+        }
+
+        /**
+         * Sets the file to write the crawl manifest to. The manifest has one JSON record per
+         * line for every page and image fetched, with its status, size, latency, depth and
+         * local path. If null, a human readable record is printed to standard out instead.
+         *
+         * @param manifest The path of the manifest file.
+         * @return the Builder object
+         */
+        public Builder manifest(String manifest) {
+            this.manifest = manifest;
+            return this;
+        }
+
+        /**
+         * Sets the time budget of the whole crawl. Once it runs out, requests in flight are
+         * aborted, queued pages and images are dropped, and the crawl returns.
+         *
+         * @param crawlTimeout The time budget in milliseconds, or 0 for no limit.
+         * @return the Builder object
+         */
+        public Builder crawlTimeout(long crawlTimeout) {
+            this.crawlTimeout = checkTimeout(crawlTimeout);
+            return this;
+        }
+
+        /**
+         * Sets how long we wait for a connection to a server to be established.
+         *
+         * @param connectTimeout The timeout in milliseconds, or 0 for no limit.
+         * @return the Builder object
+         */
+        public Builder connectTimeout(int connectTimeout) {
+            this.connectTimeout = (int) checkTimeout(connectTimeout);
+            return this;
+        }
+
+        /**
+         * Sets how long we wait for data from a server before giving up on a request.
+         *
+         * @param readTimeout The timeout in milliseconds, or 0 for no limit.
+         * @return the Builder object
+         */
+        public Builder readTimeout(int readTimeout) {
+            this.readTimeout = (int) checkTimeout(readTimeout);
+            return this;
+        }
+
+        /**
+         * Sets the total time a single request may take, from connecting to reading the last
+         * byte. Protects against servers that trickle data just fast enough to beat the read
+         * timeout.
+         *
+         * @param requestTimeout The timeout in milliseconds, or 0 for no limit.
+         * @return the Builder object
+         */
+        public Builder requestTimeout(long requestTimeout) {
+            this.requestTimeout = checkTimeout(requestTimeout);
+            return this;
+        }
+
+        /**
+         * If true, pages are fetched best-first rather than in document order: links are
+         * scored by how many new images pages like them have yielded so far in the crawl
+         * (judged by URL pattern, anchor text and depth), and the highest scoring page is
+         * fetched next. Most useful together with {@link #maxPages(int)} or a crawl timeout.
+         *
+         * @param bestFirst Whether to crawl best-first.
+         * @return the Builder object
+         */
+        public Builder bestFirst(boolean bestFirst) {
+            this.bestFirst = bestFirst;
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of pages the crawl may fetch.
+         *
+         * @param maxPages The page budget, or 0 for no limit.
+         * @return the Builder object
+         */
+        public Builder maxPages(int maxPages) {
+            if (maxPages < 0) {
+                throw new IllegalArgumentException(
+                        String.format("Page budget must be non-negative: %d", maxPages));
+            }
+            this.maxPages = maxPages;
+            return this;
+        }
+
+        /**
+         * Enables pack storage. Rather than one file per image, images are appended to tar
+         * archives in the output directory, each finished once it reaches packSize bytes and
+         * indexed for random access. Range downloads are not used for packed images. If 0,
+         * every image is written to its own file.
+         *
+         * @param packSize The size of each pack, in bytes.
+         * @return the Builder object
+         */
+        public Builder packSize(long packSize) {
+            if (packSize < 0) {
+                throw new IllegalArgumentException(
+                        String.format("Pack size must be non-negative: %d", packSize));
+            }
+            this.packSize = packSize;
+            return this;
+        }
+
+        /**
+         * Sets the number of packs written concurrently, each by its own thread. Only
+         * relevant if pack storage is enabled.
+         *
+         * @param packWriters The number of pack writers.
+         * @return the Builder object
+         */
+        public Builder packWriters(int packWriters) {
+            if (packWriters < 1) {
+                throw new IllegalArgumentException(
+                        String.format("Pack writers must be positive: %d", packWriters));
+            }
+            this.packWriters = packWriters;
+            return this;
+        }
+
+        /**
+         * Records every response the crawl receives, with its status, headers and body, into
+         * an archive that {@link #replayArchive(String)} can serve the crawl from later.
+         *
+         * @param recordArchive The path of the archive, or null to not record.
+         * @return the Builder object
+         */
+        public Builder recordArchive(String recordArchive) {
+            this.recordArchive = recordArchive;
+            return this;
+        }
+
+        /**
+         * Serves the crawl from an archive written by {@link #recordArchive(String)} instead
+         * of the live web. Makes crawls repeatable, e.g. to compare the performance of
+         * scrapers on the same workload.
+         *
+         * @param replayArchive The path of the archive, or null to fetch live.
+         * @return the Builder object
+         */
+        public Builder replayArchive(String replayArchive) {
+            this.replayArchive = replayArchive;
+            return this;
+        }
+
+        /**
+         * Sets the simulated time to first byte of every replayed response.
+         *
+         * @param replayLatency The latency in milliseconds.
+         * @return the Builder object
+         */
+        public Builder replayLatency(long replayLatency) {
+            if (replayLatency < 0) {
+                throw new IllegalArgumentException(
+                        String.format("Replay latency must be non-negative: %d", replayLatency));
+            }
+            this.replayLatency = replayLatency;
+            return this;
+        }
+
+        /**
+         * Sets the simulated bandwidth of every replayed connection.
+         *
+         * @param replayBandwidth The bandwidth in bytes per second, or 0 for unlimited.
+         * @return the Builder object
+         */
+        public Builder replayBandwidth(long replayBandwidth) {
+            if (replayBandwidth < 0) {
+                throw new IllegalArgumentException(String.format(
+                        "Replay bandwidth must be non-negative: %d", replayBandwidth));
+            }
+            this.replayBandwidth = replayBandwidth;
+            return this;
+        }
+
+        /**
+         * Sets how many times a request is retried after a transient failure (a timeout, a
+         * refused or reset connection) or a 429/503 response. Retries back off exponentially
+         * with jitter, or wait as long as the server asks in its Retry-After header.
+         *
+         * @param maxRetries The maximum number of retries per request, or 0 for none.
+         * @return the Builder object
+         */
+        public Builder maxRetries(int maxRetries) {
+            if (maxRetries < 0) {
+                throw new IllegalArgumentException(
+                        String.format("Retries must be non-negative: %d", maxRetries));
+            }
+            this.maxRetries = maxRetries;
+            return this;
+        }
+
+        /**
+         * Sets the backoff before the first retry of a request. Each further retry waits
+         * about twice as long as the one before.
+         *
+         * @param retryDelay The backoff in milliseconds.
+         * @return the Builder object
+         */
+        public Builder retryDelay(long retryDelay) {
+            this.retryDelay = checkTimeout(retryDelay);
+            return this;
+        }
+
+        /**
+         * Sets the longest we wait before retrying a request. Requests whose server asks us
+         * to wait longer than this are not retried.
+         *
+         * @param maxRetryDelay The longest backoff in milliseconds.
+         * @return the Builder object
+         */
+        public Builder maxRetryDelay(long maxRetryDelay) {
+            this.maxRetryDelay = checkTimeout(maxRetryDelay);
+            return this;
+        }
+
+        /**
+         * Sets the number of consecutive failed requests to a host after which we stop
+         * sending it requests for a while, so that workers aren't tied up by a host that is
+         * down or overloaded.
+         *
+         * @param breakerThreshold The number of failures, or 0 to never stop.
+         * @return the Builder object
+         */
+        public Builder breakerThreshold(int breakerThreshold) {
+            if (breakerThreshold < 0) {
+                throw new IllegalArgumentException(String.format(
+                        "Breaker threshold must be non-negative: %d", breakerThreshold));
+            }
+            this.breakerThreshold = breakerThreshold;
+            return this;
+        }
+
+        /**
+         * Sets how long we stop sending requests to a failing host before trying it again.
+         * The pause doubles every time the host is still failing when we try again.
+         *
+         * @param breakerCooldown The pause in milliseconds.
+         * @return the Builder object
+         */
+        public Builder breakerCooldown(long breakerCooldown) {
+            this.breakerCooldown = checkTimeout(breakerCooldown);
+            return this;
+        }
+
+        /**
+         * Sets how many near-duplicate pages a URL pattern may produce before we treat it as
+         * a crawler trap (a calendar, faceted search or session ID in the URL) and stop
+         * fetching links that match it. Links on near-duplicate pages are never followed.
+         * Off by default: pages that differ mostly in their images, like the pages of a
+         * gallery, can be near-duplicates by their text and links alone.
+         *
+         * @param trapThreshold The number of near-duplicate pages, or 0 to disable near-
+         *                      duplicate and trap detection.
+         * @return the Builder object
+         */
+        public Builder trapThreshold(int trapThreshold) {
+            if (trapThreshold < 0) {
+                throw new IllegalArgumentException(String.format(
+                        "Trap threshold must be non-negative: %d", trapThreshold));
+            }
+            this.trapThreshold = trapThreshold;
+            return this;
+        }
+
+        /**
+         * Adds a rule that links must match to be followed. For each kind of rule (host, path,
+         * regex or query) that has include rules, a link must match one of them. Host include
+         * rules replace the outbound link check: they decide which hosts are in scope,
+         * including subdomains. See {@link com.killeent.CrawlScope} for the syntax of rules.
+         *
+         * @param rule The rule, e.g. "host:example.com" or "path:/gallery/**".
+         * @return the Builder object
+         */
+        public Builder include(String rule) {
+            CrawlScope.checkRule(rule);
+            includes.add(rule);
+            return this;
+        }
+
+        /**
+         * Adds a rule that links must not match to be followed, e.g. "query:sessionid" or
+         * "regex:.*\.(pdf|zip)". See {@link com.killeent.CrawlScope} for the syntax of rules.
+         *
+         * @param rule The rule.
+         * @return the Builder object
+         */
+        public Builder exclude(String rule) {
+            CrawlScope.checkRule(rule);
+            excludes.add(rule);
+            return this;
+        }
+
+        /**
+         * Sets the size of the largest page we fetch. Larger pages are aborted as soon as
+         * their Content-Length shows it, or once that many bytes have been decoded.
+         *
+         * @param maxPageSize The size in bytes, or 0 for no limit.
+         * @return the Builder object
+         */
+        public Builder maxPageSize(long maxPageSize) {
+            if (maxPageSize < 0) {
+                throw new IllegalArgumentException(
+                        String.format("Max page size must be non-negative: %d", maxPageSize));
+            }
+            this.maxPageSize = maxPageSize;
+            return this;
+        }
+
+        /**
+         * Sets whether links that point straight at images (e.g. a thumbnail linking to the
+         * full size image) are downloaded as images rather than fetched as pages and then
+         * rejected.
+         *
+         * @param routeImageLinks Whether to download image links as images.
+         * @return the Builder object
+         */
+        public Builder routeImageLinks(boolean routeImageLinks) {
+            this.routeImageLinks = routeImageLinks;
+            return this;
+        }
+
+        private static long checkTimeout(long timeout) {
+            if (timeout < 0) {
+                throw new IllegalArgumentException(
+                        String.format("Timeout must be non-negative: %d", timeout));
+            }
+            return timeout;
+        }
+
         public ImageScraperParams build() {
+            if (recordArchive != null && replayArchive != null) {
+                throw new IllegalArgumentException(
+                        "Cannot record and replay a crawl at the same time");
+            }
             return new ImageScraperParams(this);
         }
     }
@@ -0,0 +1,30 @@
+package com.killeent;
+
+import java.io.IOException;
+import java.net.URL;
+
+/**
+ * Where the images downloaded by a crawl end up. One store is opened per crawl and shared by
+ * all of its threads.
+ */
+public interface ImageStore {
+
+    /**
+     * Downloads an image into the store.
+     *
+     * @param image The URL of the image to download.
+     * @param page The URL of the page the image was found on.
+     * @param depth The depth of that page.
+     * @throws java.io.IOException if the image cannot be downloaded or stored.
+     * @return the stored image, or null if the store has no room for it (e.g. no free name).
+     */
+    StoredImage store(URL image, String page, int depth) throws IOException;
+
+    /**
+     * Flushes anything pending and releases the resources of the store. Call once the crawl
+     * is over.
+     *
+     * @throws java.io.IOException if pending images cannot be written out.
+     */
+    void close() throws IOException;
+}
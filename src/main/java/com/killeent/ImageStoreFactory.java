@@ -0,0 +1,25 @@
+package com.killeent;
+
+/**
+ * Opens the {@link com.killeent.ImageStore} of a crawl. Lets a scraper hand its images to
+ * something other than the store its params describe.
+ */
+interface ImageStoreFactory {
+
+    /**
+     * Opens the store described by the params: a pack store or a directory store.
+     */
+    ImageStoreFactory DEFAULT = new ImageStoreFactory() {
+        @Override
+        public ImageStore open(ImageScraperParams params, CrawlDeadline deadline) {
+            return Utils.openImageStore(params, deadline);
+        }
+    };
+
+    /**
+     * @param params The scraping params.
+     * @param deadline The deadline of the crawl.
+     * @return the image store of the crawl.
+     */
+    ImageStore open(ImageScraperParams params, CrawlDeadline deadline);
+}
@@ -0,0 +1,201 @@
+package com.killeent;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Estimates how many new images a link will yield if we fetch it, from what the crawl has
+ * seen so far. Every fetched page feeds back the number of new images found on it, keyed by
+ * a few cheap features of the link that led to it:
+ *
+ * - its URL path pattern (e.g. example.com/photos/{n}/*) and the pattern's first segment,
+ * - the words of its anchor text and the alt text of any images inside the anchor,
+ * - its depth in the crawl.
+ *
+ * The score of a link is a weighted mix of the average yield of each of its features, with
+ * every average smoothed towards the crawl-wide mean so that rarely seen features don't
+ * dominate. Safe to use from multiple threads.
+ */
+public class LinkScorer {
+
+    private static final double PRIOR_WEIGHT = 2.0;  // pseudo-fetches at the crawl-wide mean
+    private static final double PATTERN_WEIGHT = 3.0;
+    private static final double PARENT_PATTERN_WEIGHT = 1.0;
+    private static final double ANCHOR_WEIGHT = 1.0;
+    private static final double DEPTH_WEIGHT = 1.0;
+    private static final int MAX_ANCHOR_TOKENS = 8;
+    private static final int MIN_TOKEN_LENGTH = 3;
+
+    private final Map<String, Yield> patterns = new HashMap<String, Yield>();
+    private final Map<String, Yield> parentPatterns = new HashMap<String, Yield>();
+    private final Map<String, Yield> anchorTokens = new HashMap<String, Yield>();
+    private final Map<Integer, Yield> depths = new HashMap<Integer, Yield>();
+    private final Yield total = new Yield();
+
+    /**
+     * The features of a link that the scorer learns from.
+     */
+    public static class Features {
+        private final String pattern;
+        private final String parentPattern;
+        private final List<String> anchorTokens;
+        private final int depth;
+
+        private Features(String pattern, String parentPattern, List<String> anchorTokens,
+                         int depth) {
+            this.pattern = pattern;
+            this.parentPattern = parentPattern;
+            this.anchorTokens = anchorTokens;
+            this.depth = depth;
+        }
+    }
+
+    /**
+     * Running count of pages fetched and images found for one feature value.
+     */
+    private static class Yield {
+        private long fetches;
+        private long images;
+
+        private double estimate(double mean) {
+            return (images + PRIOR_WEIGHT * mean) / (fetches + PRIOR_WEIGHT);
+        }
+    }
+
+    /**
+     * Extracts the features of a link.
+     *
+     * @param link The link.
+     * @param anchorText The text of the anchor, or null if unknown.
+     * @param depth The depth the linked page would be fetched at.
+     * @return the features of the link.
+     */
+    public static Features features(URL link, String anchorText, int depth) {
+        String[] segments = link.getPath().split("/");
+        StringBuilder pattern = new StringBuilder(link.getHost());
+        String parentPattern = link.getHost();
+        int count = countSegments(segments);
+        int seen = 0;
+        for (String segment : segments) {
+            if (segment.isEmpty()) {
+                continue;
+            }
+            boolean last = ++seen == count;
+            pattern.append('/');
+            if (last && seen > 1) {
+                // the leaf of a deep path is almost always unique (a slug or an id)
+                int dot = segment.lastIndexOf('.');
+                pattern.append(dot >= 0 ? "*" + segment.substring(dot) : "*");
+            } else {
+                pattern.append(generalize(segment));
+            }
+            if (seen == 1) {
+                parentPattern = pattern.toString();
+            }
+        }
+        if (link.getQuery() != null) {
+            pattern.append("?");
+        }
+        return new Features(pattern.toString(), parentPattern, tokenize(anchorText), depth);
+    }
+
+    /**
+     * Estimates the number of new images we will find by fetching a link.
+     *
+     * @param features The features of the link.
+     * @return the estimated yield. Only meaningful relative to other scores.
+     */
+    public synchronized double score(Features features) {
+        double mean = total.fetches == 0 ? 0 : (double) total.images / total.fetches;
+        double weighted = PATTERN_WEIGHT * estimate(patterns, features.pattern, mean)
+                + PARENT_PATTERN_WEIGHT * estimate(parentPatterns, features.parentPattern, mean)
+                + DEPTH_WEIGHT * estimate(depths, features.depth, mean);
+        double weights = PATTERN_WEIGHT + PARENT_PATTERN_WEIGHT + DEPTH_WEIGHT;
+        if (!features.anchorTokens.isEmpty()) {
+            double anchor = 0;
+            for (String token : features.anchorTokens) {
+                anchor += estimate(anchorTokens, token, mean);
+            }
+            weighted += ANCHOR_WEIGHT * anchor / features.anchorTokens.size();
+            weights += ANCHOR_WEIGHT;
+        }
+        return weighted / weights;
+    }
+
+    /**
+     * @return the number of outcomes fed back so far. Scores computed at the same version are
+     * still current.
+     */
+    public synchronized long getVersion() {
+        return total.fetches;
+    }
+
+    /**
+     * Feeds back the outcome of fetching a page.
+     *
+     * @param features The features of the link that led to the page.
+     * @param images The number of new images found on the page.
+     */
+    public synchronized void update(Features features, int images) {
+        record(patterns, features.pattern, images);
+        record(parentPatterns, features.parentPattern, images);
+        record(depths, features.depth, images);
+        for (String token : features.anchorTokens) {
+            record(anchorTokens, token, images);
+        }
+        total.fetches++;
+        total.images += images;
+    }
+
+    private static <K> double estimate(Map<K, Yield> yields, K key, double mean) {
+        Yield yield = yields.get(key);
+        return yield == null ? mean : yield.estimate(mean);
+    }
+
+    private static <K> void record(Map<K, Yield> yields, K key, int images) {
+        Yield yield = yields.get(key);
+        if (yield == null) {
+            yield = new Yield();
+            yields.put(key, yield);
+        }
+        yield.fetches++;
+        yield.images += images;
+    }
+
+    private static int countSegments(String[] segments) {
+        int count = 0;
+        for (String segment : segments) {
+            if (!segment.isEmpty()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Replaces the parts of a path segment that vary between otherwise similar pages, i.e.
+     * numbers, with a placeholder.
+     */
+    private static String generalize(String segment) {
+        return segment.replaceAll("[0-9]+", "{n}");
+    }
+
+    private static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<String>();
+        if (text == null) {
+            return tokens;
+        }
+        for (String token : text.toLowerCase().split("[^\\p{L}]+")) {
+            if (token.length() >= MIN_TOKEN_LENGTH && !tokens.contains(token)) {
+                tokens.add(token);
+                if (tokens.size() == MAX_ANCHOR_TOKENS) {
+                    break;
+                }
+            }
+        }
+        return tokens;
+    }
+}
@@ -0,0 +1,20 @@
+package com.killeent;
+
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLConnection;
+
+/**
+ * Fetches from the live web.
+ */
+public class LiveFetcher implements Fetcher {
+
+    @Override
+    public URLConnection open(URL url) throws IOException {
+        return url.openConnection();
+    }
+
+    @Override
+    public void close() {
+    }
+}
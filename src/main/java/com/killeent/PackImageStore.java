@@ -0,0 +1,275 @@
+package com.killeent;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stores images in large tar archives ("packs") instead of one file per image, so that the
+ * number of files in the output directory, and the filesystem metadata that comes with them,
+ * grows with the size of the crawl rather than with its number of images.
+ *
+ * The store has a fixed number of writers. Each writer owns one pack at a time and a single
+ * thread that appends to it, so no two threads ever write to the same file: crawl threads
+ * download an image into memory and hand it to the next writer in turn. Once a pack reaches
+ * the configured size, its writer finishes it and rolls over to a new one.
+ *
+ * Packs are plain ustar archives named images-WWW-SSSSS.tar, after the writer and the pack's
+ * sequence number, and can be unpacked with tar. Every finished pack gets a
+ * {@link com.killeent.PackIndex} next to it for random access to its images.
+ */
+public class PackImageStore implements ImageStore {
+
+    private static final int BLOCK_SIZE = 512;
+    private static final int NAME_LENGTH = 100;
+    private static final int INITIAL_INDEX_ENTRIES = 256;
+
+    private final String directory;
+    private final long packSize;
+    private final CrawlDeadline deadline;
+    private final PackWriter[] writers;
+    private final AtomicInteger next;
+
+    /**
+     * @param directory The directory to write packs to.
+     * @param packSize The size, in bytes, after which a pack is finished and a new one begun.
+     * @param writers The number of packs written concurrently.
+     * @param deadline The deadline of the crawl, which applies its timeouts to every download.
+     */
+    public PackImageStore(String directory, long packSize, int writers, CrawlDeadline deadline) {
+        this.directory = directory;
+        this.packSize = packSize;
+        this.deadline = deadline;
+        this.writers = new PackWriter[writers];
+        for (int i = 0; i < writers; i++) {
+            this.writers[i] = new PackWriter(i);
+        }
+        this.next = new AtomicInteger();
+    }
+
+    @Override
+    public StoredImage store(URL image, String page, int depth) throws IOException {
+        byte[] data = Utils.readImage(image, page, depth, deadline).getData();
+        int writer = (next.getAndIncrement() & Integer.MAX_VALUE) % writers.length;
+        return writers[writer].append(image.toString(), data);
+    }
+
+    /**
+     * Finishes the packs in progress and writes their indexes.
+     */
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (PackWriter writer : writers) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Appends images to one pack at a time. All file access happens on the writer's own
+     * thread, so none of its state needs to be synchronized.
+     */
+    private class PackWriter {
+
+        private final int id;
+        private final ExecutorService executor;
+        private int sequence;
+        private String path;
+        private FileChannel pack;
+        private long position;
+        private int entries;
+        private long[] index;  // (url hash, offset, length) per entry, see PackIndex
+
+        private PackWriter(final int id) {
+            this.id = id;
+            this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, String.format("reggie-pack-%d", id));
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        /**
+         * Appends an image to the current pack, blocking until it has been written.
+         */
+        private StoredImage append(final String url, final byte[] data) throws IOException {
+            return await(executor.submit(new Callable<StoredImage>() {
+                @Override
+                public StoredImage call() throws IOException {
+                    return write(url, data);
+                }
+            }), url);
+        }
+
+        private void close() throws IOException {
+            Future<Void> finished = executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    if (pack != null) {
+                        finish();
+                    }
+                    return null;
+                }
+            });
+            executor.shutdown();
+            await(finished, String.format("pack writer %d", id));
+        }
+
+        private StoredImage write(String url, byte[] data) throws IOException {
+            if (pack == null) {
+                open();
+            }
+            long offset = position + BLOCK_SIZE;
+            ByteBuffer[] buffers = {
+                    header(String.format("%d-%s", entries, entryName(url)), data.length),
+                    ByteBuffer.wrap(data),
+                    ByteBuffer.allocate(padding(data.length))
+            };
+            writeFully(buffers);
+
+            if (index.length < (entries + 1) * 3) {
+                index = Arrays.copyOf(index, index.length * 2);
+            }
+            index[entries * 3] = PackIndex.hash(url);
+            index[entries * 3 + 1] = offset;
+            index[entries * 3 + 2] = data.length;
+            entries++;
+
+            StoredImage stored = new StoredImage(String.format("%s:%d", path, offset), data.length);
+            if (position >= packSize) {
+                finish();
+            }
+            return stored;
+        }
+
+        private void open() throws IOException {
+            File file;
+            do {
+                file = new File(directory, String.format("images-%03d-%05d.tar", id, sequence++));
+            } while (file.exists());
+            path = file.getAbsolutePath();
+            pack = FileChannel.open(Paths.get(path),
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            position = 0;
+            entries = 0;
+            index = new long[INITIAL_INDEX_ENTRIES * 3];
+        }
+
+        /**
+         * Ends the archive, closes the pack and writes its index.
+         */
+        private void finish() throws IOException {
+            try {
+                // a tar archive ends with two empty blocks
+                writeFully(new ByteBuffer[] {ByteBuffer.allocate(2 * BLOCK_SIZE)});
+            } finally {
+                pack.close();
+                pack = null;
+            }
+            PackIndex.write(PackIndex.indexPath(path), index, entries);
+        }
+
+        private void writeFully(ByteBuffer[] buffers) throws IOException {
+            ByteBuffer last = buffers[buffers.length - 1];
+            while (last.hasRemaining()) {
+                position += pack.write(buffers);
+            }
+        }
+    }
+
+    /**
+     * Waits for a task of a pack writer, unwrapping its failure.
+     */
+    private static <T> T await(Future<T> task, String what) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(String.format("Interrupted while storing %s", what));
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * @return a tar-safe file name for the image at url.
+     */
+    private static String entryName(String url) {
+        String name = url.substring(url.lastIndexOf('/') + 1).replaceAll("[^A-Za-z0-9._-]", "_");
+        return name.isEmpty() ? "image" : name;
+    }
+
+    /**
+     * @return the number of zero bytes that pad an entry of the given size to a whole block.
+     */
+    private static int padding(long size) {
+        return (int) ((BLOCK_SIZE - size % BLOCK_SIZE) % BLOCK_SIZE);
+    }
+
+    /**
+     * Builds the ustar header block of a regular file.
+     */
+    private static ByteBuffer header(String name, long size) throws IOException {
+        byte[] block = new byte[BLOCK_SIZE];
+        put(block, 0, name.length() > NAME_LENGTH ? name.substring(0, NAME_LENGTH) : name);
+        put(block, 100, "0000644");                                     // mode
+        put(block, 108, "0000000");                                     // uid
+        put(block, 116, "0000000");                                     // gid
+        put(block, 124, octal(size, 11));                               // size
+        put(block, 136, octal(System.currentTimeMillis() / 1000, 11));  // mtime
+        block[156] = '0';                                               // regular file
+        put(block, 257, "ustar");
+        put(block, 263, "00");
+
+        // the checksum is computed with the checksum field itself filled with spaces
+        Arrays.fill(block, 148, 156, (byte) ' ');
+        long checksum = 0;
+        for (byte b : block) {
+            checksum += b & 0xff;
+        }
+        put(block, 148, octal(checksum, 6));
+        block[154] = 0;
+        return ByteBuffer.wrap(block);
+    }
+
+    private static void put(byte[] block, int offset, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(bytes, 0, block, offset, bytes.length);
+    }
+
+    private static String octal(long value, int digits) throws IOException {
+        String octal = Long.toOctalString(value);
+        if (octal.length() > digits) {
+            throw new IOException(String.format("Too large for a tar header: %d", value));
+        }
+        StringBuilder padded = new StringBuilder();
+        for (int i = octal.length(); i < digits; i++) {
+            padded.append('0');
+        }
+        return padded.append(octal).toString();
+    }
+}
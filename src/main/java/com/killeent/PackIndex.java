@@ -0,0 +1,151 @@
+package com.killeent;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * The index of a pack written by {@link com.killeent.PackImageStore}. Maps the 64-bit hash of
+ * an image's URL to the offset and length of the image's data in the pack, so any image can be
+ * read back with a single positional read and no scan of the archive.
+ *
+ * The index file is an int magic number and an int entry count, followed by one entry per
+ * image of three longs (URL hash, offset, length), sorted by hash. Lookups binary search the
+ * memory-mapped file directly: no per-entry objects are ever created.
+ */
+public class PackIndex {
+
+    private static final int MAGIC = 0x52474958;  // "RGIX"
+    private static final int HEADER_SIZE = 8;
+    private static final int ENTRY_LONGS = 3;
+
+    private final LongBuffer entries;
+    private final int count;
+
+    /**
+     * Opens an index file.
+     *
+     * @param path The path of the index.
+     * @throws java.io.IOException if the index cannot be read or is not an index.
+     */
+    public PackIndex(String path) throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+        try {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC) {
+                throw new IOException(String.format("Not a pack index: %s", path));
+            }
+            this.count = buffer.getInt();
+            this.entries = buffer.slice().asLongBuffer();
+            if (entries.remaining() < (long) count * ENTRY_LONGS) {
+                throw new IOException(String.format("Truncated pack index: %s", path));
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * @return the number of images in the pack.
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Looks up an image in the pack.
+     *
+     * @param url The URL of the image.
+     * @return the offset and length of the image's data in the pack, or null if the image is
+     * not in the pack.
+     */
+    public long[] find(String url) {
+        long hash = hash(url);
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long value = entries.get(mid * ENTRY_LONGS);
+            if (value < hash) {
+                low = mid + 1;
+            } else if (value > hash) {
+                high = mid - 1;
+            } else {
+                return new long[] {
+                        entries.get(mid * ENTRY_LONGS + 1),
+                        entries.get(mid * ENTRY_LONGS + 2)
+                };
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param packPath The path of a pack.
+     * @return the path of the pack's index.
+     */
+    public static String indexPath(String packPath) {
+        return packPath.endsWith(".tar") ?
+                packPath.substring(0, packPath.length() - ".tar".length()) + ".idx" :
+                packPath + ".idx";
+    }
+
+    /**
+     * @return the 64-bit FNV-1a hash of the UTF-8 bytes of url.
+     */
+    static long hash(String url) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : url.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Writes an index file.
+     *
+     * @param path The path of the index.
+     * @param values The entries, as consecutive (hash, offset, length) triples. Need not be
+     *               sorted.
+     * @param count The number of entries in values.
+     * @throws java.io.IOException if the index cannot be written.
+     */
+    static void write(String path, final long[] values, int count) throws IOException {
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Long.compare(values[a * ENTRY_LONGS], values[b * ENTRY_LONGS]);
+            }
+        });
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + count * ENTRY_LONGS * 8);
+        buffer.putInt(MAGIC).putInt(count);
+        for (int i : order) {
+            for (int j = 0; j < ENTRY_LONGS; j++) {
+                buffer.putLong(values[i * ENTRY_LONGS + j]);
+            }
+        }
+        buffer.flip();
+
+        FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } finally {
+            channel.close();
+        }
+    }
+}
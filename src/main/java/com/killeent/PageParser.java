@@ -6,7 +6,11 @@ import org.jsoup.nodes.Element;
 import org.jsoup.select.Elements;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
 import java.util.Collection;
+import java.util.Map;
 
 /**
  * Original Author: Trevor Killeen (2014)
@@ -16,6 +20,13 @@ import java.util.Collection;
  */
 public class PageParser {
 
+    // Attributes that lazy-loading scripts commonly use to hold the real image source. When
+    // any of these are present, the src attribute usually only holds a placeholder.
+    private static final String[] LAZY_SRC_ATTRIBUTES =
+            {"data-src", "data-lazy", "data-lazy-src", "data-original"};
+    private static final String[] LAZY_SRCSET_ATTRIBUTES =
+            {"data-srcset", "data-lazy-srcset"};
+
     /**
      * Raw method to extract links to pages and links to images from the given HTML. This
      * function places these links in the passed collections. It performs no scrubbing
@@ -28,24 +39,294 @@ public class PageParser {
      */
     public static void extractLinksAndImages(
             String html, Collection<String> links, Collection<String> images) throws IOException {
-        Document doc = Jsoup.parse(html);
+        extractLinksAndImages(
+                html, "", links, images, ImageScraperParams.DEFAULT_IMAGE_RESOLUTION_POLICY);
+    }
 
+    /**
+     * Extracts links to pages and links to images from the given HTML. Relative links are
+     * resolved against baseUri. Each image element contributes at most one link to images:
+     * all the variants it advertises (src, srcset, enclosing picture sources and lazy-load
+     * attributes) are collected and policy picks one of them.
+     *
+     * @param html The HTML to scrape.
+     * @param baseUri The URI of the page, used to resolve relative links.
+     * @param links The collection where we will store links to pages.
+     * @param images The collection where we will store links to images.
+     * @param policy The policy used to pick between variants of the same image.
+     * @throws java.io.IOException If we cannot connect to the given URL for whatever reason.
+     */
+    public static void extractLinksAndImages(
+            String html,
+            String baseUri,
+            Collection<String> links,
+            Collection<String> images,
+            ImageResolutionPolicy policy) throws IOException {
+        extractLinksAndImages(Jsoup.parse(html, baseUri), links, images, policy, null);
+    }
+
+    /**
+     * Same as {@link #extractLinksAndImages(String, String, java.util.Collection,
+     * java.util.Collection, ImageResolutionPolicy)} but parses the page straight from a stream,
+     * so we never hold a second copy of the HTML as a String.
+     *
+     * @param in The stream of HTML to scrape.
+     * @param charset The charset of the stream, or null to detect it from the page.
+     * @param baseUri The URI of the page, used to resolve relative links.
+     * @param links The collection where we will store links to pages.
+     * @param images The collection where we will store links to images.
+     * @param policy The policy used to pick between variants of the same image.
+     * @param anchorText If not null, maps each link to the text of its anchor, including the
+     *                   alt text of any images inside the anchor.
+     * @throws java.io.IOException If we fail to read from the stream.
+     */
+    public static void extractLinksAndImages(
+            InputStream in,
+            String charset,
+            String baseUri,
+            Collection<String> links,
+            Collection<String> images,
+            ImageResolutionPolicy policy,
+            Map<String, String> anchorText) throws IOException {
+        extractLinksAndImages(in, charset, baseUri, links, images, policy, anchorText, null);
+    }
+
+    /**
+     * Same as {@link #extractLinksAndImages(java.io.InputStream, String, String,
+     * java.util.Collection, java.util.Collection, ImageResolutionPolicy, java.util.Map)} but
+     * also extracts the visible text of the page.
+     *
+     * @param in The stream of HTML to scrape.
+     * @param charset The charset of the stream, or null to detect it from the page.
+     * @param baseUri The URI of the page, used to resolve relative links.
+     * @param links The collection where we will store links to pages.
+     * @param images The collection where we will store links to images.
+     * @param policy The policy used to pick between variants of the same image.
+     * @param anchorText If not null, maps each link to the text of its anchor.
+     * @param text If not null, where we will append the text of the page's body.
+     * @throws java.io.IOException If we fail to read from the stream.
+     */
+    public static void extractLinksAndImages(
+            InputStream in,
+            String charset,
+            String baseUri,
+            Collection<String> links,
+            Collection<String> images,
+            ImageResolutionPolicy policy,
+            Map<String, String> anchorText,
+            StringBuilder text) throws IOException {
+        Document doc = Jsoup.parse(in, charset, baseUri);
+        extractLinksAndImages(doc, links, images, policy, anchorText);
+        if (text != null && doc.body() != null) {
+            text.append(doc.body().text());
+        }
+    }
+
+    private static void extractLinksAndImages(
+            Document doc,
+            Collection<String> links,
+            Collection<String> images,
+            ImageResolutionPolicy policy,
+            Map<String, String> anchorText) {
         // Get Links and Images
         Elements docLinks = doc.select("a[href]");
         Elements docImages = doc.select("img");
 
         // Place links in the links collection
         for (Element link : docLinks) {
-            if (!link.attr("abs:href").equals("")) {
-                links.add(link.attr("abs:href"));
+            String href = link.attr("abs:href");
+            if (!href.equals("")) {
+                links.add(href);
+                if (anchorText != null && !anchorText.containsKey(href)) {
+                    anchorText.put(href, anchorContext(link));
+                }
             }
         }
 
         // Place images in the images collection
         for (Element img : docImages) {
-            if (!img.attr("abs:src").equals("")) {
-                images.add(img.attr("abs:src"));
+            String image = selectImage(img, policy);
+            if (image != null) {
+                images.add(image);
+            }
+        }
+    }
+
+    /**
+     * @return the text of an anchor together with the alt text of the images inside it.
+     */
+    private static String anchorContext(Element link) {
+        StringBuilder context = new StringBuilder(link.text());
+        for (Element img : link.getElementsByTag("img")) {
+            context.append(' ').append(img.attr("alt"));
+        }
+        return context.toString();
+    }
+
+    /**
+     * Picks a single absolute image link for the given img element.
+     *
+     * @param img The img element.
+     * @param policy The policy used to pick between variants.
+     * @return The chosen link, or null if the element has no usable source.
+     */
+    static String selectImage(Element img, ImageResolutionPolicy policy) {
+        CandidateSelector selector = new CandidateSelector(img, policy);
+
+        // sources of an enclosing picture element come first, as the browser would try them
+        Element parent = img.parent();
+        if (parent != null && parent.tagName().equals("picture")) {
+            for (Element source : parent.getElementsByTag("source")) {
+                selector.addSrcset(source, source.attr("srcset"));
+                for (String attribute : LAZY_SRCSET_ATTRIBUTES) {
+                    selector.addSrcset(source, source.attr(attribute));
+                }
+            }
+        }
+
+        selector.addSrcset(img, img.attr("srcset"));
+        for (String attribute : LAZY_SRCSET_ATTRIBUTES) {
+            selector.addSrcset(img, img.attr(attribute));
+        }
+        for (String attribute : LAZY_SRC_ATTRIBUTES) {
+            selector.addCandidate(img, img.attr(attribute), 1, true);
+        }
+
+        // src is only a fallback: on responsive or lazy-loaded images it is either a
+        // duplicate of one of the variants above or a placeholder.
+        if (!selector.hasCandidate()) {
+            selector.addCandidate(img, img.attr("src"), 1, true);
+        }
+
+        return selector.best;
+    }
+
+    /**
+     * Accumulates the image variants of a single img element and keeps track of the best
+     * one according to the policy.
+     */
+    private static class CandidateSelector {
+
+        private final ImageResolutionPolicy policy;
+        private final int intrinsicWidth;   // declared width of the img, or 1 if unknown
+
+        private String best;
+        private double bestWidth;
+
+        private CandidateSelector(Element img, ImageResolutionPolicy policy) {
+            this.policy = policy;
+            this.intrinsicWidth = parseWidth(img.attr("width"));
+        }
+
+        private boolean hasCandidate() {
+            return best != null;
+        }
+
+        /**
+         * Adds a candidate. If isDensity is true, value is a pixel density descriptor
+         * (e.g. 2x) which we scale by the declared width of the image; otherwise it is
+         * already a width in pixels.
+         */
+        private void addCandidate(Element context, String link, double value, boolean isDensity) {
+            String resolved = resolve(context.baseUri(), link.trim());
+            if (resolved == null) {
+                return;
+            }
+            double width = isDensity ? value * intrinsicWidth : value;
+            if (best == null || policy.prefers(width, bestWidth)) {
+                best = resolved;
+                bestWidth = width;
+            }
+        }
+
+        /**
+         * Parses a srcset attribute value and adds each of its candidates. Follows the
+         * algorithm in the HTML spec closely enough to cope with commas inside URLs.
+         */
+        private void addSrcset(Element context, String srcset) {
+            int i = 0;
+            int length = srcset.length();
+            while (i < length) {
+                // skip leading whitespace and separators
+                while (i < length
+                        && (Character.isWhitespace(srcset.charAt(i)) || srcset.charAt(i) == ',')) {
+                    i++;
+                }
+                if (i >= length) {
+                    break;
+                }
+
+                // the URL runs until the next whitespace
+                int start = i;
+                while (i < length && !Character.isWhitespace(srcset.charAt(i))) {
+                    i++;
+                }
+                String link = srcset.substring(start, i);
+
+                // a URL ending in a comma has no descriptor
+                String descriptor = "";
+                if (link.endsWith(",")) {
+                    while (link.endsWith(",")) {
+                        link = link.substring(0, link.length() - 1);
+                    }
+                } else {
+                    int descriptorStart = i;
+                    while (i < length && srcset.charAt(i) != ',') {
+                        i++;
+                    }
+                    descriptor = srcset.substring(descriptorStart, i).trim();
+                }
+
+                addDescribedCandidate(context, link, descriptor);
+            }
+        }
+
+        private void addDescribedCandidate(Element context, String link, String descriptor) {
+            try {
+                if (descriptor.endsWith("w")) {
+                    addCandidate(context, link,
+                            Integer.parseInt(descriptor.substring(0, descriptor.length() - 1)),
+                            false);
+                } else if (descriptor.endsWith("x")) {
+                    addCandidate(context, link,
+                            Double.parseDouble(descriptor.substring(0, descriptor.length() - 1)),
+                            true);
+                } else {
+                    addCandidate(context, link, 1, true);
+                }
+            } catch (NumberFormatException e) {
+                // malformed descriptor; ignore the candidate
+            }
+        }
+
+        private static int parseWidth(String width) {
+            try {
+                int parsed = Integer.parseInt(width.trim());
+                return parsed > 0 ? parsed : 1;
+            } catch (NumberFormatException e) {
+                return 1;
+            }
+        }
+    }
+
+    /**
+     * Resolves link against baseUri.
+     *
+     * @param baseUri The URI to resolve against. May be empty.
+     * @param link The (possibly relative) link.
+     * @return The absolute link, or null if it cannot be resolved or is an inline data URI.
+     */
+    private static String resolve(String baseUri, String link) {
+        if (link.isEmpty() || link.startsWith("data:")) {
+            return null;
+        }
+        try {
+            if (baseUri.isEmpty()) {
+                return new URL(link).toExternalForm();
             }
+            return new URL(new URL(baseUri), link).toExternalForm();
+        } catch (MalformedURLException e) {
+            return null;
         }
     }
 
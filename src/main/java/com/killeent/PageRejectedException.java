@@ -0,0 +1,30 @@
+package com.killeent;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a fetch is aborted because the response is not an HTML page we are willing to
+ * parse: it is some other type of content, or it is too large.
+ */
+public class PageRejectedException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String contentType;
+
+    /**
+     * @param message Why the page was rejected.
+     * @param contentType The declared or sniffed type of the response, or null if unknown.
+     */
+    public PageRejectedException(String message, String contentType) {
+        super(message);
+        this.contentType = contentType;
+    }
+
+    /**
+     * @return the declared or sniffed type of the response, or null if unknown.
+     */
+    public String getContentType() {
+        return contentType;
+    }
+}
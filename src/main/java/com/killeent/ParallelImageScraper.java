@@ -4,10 +4,13 @@ import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.Collection;
-import java.util.HashSet;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.LinkedList;
-import java.util.Set;
+import java.util.Map;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Original Author: Trevor Killeen (2014)
@@ -16,38 +19,192 @@ import java.util.concurrent.*;
  */
 public class ParallelImageScraper implements ImageScraper {
 
-    private final Set<String> visitedPages;         // pages we have scraped
-    private final Object pageLock;                  // guards the visited pages set
-    private final Set<String> visitedImages;        // images we have scraped
-    private final Object imageLock;                 // guards the visited images set
-    private final ExecutorService executor;         // executor for parallel scraping
+    private final UrlStore visitedPages;            // pages we have scraped
+    private final UrlStore visitedImages;           // images we have scraped
+    private ExecutorService executor;               // executor for parallel scraping
     private final RecursiveTaskManager taskManager; // keeps track of currently executing tasks
+    private CrawlStats stats;                       // stats of the crawl
+    private ImageStore store;                       // stores images for the crawl
+    private CrawlManifest manifest;                 // record of what the crawl fetched
+    private volatile CrawlDeadline deadline;        // time budget of the crawl
+    private volatile boolean cancelRequested;       // cancel the crawl in progress, or the next
+    private LinkScorer scorer;                      // scores links when crawling best-first
+    private final AtomicInteger pagesStarted;       // pages of the crawl we have tried to fetch
+    private final AtomicLong sequence;              // order in which pages were discovered
+    private final ImageStoreFactory stores;         // opens the image store of each crawl
+    private final int threads;                      // worker threads, or 0 for as many as needed
+    private TrapDetector detector;                  // spots traps in the crawl, or null
+    private final boolean console;                  // whether to report crawls on standard out
 
-    private static final long SCRAPER_TIMEOUT = 60 * 1000;  // 60s
+    // how long to wait for workers to wind down once the crawl has been cancelled
+    private static final long DRAIN_TIMEOUT = 5 * 1000;  // 5s
+
+    // number of worker threads when crawling best-first. The best-first executor must queue
+    // tasks in order to prioritize them, so unlike the default one its pool is bounded.
+    private static final int BEST_FIRST_THREADS = 16;
+
+    // Bound on how often a worker refreshes and re-queues stale tasks before taking one
+    private static final int MAX_RESCORES_PER_TAKE = 16;
+
+    /**
+     * Orders the tasks of a best-first crawl: image downloads first, so that their pages'
+     * yields are known as soon as possible, then pages by descending score, shallowest first,
+     * then in discovery order.
+     */
+    private static final Comparator<Runnable> BEST_FIRST = new Comparator<Runnable>() {
+        @Override
+        public int compare(Runnable a, Runnable b) {
+            boolean aIsPage = a instanceof PageScraper;
+            boolean bIsPage = b instanceof PageScraper;
+            if (!aIsPage || !bIsPage) {
+                return aIsPage == bIsPage ? 0 : (aIsPage ? 1 : -1);
+            }
+            PageScraper pa = (PageScraper) a;
+            PageScraper pb = (PageScraper) b;
+            if (pa.score != pb.score) {
+                return pa.score > pb.score ? -1 : 1;
+            }
+            if (pa.depth != pb.depth) {
+                return pa.depth < pb.depth ? -1 : 1;
+            }
+            return pa.sequence < pb.sequence ? -1 : (pa.sequence == pb.sequence ? 0 : 1);
+        }
+    };
 
     public ParallelImageScraper() {
-        visitedPages = new HashSet<String>();
-        pageLock = new Object();
-        visitedImages = new HashSet<String>();
-        imageLock = new Object();
-        executor = Executors.newCachedThreadPool();
+        this(ImageStoreFactory.DEFAULT, 0, true);
+    }
+
+    /**
+     * @param stores Opens the image store of each crawl.
+     * @param threads The number of worker threads, or 0 to start one whenever a task is
+     *                queued and all are busy. Must be bounded if the store may block.
+     * @param console Whether to report each crawl on standard out: its manifest, unless it
+     *                goes to a file, and its summary.
+     */
+    ParallelImageScraper(ImageStoreFactory stores, int threads, boolean console) {
+        this.stores = stores;
+        this.threads = threads;
+        this.console = console;
+        visitedPages = new UrlStore();
+        visitedImages = new UrlStore();
         taskManager = new RecursiveTaskManager();
+        pagesStarted = new AtomicInteger();
+        sequence = new AtomicLong();
     }
 
     @Override
     public void scrapePage(ImageScraperParams params) {
-        visitedPages.add(params.getURL().toString());
-        PageScraper scraper = new PageScraper(params.getURL(), 0, params);
-        taskManager.queueTask();
-        executor.execute(scraper);
         try {
-            taskManager.awaitCompletion(SCRAPER_TIMEOUT);
+            manifest = params.getManifest() != null || console ?
+                    new CrawlManifest(params.getManifest()) :
+                    new CrawlManifest();
+        } catch (IOException e) {
+            System.err.printf("Failed to open manifest: %s\n", e.getMessage());
+            return;
+        }
+        stats = new CrawlStats();
+        final Fetcher fetcher;
+        try {
+            fetcher = Utils.openFetcher(params, stats);
+        } catch (IOException e) {
+            System.err.printf("Failed to open fetch archive: %s\n", e.getMessage());
+            manifest.close();
+            return;
+        }
+        executor = params.bestFirst() ?
+                new ThreadPoolExecutor(BEST_FIRST_THREADS, BEST_FIRST_THREADS,
+                        0L, TimeUnit.MILLISECONDS, new BestFirstQueue()) :
+                threads > 0 ?
+                        Executors.newFixedThreadPool(threads) :
+                        Executors.newCachedThreadPool();
+        deadline = CrawlDeadline.forParams(params, fetcher);
+        if (cancelRequested) {
+            // cancelled before the deadline existed to take it
+            deadline.cancel();
+        }
+        store = stores.open(params, deadline);
+        detector = params.trapThreshold() > 0 ?
+                new TrapDetector(params.trapThreshold(), stats) :
+                null;
+        // what the last crawl learned and spent doesn't carry over to this one
+        scorer = new LinkScorer();
+        pagesStarted.set(0);
+        sequence.set(0);
+        int root = visitedPages.add(params.getURL().toString());
+        submit(new PageScraper(root, params.getURL(), 0, params, null));
+        try {
+            if (!taskManager.awaitCompletion(deadline)) {
+                // out of time: abort what is in flight and drop what is still queued
+                drain();
+                if (console) {
+                    System.out.println("Crawl cancelled before it completed");
+                }
+            }
         } catch (InterruptedException e) {
             System.err.printf("Scraping was interrupted\n");
+            drain();
+            Thread.currentThread().interrupt();
         } finally {
-            executor.shutdown();
+            executor.shutdownNow();
+            try {
+                store.close();
+            } catch (IOException e) {
+                System.err.printf("Failed to finish storing images: %s\n", e.getMessage());
+            }
+            deadline.shutdown();
+            try {
+                fetcher.close();
+            } catch (IOException e) {
+                System.err.printf("Failed to finish fetch archive: %s\n", e.getMessage());
+            }
+            manifest.close();
+            if (console) {
+                System.out.println(stats.summary());
+            }
             visitedPages.clear();
             visitedImages.clear();
+            cancelRequested = false;
+        }
+    }
+
+    @Override
+    public void cancel() {
+        // set before reading the deadline, so that either we see the new deadline or the
+        // crawl starting sees the request
+        cancelRequested = true;
+        CrawlDeadline current = deadline;
+        if (current != null) {
+            current.cancel();
+        }
+    }
+
+    /**
+     * Cancels the crawl and waits for the workers to wind down, so that the store and the
+     * fetcher aren't closed while they are still in use.
+     */
+    private void drain() {
+        deadline.cancel();
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(DRAIN_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Queues a task on the executor, keeping track of it in the task manager. Tasks submitted
+     * after the crawl has been cancelled are dropped.
+     *
+     * @param task The task to run.
+     */
+    private void submit(Runnable task) {
+        taskManager.queueTask();
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            taskManager.taskComplete();
         }
     }
 
@@ -56,92 +213,156 @@ public class ParallelImageScraper implements ImageScraper {
      */
     private class PageScraper implements Runnable {
 
-        private final URL page;
+        private final int page;  // ID in the visited pages
         private final int depth;
         private final ImageScraperParams params;
+        private final LinkScorer.Features features;  // null unless crawling best-first
+        private final long sequence;
+        private double score;
+        private long scoredVersion = -1;  // version of the scorer the score was computed at
 
         /**
          * Scrapes the content of the page specified by page.
          *
+         * @param id The ID of the page in the visited pages.
          * @param page The page to scrape. Should be a new page - i.e. one we haven't visited before.
          * @param depth The current depth of links followed.
          * @param params The scraping params.
+         * @param anchorText The anchor text of the link to the page, or null.
          */
-        private PageScraper(URL page, int depth, ImageScraperParams params) {
-            this.page = page;
+        private PageScraper(int id, URL page, int depth, ImageScraperParams params,
+                            String anchorText) {
+            this.page = id;
             this.depth = depth;
             this.params = params;
+            this.features = params.bestFirst() ?
+                    LinkScorer.features(page, anchorText, depth) :
+                    null;
+            this.sequence = ParallelImageScraper.this.sequence.getAndIncrement();
+            rescore();
+        }
+
+        /**
+         * Brings the score of the page up to date with what the scorer has learned since it
+         * was last computed. Must not be called while the task is in a queue ordered by score.
+         *
+         * @return true if the score was refreshed.
+         */
+        private boolean rescore() {
+            if (features == null) {
+                return false;
+            }
+            // read the version first, so that a concurrent update at worst causes a rescore
+            long version = scorer.getVersion();
+            if (version == scoredVersion) {
+                return false;
+            }
+            scoredVersion = version;
+            score = scorer.score(features);
+            return true;
         }
 
         @Override
         public void run() {
-            System.out.printf("Scraping page: %s/%s\n", page.getHost(), page.getPath());
+            boolean overBudget = params.maxPages() > 0
+                    && pagesStarted.incrementAndGet() > params.maxPages();
+            if (deadline.isCancelled() || overBudget) {
+                taskManager.taskComplete();
+                return;
+            }
+            URL page;
+            try {
+                page = new URL(visitedPages.get(this.page));
+            } catch (MalformedURLException e) {
+                taskManager.taskComplete();
+                return;
+            }
 
             Collection<String> links = new LinkedList<String>();
             Collection<String> images = new LinkedList<String>();
+            Map<String, String> anchorText = features == null ?
+                    null :
+                    new HashMap<String, String>();
+            StringBuilder text = detector == null ? null : new StringBuilder();
+            long start = System.nanoTime();
+            FetchedPage html = null;
             try {
-                // get the HTML for the page
-                String html = Utils.getHTML(page);
-
-                // parse it
-                PageParser.extractLinksAndImages(html, links, images);
+                // fetch the page and parse it as it streams in
+                html = Utils.openPage(page, stats, deadline, params.maxPageSize());
+                try {
+                    PageParser.extractLinksAndImages(html.getBody(), html.getCharset(),
+                            page.toString(), links, images, params.getImageResolutionPolicy(),
+                            anchorText, text);
+                } finally {
+                    html.close();
+                }
 
             } catch (IOException e) {
-                System.err.printf(
-                        "Failed to scrape page: %s; error: %s\n", page.toString(), e.getMessage());
+                manifest.page(page.toString(), failureStatus(e),
+                        html == null ? 0 : html.getWireBytes(), Utils.millisSince(start), depth,
+                        e.getMessage());
+                if (features != null) {
+                    scorer.update(features, 0);
+                }
                 taskManager.taskComplete();
                 return;
             }
+            manifest.page(page.toString(), CrawlManifest.STATUS_OK, html.getWireBytes(),
+                    Utils.millisSince(start), depth, null);
+            if (params.routeImageLinks()) {
+                FetchGuard.routeImageLinks(links, images);
+            }
 
             // download the images
+            int newImages = 0;
             for (String image : images) {
-                synchronized (imageLock) {
-                    if (visitedImages.contains(image)) {
-                        continue;
-                    }
-                    visitedImages.add(image);
+                if (deadline.isCancelled()) {
+                    break;
                 }
-
-                // create a path for the uimage
-                String path = Utils.generateImagePath(image, params.getDirectory());
-                if (path == null) {
+                if (visitedImages.add(image) < 0) {
                     continue;
                 }
+                newImages++;
 
                 try {
-                    System.out.printf("Downloading Image: %s\n", image);
-                    ImageDownloader downloader = new ImageDownloader(new URL(image), path);
-                    taskManager.queueTask();
-                    executor.execute(downloader);
-                } catch (IOException e) {
-                    System.err.printf("Failed to download image: %s\n", image);
+                    submit(new ImageDownloader(new URL(image), page.toString(), depth));
+                } catch (MalformedURLException e) {
+                    // fail silently
                 }
             }
 
-            // recursively scrape other pages
-            if (depth < params.maxDepth()) {
+            if (features != null) {
+                scorer.update(features, newImages);
+            }
+
+            // recursively scrape other pages, unless we have essentially seen this one before
+            boolean duplicate = detector != null && detector.isNearDuplicate(page,
+                    TrapDetector.fingerprint(text.toString(), links, images));
+            if (depth < params.maxDepth() && !duplicate) {
                 for (String link : links) {
-                    synchronized (pageLock) {
-                        // check to see if we've been here before
-                        if (visitedPages.contains(link)) {
-                            continue;
-                        }
-                        visitedPages.add(link);
+                    if (deadline.isCancelled()) {
+                        break;
+                    }
+                    // check to see if we've been here before
+                    int id = visitedPages.add(link);
+                    if (id < 0) {
+                        continue;
                     }
 
                     try {
                         URL linkURL = new URL(link);
-                        // check if the link is outbound; if it is, only scrape it if the params
-                        // allow us to follow outbound links
-                        boolean outbound = Utils.isOutboundLink(params.getURL(), linkURL);
-                        if (outbound && !params.followOutboundLinks()) {
+                        // check the link against the scope rules, which also decide whether
+                        // outbound links may be followed
+                        if (!params.getScope().contains(linkURL)) {
+                            continue;
+                        }
+                        if (detector != null && detector.isTrap(linkURL)) {
                             continue;
                         }
 
                         // good to go!
-                        PageScraper scraper = new PageScraper(linkURL, depth + 1, params);
-                        taskManager.queueTask();
-                        executor.execute(scraper);
+                        String anchor = anchorText == null ? null : anchorText.get(link);
+                        submit(new PageScraper(id, linkURL, depth + 1, params, anchor));
                     } catch (MalformedURLException e) {
                         // fail silently
                     }
@@ -152,26 +373,92 @@ public class ParallelImageScraper implements ImageScraper {
         }
     }
 
+    /**
+     * Work queue of a best-first crawl. The scores of queued pages are computed when they are
+     * discovered but the scorer keeps learning, so, as in
+     * {@link com.killeent.CrawlFrontier#pop()}, a page's score is refreshed when a worker takes
+     * it from the head of the queue, and if the page is no longer the best it is put back and
+     * the next one is considered instead.
+     */
+    private class BestFirstQueue extends PriorityBlockingQueue<Runnable> {
+
+        private static final long serialVersionUID = 1L;
+
+        private BestFirstQueue() {
+            super(64, BEST_FIRST);
+        }
+
+        @Override
+        public Runnable take() throws InterruptedException {
+            return refresh(super.take());
+        }
+
+        @Override
+        public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+            Runnable head = super.poll(timeout, unit);
+            return head == null ? null : refresh(head);
+        }
+
+        /**
+         * @param head A task just taken from the head of the queue.
+         * @return the task to run: head, or a better one if head's refreshed score has
+         * dropped below the next task's.
+         */
+        private Runnable refresh(Runnable head) {
+            for (int i = 0; i < MAX_RESCORES_PER_TAKE; i++) {
+                if (!(head instanceof PageScraper) || !((PageScraper) head).rescore()) {
+                    return head;
+                }
+                Runnable next = peek();
+                if (next == null || BEST_FIRST.compare(head, next) <= 0) {
+                    return head;
+                }
+                // another worker may have taken next meanwhile, so poll rather than assume
+                Runnable better = poll();
+                if (better == null) {
+                    return head;
+                }
+                offer(head);
+                head = better;
+            }
+            return head;
+        }
+    }
+
     /**
      * Runnable for downloading an image. Wraps a call to
-     * {@link com.killeent.Utils#downloadImage(java.net.URL, String)}.
+     * {@link com.killeent.ImageStore#store(java.net.URL, String, int)}.
      */
     private class ImageDownloader implements Runnable {
 
         private final URL image;
-        private final String path;
+        private final String page;
+        private final int depth;
 
-        public ImageDownloader(URL image, String path) {
+        public ImageDownloader(URL image, String page, int depth) {
             this.image = image;
-            this.path = path;
+            this.page = page;
+            this.depth = depth;
         }
 
         @Override
         public void run() {
+            if (deadline.isCancelled()) {
+                taskManager.taskComplete();
+                return;
+            }
+
+            long start = System.nanoTime();
             try {
-                Utils.downloadImage(image, path);
+                StoredImage stored = store.store(image, page, depth);
+                if (stored != null) {
+                    stats.imageDownloaded();
+                    manifest.image(image.toString(), CrawlManifest.STATUS_OK, stored.getBytes(),
+                            Utils.millisSince(start), stored.getLocation(), depth, null);
+                }
             } catch (IOException e) {
-                System.err.printf("Failed to download image: %s\n", image);
+                manifest.image(image.toString(), failureStatus(), 0,
+                        Utils.millisSince(start), null, depth, e.getMessage());
             } finally {
                 taskManager.taskComplete();
             }
@@ -184,6 +471,7 @@ public class ParallelImageScraper implements ImageScraper {
      * alll the recursive tasks to finish.
      */
     private class RecursiveTaskManager {
+        private static final long CANCEL_POLL = 100;  // 100ms
         private int value = 0;
         private Object lock = new Object();
 
@@ -202,13 +490,47 @@ public class ParallelImageScraper implements ImageScraper {
             }
         }
 
-        public void awaitCompletion(long timeout) throws InterruptedException {
+        /**
+         * Blocks until all tasks are complete, or the crawl is cancelled or runs out of time.
+         *
+         * @param deadline The deadline of the crawl.
+         * @return true if all tasks completed.
+         */
+        public boolean awaitCompletion(CrawlDeadline deadline) throws InterruptedException {
             synchronized (lock) {
                 while (value > 0) {
-                    lock.wait(timeout);
+                    if (deadline.isCancelled()) {
+                        return false;
+                    }
+                    // wake up periodically to notice cancellation from other threads
+                    lock.wait(Math.max(1, Math.min(deadline.remainingMillis(), CANCEL_POLL)));
                 }
+                return true;
             }
         }
 
     }
+
+    /**
+     * @param e Why a page fetch failed.
+     * @return the manifest status of the fetch: rejected if the fetch guard aborted it,
+     * otherwise as {@link #failureStatus()}. Rejected fetches are counted in the stats.
+     */
+    private String failureStatus(IOException e) {
+        if (e instanceof PageRejectedException) {
+            stats.pageRejected();
+            return CrawlManifest.STATUS_REJECTED;
+        }
+        return failureStatus();
+    }
+
+    /**
+     * @return the manifest status of a request that failed: cancelled if the crawl was
+     * cancelled, failed otherwise.
+     */
+    private String failureStatus() {
+        return deadline.isCancelled() ?
+                CrawlManifest.STATUS_CANCELLED :
+                CrawlManifest.STATUS_FAILED;
+    }
 }
@@ -0,0 +1,494 @@
+package com.killeent;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.*;
+
+/**
+ * Downloads large images as several concurrent byte-range requests. Each chunk is written in
+ * place into a ".part" file with positional writes, and the set of completed chunks is kept in
+ * a small ".ranges" sidecar file. If a download fails part way, the next attempt at the same
+ * path (in this crawl or a later one) only fetches the chunks that are still missing.
+ *
+ * Every download starts with a request for the first chunk of the image. Its answer tells us
+ * the size of the image and whether the server serves ranges of it, so images below the size
+ * threshold, and images on servers that ignore the range, are downloaded with that single
+ * request. Larger images have the rest of their chunks fetched by at most a fixed number of
+ * workers at a time. Images that change while they are being downloaded, which the server
+ * signals by answering a range request whose If-Range validator no longer matches with the
+ * whole image, are downloaded again with a single request.
+ */
+public class RangeDownloader {
+
+    private static final int MIN_CHUNK_SIZE = 256 * 1024;    // 256KB
+    private static final int CHUNKS_PER_CONNECTION = 4;      // so stragglers can be rebalanced
+    private static final int MAX_CHUNK_ATTEMPTS = 3;
+    private static final long RETRY_DELAY = 250;              // ms, doubles with each retry
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int SIDECAR_MAGIC = 0x52475232;      // "RGR2"
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+    private final long threshold;
+    private final int connections;
+    private final CrawlDeadline deadline;
+    private final ExecutorService executor;
+
+    /**
+     * @param threshold Images at least this many bytes long are downloaded in ranges. If 0,
+     *                  range downloads are disabled.
+     * @param connections The maximum number of concurrent range requests per image.
+     * @param deadline The deadline of the crawl, which applies its timeouts to every request.
+     */
+    public RangeDownloader(long threshold, int connections, CrawlDeadline deadline) {
+        this.threshold = threshold;
+        this.connections = connections;
+        this.deadline = deadline;
+        this.executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "reggie-range");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Downloads the image at url to path, using range requests if the image is large enough
+     * and the server supports them.
+     *
+     * @param image The URL of the image to download.
+     * @param path Local name of file to download the image to.
+     * @throws java.io.IOException if the download fails. A partial range download is kept so
+     * that it can be resumed.
+     * @return the number of bytes in the image.
+     */
+    public long download(URL image, String path) throws IOException {
+        if (threshold <= 0 || !image.getProtocol().startsWith("http")) {
+            return Utils.downloadImage(image, path, deadline);
+        }
+
+        long first = Math.max(threshold, MIN_CHUNK_SIZE);
+        HttpURLConnection connection = (HttpURLConnection) deadline.open(image);
+        try {
+            connection.setRequestProperty("Range", String.format("bytes=0-%d", first - 1));
+            int status = connection.getResponseCode();
+            if (status != HttpURLConnection.HTTP_PARTIAL
+                    && status != HTTP_RANGE_NOT_SATISFIABLE) {
+                // the server ignored the range and is sending the whole image
+                return Utils.saveImage(connection, path);
+            }
+            long length = status == HttpURLConnection.HTTP_PARTIAL ?
+                    parseLength(connection.getHeaderField("Content-Range")) :
+                    -1;
+            if (length < 0) {
+                // an empty image, or one of unknown size: we can't split it up
+                connection.disconnect();
+                deadline.release(connection);
+                return Utils.downloadImage(image, path, deadline);
+            }
+            if (length <= first) {
+                // the first chunk is the whole image
+                return Utils.saveImage(connection, path);
+            }
+
+            // used with If-Range so that we never stitch together two versions of an image
+            String validator = connection.getHeaderField("ETag");
+            if (validator == null || validator.startsWith("W/")) {
+                validator = connection.getHeaderField("Last-Modified");
+            }
+            RangeTarget target = new RangeTarget(length, validator == null ? "" : validator);
+            try {
+                downloadRanges(image, path, target, first, connection);
+            } catch (RangeRefusedException e) {
+                if (!isImageChanged(e)) {
+                    throw e;
+                }
+                // the image changed since the first chunk, so the chunks we have are of no use
+                new File(path + ".part").delete();
+                new File(path + ".part.ranges").delete();
+                return Utils.downloadImage(image, path, deadline);
+            }
+            return target.length;
+        } finally {
+            deadline.release(connection);
+        }
+    }
+
+    /**
+     * Stops the threads fetching chunks. Any downloads still in progress will fail.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Parses the size of the whole image out of the Content-Range header of the response to
+     * the first chunk.
+     *
+     * @return the size, or -1 if the header is missing, unknown or not for the first chunk.
+     */
+    static long parseLength(String contentRange) {
+        if (contentRange == null || !contentRange.startsWith("bytes 0-")) {
+            return -1;
+        }
+        int slash = contentRange.indexOf('/');
+        try {
+            return slash < 0 ? -1 : Long.parseLong(contentRange.substring(slash + 1).trim());
+        } catch (NumberFormatException e) {
+            return -1;  // "*": the server doesn't know
+        }
+    }
+
+    /**
+     * Downloads the image in chunks: the first one, of the given size, from the response to
+     * the first request, and the rest split evenly between the connections.
+     *
+     * @param connection The connection the first chunk is being received on.
+     */
+    private void downloadRanges(URL image, String path, RangeTarget target, long first,
+                                HttpURLConnection connection) throws IOException {
+        File part = new File(path + ".part");
+        File sidecar = new File(path + ".part.ranges");
+
+        long rest = target.length - first;
+        long chunkSize = Math.max(MIN_CHUNK_SIZE,
+                (rest + connections * CHUNKS_PER_CONNECTION - 1)
+                        / (connections * CHUNKS_PER_CONNECTION));
+        int chunks = 1 + (int) ((rest + chunkSize - 1) / chunkSize);
+        Progress progress = Progress.load(sidecar, target, first, chunkSize, chunks);
+        boolean fresh = progress == null || !part.exists();
+        if (fresh) {
+            // the sidecar may describe a part file that is gone, so it mustn't outlive it
+            sidecar.delete();
+            progress = new Progress(sidecar, target, first, chunkSize, chunks);
+        }
+        if (progress.isComplete(0)) {
+            // resuming: the first chunk is already on disk
+            connection.disconnect();
+        }
+
+        FileChannel channel = FileChannel.open(part.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            if (fresh) {
+                // a part file left over from another version of the image may be longer
+                channel.truncate(target.length);
+            }
+            // queue all missing chunks, first one first, for at most connections workers
+            Queue<ChunkFetcher> pending = new ConcurrentLinkedQueue<ChunkFetcher>();
+            for (int i = 0; i < chunks; i++) {
+                if (progress.isComplete(i)) {
+                    continue;
+                }
+                long start = i == 0 ? 0 : first + (i - 1) * chunkSize;
+                long end = (i == 0 ? first : Math.min(target.length, start + chunkSize)) - 1;
+                pending.add(new ChunkFetcher(image, target, channel, progress, i, start, end,
+                        i == 0 ? connection : null, deadline));
+            }
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int i = Math.min(connections, pending.size()); i > 0; i--) {
+                futures.add(executor.submit(new ChunkWorker(pending)));
+            }
+
+            IOException failure = null;
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    // a chunk that found the image changed decides what happens next
+                    if (failure == null || isImageChanged(e.getCause())) {
+                        failure = e.getCause() instanceof IOException ?
+                                (IOException) e.getCause() :
+                                new IOException(e.getCause());
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted during range download");
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        } finally {
+            channel.close();
+        }
+
+        Files.move(part.toPath(), new File(path).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        sidecar.delete();
+    }
+
+    /**
+     * @return true if a chunk failed because the whole image was sent instead of its range.
+     */
+    private static boolean isImageChanged(Throwable failure) {
+        return failure instanceof RangeRefusedException
+                && ((RangeRefusedException) failure).status == HttpURLConnection.HTTP_OK;
+    }
+
+    /**
+     * Size and validator of a rangeable image.
+     */
+    private static class RangeTarget {
+        private final long length;
+        private final String validator;
+
+        private RangeTarget(long length, String validator) {
+            this.length = length;
+            this.validator = validator;
+        }
+    }
+
+    /**
+     * A range request answered with something other than 206 Partial Content.
+     */
+    private static class RangeRefusedException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int status;
+
+        private RangeRefusedException(URL image, int status) {
+            super(String.format("Range request for %s returned %d", image, status));
+            this.status = status;
+        }
+    }
+
+    /**
+     * Fetches chunks from a shared queue until it is empty. A chunk that fails doesn't stop
+     * the worker, so that as many chunks as possible are kept for a later attempt; the worker
+     * fails with the most telling of its chunks' failures.
+     */
+    private static class ChunkWorker implements Callable<Void> {
+
+        private final Queue<ChunkFetcher> pending;
+
+        private ChunkWorker(Queue<ChunkFetcher> pending) {
+            this.pending = pending;
+        }
+
+        @Override
+        public Void call() throws IOException, InterruptedException {
+            IOException failure = null;
+            ChunkFetcher chunk;
+            while ((chunk = pending.poll()) != null) {
+                try {
+                    chunk.fetch();
+                } catch (IOException e) {
+                    if (failure == null || isImageChanged(e)) {
+                        failure = e;
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Fetches one byte range of the image and writes it into place. Retries a failed chunk
+     * from the last byte written, with exponential backoff. Range requests the server refuses
+     * are not retried unless it is overloaded, as the answer won't change.
+     */
+    private static class ChunkFetcher {
+
+        private final URL image;
+        private final RangeTarget target;
+        private final FileChannel channel;
+        private final Progress progress;
+        private final int index;
+        private final long start;
+        private final long end;
+        private final CrawlDeadline deadline;
+        private HttpURLConnection opened;  // already requested the chunk, or null
+        private long lastWritten;   // position after the last byte written by this chunk
+
+        private ChunkFetcher(URL image, RangeTarget target, FileChannel channel, Progress progress,
+                             int index, long start, long end, HttpURLConnection opened,
+                             CrawlDeadline deadline) {
+            this.image = image;
+            this.target = target;
+            this.channel = channel;
+            this.progress = progress;
+            this.index = index;
+            this.start = start;
+            this.end = end;
+            this.opened = opened;
+            this.deadline = deadline;
+        }
+
+        private void fetch() throws IOException, InterruptedException {
+            lastWritten = start;
+            IOException failure = null;
+            for (int attempt = 0; attempt < MAX_CHUNK_ATTEMPTS; attempt++) {
+                deadline.checkCancelled();
+                if (attempt > 0) {
+                    Thread.sleep(RETRY_DELAY << (attempt - 1));
+                    deadline.checkCancelled();
+                }
+                try {
+                    // pick up where the previous attempt left off
+                    fetch(lastWritten);
+                    progress.complete(index);
+                    return;
+                } catch (RangeRefusedException e) {
+                    if (e.status != 429 && e.status < HttpURLConnection.HTTP_INTERNAL_ERROR) {
+                        throw e;
+                    }
+                    failure = e;
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+            throw failure;
+        }
+
+        /**
+         * Fetches bytes [from, end] and writes them at the same offsets in the part file.
+         */
+        private void fetch(long from) throws IOException {
+            HttpURLConnection connection = opened;
+            opened = null;
+            if (connection == null) {
+                connection = (HttpURLConnection) deadline.open(image);
+                connection.setRequestProperty("Range", String.format("bytes=%d-%d", from, end));
+                if (!target.validator.isEmpty()) {
+                    connection.setRequestProperty("If-Range", target.validator);
+                }
+            }
+            try {
+                int status = connection.getResponseCode();
+                if (status != HttpURLConnection.HTTP_PARTIAL) {
+                    throw new RangeRefusedException(image, status);
+                }
+
+                InputStream in = connection.getInputStream();
+                try {
+                    byte[] bytes = new byte[BUFFER_SIZE];
+                    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                    long position = from;
+                    int n;
+                    while (position <= end
+                            && (n = in.read(bytes, 0, (int) Math.min(bytes.length, end - position + 1))) > 0) {
+                        buffer.clear().limit(n);
+                        while (buffer.hasRemaining()) {
+                            position += channel.write(buffer, position);
+                        }
+                        lastWritten = position;
+                    }
+                    if (position <= end) {
+                        throw new EOFException(String.format(
+                                "Range request for %s ended early at byte %d", image, position));
+                    }
+                } finally {
+                    in.close();
+                }
+            } finally {
+                deadline.release(connection);
+            }
+        }
+    }
+
+    /**
+     * The set of completed chunks of a range download, mirrored to a sidecar file so an
+     * interrupted download can be resumed.
+     */
+    private static class Progress {
+
+        private final File sidecar;
+        private final RangeTarget target;
+        private final long first;       // size of the first chunk
+        private final long chunkSize;   // size of the others
+        private final int chunks;
+        private final BitSet completed;
+
+        private Progress(File sidecar, RangeTarget target, long first, long chunkSize,
+                         int chunks) {
+            this(sidecar, target, first, chunkSize, chunks, new BitSet(chunks));
+        }
+
+        private Progress(File sidecar, RangeTarget target, long first, long chunkSize,
+                         int chunks, BitSet completed) {
+            this.sidecar = sidecar;
+            this.target = target;
+            this.first = first;
+            this.chunkSize = chunkSize;
+            this.chunks = chunks;
+            this.completed = completed;
+        }
+
+        /**
+         * Loads the progress of an earlier attempt at the same download.
+         *
+         * @return the progress, or null if there is none or it belongs to a different version
+         * or layout of the image.
+         */
+        private static Progress load(File sidecar, RangeTarget target, long first,
+                                     long chunkSize, int chunks) {
+            if (!sidecar.exists()) {
+                return null;
+            }
+            try {
+                DataInputStream in = new DataInputStream(
+                        new BufferedInputStream(new FileInputStream(sidecar)));
+                try {
+                    if (in.readInt() != SIDECAR_MAGIC
+                            || in.readLong() != target.length
+                            || !in.readUTF().equals(target.validator)
+                            || in.readLong() != first
+                            || in.readLong() != chunkSize
+                            || in.readInt() != chunks) {
+                        return null;
+                    }
+                    long[] words = new long[in.readInt()];
+                    for (int i = 0; i < words.length; i++) {
+                        words[i] = in.readLong();
+                    }
+                    return new Progress(sidecar, target, first, chunkSize, chunks,
+                            BitSet.valueOf(words));
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        private synchronized boolean isComplete(int chunk) {
+            return completed.get(chunk);
+        }
+
+        private synchronized void complete(int chunk) throws IOException {
+            completed.set(chunk);
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(sidecar)));
+            try {
+                out.writeInt(SIDECAR_MAGIC);
+                out.writeLong(target.length);
+                out.writeUTF(target.validator);
+                out.writeLong(first);
+                out.writeLong(chunkSize);
+                out.writeInt(chunks);
+                long[] words = completed.toLongArray();
+                out.writeInt(words.length);
+                for (long word : words) {
+                    out.writeLong(word);
+                }
+            } finally {
+                out.close();
+            }
+        }
+    }
+}
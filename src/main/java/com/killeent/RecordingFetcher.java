@@ -0,0 +1,324 @@
+package com.killeent;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Fetches from the live web and records every HTTP response (status, headers and body) into a
+ * {@link com.killeent.FetchArchive}, so that the crawl can later be replayed offline with a
+ * {@link com.killeent.ReplayFetcher}.
+ *
+ * A response is recorded once its body has been read to the end or closed. Responses whose
+ * body is never read (HEAD requests, or requests the crawl gave up on after seeing the status)
+ * are recorded without one when the fetcher is closed. A body that wasn't read in full, because
+ * reading it failed or the crawl stopped part way, is recorded as truncated, and replaying it
+ * fails where the original read stopped. Requests that fail before a response arrives are not
+ * recorded.
+ */
+public class RecordingFetcher implements Fetcher {
+
+    private final String archive;
+    private final Fetcher live;
+    private final FileChannel data;
+    private final Map<String, long[]> index;   // guarded by this
+    private final Set<RecordingConnection> pending;
+    private long position;                      // guarded by this
+
+    /**
+     * Starts recording.
+     *
+     * @param archive The path of the archive to record to. Overwritten if it exists.
+     * @throws java.io.IOException if the archive cannot be created.
+     */
+    public RecordingFetcher(String archive) throws IOException {
+        this.archive = archive;
+        this.live = new LiveFetcher();
+        this.data = FileChannel.open(Paths.get(archive), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        this.index = new HashMap<String, long[]>();
+        this.pending = ConcurrentHashMap.newKeySet();
+    }
+
+    @Override
+    public URLConnection open(URL url) throws IOException {
+        URLConnection connection = live.open(url);
+        if (connection instanceof HttpURLConnection) {
+            return new RecordingConnection((HttpURLConnection) connection);
+        }
+        return connection;
+    }
+
+    /**
+     * Records the responses still pending and writes the index of the archive.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            for (RecordingConnection connection : pending) {
+                connection.commit();
+            }
+            synchronized (this) {
+                FetchArchive.writeIndex(FetchArchive.indexPath(archive), index);
+            }
+        } finally {
+            data.close();
+        }
+    }
+
+    /**
+     * Appends a response to the archive. A later response to the same request replaces the
+     * earlier one in the index, so that retried requests replay their final outcome.
+     */
+    private void record(FetchArchive.Response response) throws IOException {
+        ByteBuffer record = ByteBuffer.wrap(response.toRecord());
+        synchronized (this) {
+            long offset = position;
+            while (record.hasRemaining()) {
+                position += data.write(record, position);
+            }
+            index.put(response.getKey(), new long[] {offset, position - offset});
+        }
+    }
+
+    /**
+     * Passes everything through to a live connection, keeping a copy of the response.
+     */
+    private class RecordingConnection extends HttpURLConnection {
+
+        private final HttpURLConnection delegate;
+        private final ByteArrayOutputStream body;
+        private String range;
+        private int status;
+        private String message;
+        private List<String[]> headers;
+        private long length;        // the Content-Length of the response, or -1
+        private boolean complete;   // whether the body was read to the end, or there is none
+        private boolean captured;
+        private boolean committed;
+
+        private RecordingConnection(HttpURLConnection delegate) {
+            super(delegate.getURL());
+            this.delegate = delegate;
+            this.body = new ByteArrayOutputStream();
+        }
+
+        /**
+         * Takes note of the status and headers of the response, once they have arrived.
+         */
+        private synchronized void capture() throws IOException {
+            if (captured) {
+                return;
+            }
+            status = delegate.getResponseCode();
+            message = delegate.getResponseMessage();
+            headers = new ArrayList<String[]>();
+            for (Map.Entry<String, List<String>> field : delegate.getHeaderFields().entrySet()) {
+                if (field.getKey() == null) {
+                    continue;  // the status line
+                }
+                for (String value : field.getValue()) {
+                    headers.add(new String[] {field.getKey(), value});
+                }
+            }
+            length = delegate.getHeaderFieldLong("Content-Length", -1);
+            captured = true;
+            pending.add(this);
+        }
+
+        /**
+         * Records the response with as much of the body as has been read, marked as truncated
+         * unless that is all of it.
+         */
+        private synchronized void commit() throws IOException {
+            if (!captured || committed) {
+                return;
+            }
+            committed = true;
+            pending.remove(this);
+            // HttpURLConnection reports a body cut short of its Content-Length as a plain end
+            // of stream, so when the length is known it is what decides
+            boolean truncated = !method.equals("HEAD")
+                    && status != HTTP_NO_CONTENT
+                    && status != HTTP_NOT_MODIFIED
+                    && (length >= 0 ? body.size() < length : !complete);
+            record(new FetchArchive.Response(FetchArchive.key(method, url.toString(), range),
+                    status, message, headers, body.toByteArray(), truncated));
+        }
+
+        private synchronized void reachedEnd() throws IOException {
+            complete = true;
+            commit();
+        }
+
+        @Override
+        public void setRequestMethod(String method) throws java.net.ProtocolException {
+            delegate.setRequestMethod(method);
+            super.setRequestMethod(method);
+        }
+
+        @Override
+        public void setRequestProperty(String key, String value) {
+            delegate.setRequestProperty(key, value);
+            if ("Range".equalsIgnoreCase(key)) {
+                range = value;
+            }
+        }
+
+        @Override
+        public void addRequestProperty(String key, String value) {
+            delegate.addRequestProperty(key, value);
+        }
+
+        @Override
+        public String getRequestProperty(String key) {
+            return delegate.getRequestProperty(key);
+        }
+
+        @Override
+        public void setConnectTimeout(int timeout) {
+            delegate.setConnectTimeout(timeout);
+        }
+
+        @Override
+        public int getConnectTimeout() {
+            return delegate.getConnectTimeout();
+        }
+
+        @Override
+        public void setReadTimeout(int timeout) {
+            delegate.setReadTimeout(timeout);
+        }
+
+        @Override
+        public int getReadTimeout() {
+            return delegate.getReadTimeout();
+        }
+
+        @Override
+        public void connect() throws IOException {
+            delegate.connect();
+        }
+
+        @Override
+        public void disconnect() {
+            delegate.disconnect();
+        }
+
+        @Override
+        public boolean usingProxy() {
+            return delegate.usingProxy();
+        }
+
+        @Override
+        public int getResponseCode() throws IOException {
+            capture();
+            return status;
+        }
+
+        @Override
+        public String getResponseMessage() throws IOException {
+            capture();
+            return message;
+        }
+
+        @Override
+        public String getHeaderField(String name) {
+            try {
+                capture();
+            } catch (IOException e) {
+                // the delegate reports no headers either
+            }
+            return delegate.getHeaderField(name);
+        }
+
+        @Override
+        public String getHeaderFieldKey(int n) {
+            return delegate.getHeaderFieldKey(n);
+        }
+
+        @Override
+        public String getHeaderField(int n) {
+            return delegate.getHeaderField(n);
+        }
+
+        @Override
+        public Map<String, List<String>> getHeaderFields() {
+            return delegate.getHeaderFields();
+        }
+
+        @Override
+        public InputStream getErrorStream() {
+            return delegate.getErrorStream();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            capture();
+            InputStream in;
+            try {
+                in = delegate.getInputStream();
+            } catch (IOException e) {
+                // an error status, whose body the crawl doesn't read
+                reachedEnd();
+                throw e;
+            }
+            return new FilterInputStream(in) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b == -1) {
+                        reachedEnd();
+                    } else {
+                        body.write(b);
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int n = super.read(b, off, len);
+                    if (n == -1) {
+                        reachedEnd();
+                    } else {
+                        body.write(b, off, n);
+                    }
+                    return n;
+                }
+
+                @Override
+                public long skip(long n) throws IOException {
+                    // read what is skipped, so that it ends up in the recording
+                    byte[] buffer = new byte[(int) Math.min(n, 8192)];
+                    long skipped = 0;
+                    int read;
+                    while (skipped < n && (read = read(buffer, 0,
+                            (int) Math.min(buffer.length, n - skipped))) != -1) {
+                        skipped += read;
+                    }
+                    return skipped;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        commit();
+                    }
+                }
+            };
+        }
+    }
+}
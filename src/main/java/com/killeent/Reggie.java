@@ -14,6 +14,30 @@ public class Reggie {
     public static final String DEPTH_FLAG = "depth";
     public static final String OUTBOUND_FLAG = "outbound";
     public static final String PARALLEL_FLAG = "p";
+    public static final String RESOLUTION_FLAG = "resolution";
+    public static final String RANGE_THRESHOLD_FLAG = "rangethreshold";
+    public static final String RANGE_CONNECTIONS_FLAG = "rangeconnections";
+    public static final String MANIFEST_FLAG = "manifest";
+    public static final String TIMEOUT_FLAG = "timeout";
+    public static final String CONNECT_TIMEOUT_FLAG = "connecttimeout";
+    public static final String READ_TIMEOUT_FLAG = "readtimeout";
+    public static final String REQUEST_TIMEOUT_FLAG = "requesttimeout";
+    public static final String BEST_FIRST_FLAG = "bestfirst";
+    public static final String MAX_PAGES_FLAG = "maxpages";
+    public static final String PACK_SIZE_FLAG = "packsize";
+    public static final String PACK_WRITERS_FLAG = "packwriters";
+    public static final String RECORD_FLAG = "record";
+    public static final String REPLAY_FLAG = "replay";
+    public static final String REPLAY_LATENCY_FLAG = "replaylatency";
+    public static final String REPLAY_BANDWIDTH_FLAG = "replaybandwidth";
+    public static final String RETRIES_FLAG = "retries";
+    public static final String BREAKER_THRESHOLD_FLAG = "breakerthreshold";
+    public static final String BREAKER_COOLDOWN_FLAG = "breakercooldown";
+    public static final String TRAP_THRESHOLD_FLAG = "trapthreshold";
+    public static final String INCLUDE_FLAG = "include";
+    public static final String EXCLUDE_FLAG = "exclude";
+    public static final String MAX_PAGE_SIZE_FLAG = "maxpagesize";
+    public static final String IMAGE_LINKS_FLAG = "imagelinks";
 
     public static void main(String[] args) {
         ImageScraperParams params = null;
@@ -52,15 +76,7 @@ public class Reggie {
             throw new IllegalArgumentException("Invalid call to reggie: missing parameters");
         }
 
-        // Define command line flags
-        Options options = new Options();
-        options.addOption(OptionBuilder.withDescription("crawl to a maximum depth of n")
-                .hasArg()
-                .withArgName("n")
-                .withType(Integer.class)
-                .create(DEPTH_FLAG));
-        options.addOption(OUTBOUND_FLAG, false, "crawl outbound links");
-        options.addOption(PARALLEL_FLAG, false, "scrape pages in parallel");
+        Options options = commandLineOptions();
 
         // Params
         ImageScraperParams params;
@@ -102,6 +118,91 @@ public class Reggie {
                 builder.maxDepth(Integer.valueOf(maxDepth));
             }
             builder.scrapeInParallel(commandLine.hasOption(PARALLEL_FLAG));
+            String resolution = commandLine.getOptionValue(RESOLUTION_FLAG);
+            if (resolution != null) {
+                builder.imageResolutionPolicy(parseResolutionPolicy(resolution));
+            }
+            String rangeThreshold = commandLine.getOptionValue(RANGE_THRESHOLD_FLAG);
+            if (rangeThreshold != null) {
+                builder.rangeThreshold(Long.valueOf(rangeThreshold));
+            }
+            String rangeConnections = commandLine.getOptionValue(RANGE_CONNECTIONS_FLAG);
+            if (rangeConnections != null) {
+                builder.rangeConnections(Integer.valueOf(rangeConnections));
+            }
+            builder.manifest(commandLine.getOptionValue(MANIFEST_FLAG));
+            String timeout = commandLine.getOptionValue(TIMEOUT_FLAG);
+            if (timeout != null) {
+                builder.crawlTimeout(secondsToMillis(timeout));
+            }
+            String connectTimeout = commandLine.getOptionValue(CONNECT_TIMEOUT_FLAG);
+            if (connectTimeout != null) {
+                builder.connectTimeout((int) secondsToMillis(connectTimeout));
+            }
+            String readTimeout = commandLine.getOptionValue(READ_TIMEOUT_FLAG);
+            if (readTimeout != null) {
+                builder.readTimeout((int) secondsToMillis(readTimeout));
+            }
+            String requestTimeout = commandLine.getOptionValue(REQUEST_TIMEOUT_FLAG);
+            if (requestTimeout != null) {
+                builder.requestTimeout(secondsToMillis(requestTimeout));
+            }
+            builder.bestFirst(commandLine.hasOption(BEST_FIRST_FLAG));
+            String maxPages = commandLine.getOptionValue(MAX_PAGES_FLAG);
+            if (maxPages != null) {
+                builder.maxPages(Integer.valueOf(maxPages));
+            }
+            String packSize = commandLine.getOptionValue(PACK_SIZE_FLAG);
+            if (packSize != null) {
+                builder.packSize(Long.valueOf(packSize) * 1024 * 1024);
+            }
+            String packWriters = commandLine.getOptionValue(PACK_WRITERS_FLAG);
+            if (packWriters != null) {
+                builder.packWriters(Integer.valueOf(packWriters));
+            }
+            builder.recordArchive(commandLine.getOptionValue(RECORD_FLAG));
+            builder.replayArchive(commandLine.getOptionValue(REPLAY_FLAG));
+            String replayLatency = commandLine.getOptionValue(REPLAY_LATENCY_FLAG);
+            if (replayLatency != null) {
+                builder.replayLatency(Long.valueOf(replayLatency));
+            }
+            String replayBandwidth = commandLine.getOptionValue(REPLAY_BANDWIDTH_FLAG);
+            if (replayBandwidth != null) {
+                builder.replayBandwidth(Long.valueOf(replayBandwidth) * 1024);
+            }
+            String retries = commandLine.getOptionValue(RETRIES_FLAG);
+            if (retries != null) {
+                builder.maxRetries(Integer.valueOf(retries));
+            }
+            String breakerThreshold = commandLine.getOptionValue(BREAKER_THRESHOLD_FLAG);
+            if (breakerThreshold != null) {
+                builder.breakerThreshold(Integer.valueOf(breakerThreshold));
+            }
+            String breakerCooldown = commandLine.getOptionValue(BREAKER_COOLDOWN_FLAG);
+            if (breakerCooldown != null) {
+                builder.breakerCooldown(secondsToMillis(breakerCooldown));
+            }
+            String trapThreshold = commandLine.getOptionValue(TRAP_THRESHOLD_FLAG);
+            if (trapThreshold != null) {
+                builder.trapThreshold(Integer.valueOf(trapThreshold));
+            }
+            String maxPageSize = commandLine.getOptionValue(MAX_PAGE_SIZE_FLAG);
+            if (maxPageSize != null) {
+                builder.maxPageSize(Long.valueOf(maxPageSize) * 1024 * 1024);
+            }
+            builder.routeImageLinks(commandLine.hasOption(IMAGE_LINKS_FLAG));
+            String[] includes = commandLine.getOptionValues(INCLUDE_FLAG);
+            if (includes != null) {
+                for (String rule : includes) {
+                    builder.include(rule);
+                }
+            }
+            String[] excludes = commandLine.getOptionValues(EXCLUDE_FLAG);
+            if (excludes != null) {
+                for (String rule : excludes) {
+                    builder.exclude(rule);
+                }
+            }
 
             return builder.build();
         } catch (NumberFormatException n) {
@@ -113,10 +214,193 @@ public class Reggie {
         }
     }
 
+    /**
+     * Defines the command line flags understood by Reggie.
+     *
+     * @return the flags.
+     */
+    private static Options commandLineOptions() {
+        Options options = new Options();
+        options.addOption(OptionBuilder.withDescription("crawl to a maximum depth of n")
+                .hasArg()
+                .withArgName("n")
+                .withType(Integer.class)
+                .create(DEPTH_FLAG));
+        options.addOption(OUTBOUND_FLAG, false, "crawl outbound links");
+        options.addOption(PARALLEL_FLAG, false, "scrape pages in parallel");
+        options.addOption(OptionBuilder.withDescription(
+                "pick responsive image variants by policy: largest, above:w or closest:w")
+                .hasArg()
+                .withArgName("policy")
+                .create(RESOLUTION_FLAG));
+        options.addOption(OptionBuilder.withDescription(
+                "download images of at least n bytes in concurrent byte ranges")
+                .hasArg()
+                .withArgName("n")
+                .withType(Long.class)
+                .create(RANGE_THRESHOLD_FLAG));
+        options.addOption(OptionBuilder.withDescription(
+                "use at most n concurrent range requests per image")
+                .hasArg()
+                .withArgName("n")
+                .withType(Integer.class)
+                .create(RANGE_CONNECTIONS_FLAG));
+        options.addOption(OptionBuilder.withDescription(
+                "write a JSON lines record of every fetch to file")
+                .hasArg()
+                .withArgName("file")
+                .create(MANIFEST_FLAG));
+        options.addOption(OptionBuilder.withDescription("stop the crawl after s seconds")
+                .hasArg()
+                .withArgName("s")
+                .withType(Integer.class)
+                .create(TIMEOUT_FLAG));
+        options.addOption(OptionBuilder.withDescription(
+                "give up connecting to a server after s seconds")
+                .hasArg()
+                .withArgName("s")
+                .withType(Integer.class)
+                .create(CONNECT_TIMEOUT_FLAG));
+        options.addOption(OptionBuilder.withDescription(
+                "give up on a request after s seconds without data")
+                .hasArg()
+                .withArgName("s")
+                .withType(Integer.class)
+                .create(READ_TIMEOUT_FLAG));
+        options.addOption(OptionBuilder.withDescription(
+                "give up on a request after s seconds in total")
+                .hasArg()
+                .withArgName("s")
+                .withType(Integer.class)
+                .create(REQUEST_TIMEOUT_FLAG));
+        options.addOption(BEST_FIRST_FLAG, false,
+                "fetch the pages most likely to yield new images first");
+        options.addOption(OptionBuilder.withDescription("fetch at most n pages")
+                .hasArg()
+                .withArgName("n")
+                .withType(Integer.class)
+                .create(MAX_PAGES_FLAG));
+        options.addOption(OptionBuilder.withDescription(
+                "store images in indexed tar packs of about n MB instead of one file each")
+                .hasArg()
+                .withArgName("n")
+                .withType(Long.class)
+                .create(PACK_SIZE_FLAG));
+        options.addOption(OptionBuilder.withDescription("write at most n packs concurrently")
+                .hasArg()
+                .withArgName("n")
+                .withType(Integer.class)
+                .create(PACK_WRITERS_FLAG));
+        options.addOption(OptionBuilder.withDescription(
+                "record every response of the crawl into an archive")
+                .hasArg()
+                .withArgName("file")
+                .create(RECORD_FLAG));
+        options.addOption(OptionBuilder.withDescription(
+                "serve the crawl from a recorded archive instead of the web")
+                .hasArg()
+                .withArgName("file")
+                .create(REPLAY_FLAG));
+        options.addOption(OptionBuilder.withDescription(
+                "delay each replayed response by ms milliseconds")
+                .hasArg()
+                .withArgName("ms")
+                .withType(Long.class)
+                .create(REPLAY_LATENCY_FLAG));
+        options.addOption(OptionBuilder.withDescription(
+                "replay each response at no more than n KB/s")
+                .hasArg()
+                .withArgName("n")
+                .withType(Long.class)
+                .create(REPLAY_BANDWIDTH_FLAG));
+        options.addOption(OptionBuilder.withDescription(
+                "retry a request that fails transiently at most n times")
+                .hasArg()
+                .withArgName("n")
+                .withType(Integer.class)
+                .create(RETRIES_FLAG));
+        options.addOption(OptionBuilder.withDescription(
+                "stop requesting from a host after n consecutive failures (0 never stops)")
+                .hasArg()
+                .withArgName("n")
+                .withType(Integer.class)
+                .create(BREAKER_THRESHOLD_FLAG));
+        options.addOption(OptionBuilder.withDescription(
+                "try a failing host again after s seconds")
+                .hasArg()
+                .withArgName("s")
+                .withType(Integer.class)
+                .create(BREAKER_COOLDOWN_FLAG));
+        options.addOption(OptionBuilder.withDescription(
+                "stop following links like those of n near-duplicate pages (default: never)")
+                .hasArg()
+                .withArgName("n")
+                .withType(Integer.class)
+                .create(TRAP_THRESHOLD_FLAG));
+        options.addOption(OptionBuilder.withDescription(
+                "only follow links matching a rule of each kind given: host:suffix, "
+                        + "path:glob, regex:pattern or query:name[=value] (repeatable)")
+                .hasArg()
+                .withArgName("rule")
+                .create(INCLUDE_FLAG));
+        options.addOption(OptionBuilder.withDescription(
+                "never follow links matching rule (repeatable)")
+                .hasArg()
+                .withArgName("rule")
+                .create(EXCLUDE_FLAG));
+        options.addOption(OptionBuilder.withDescription(
+                "abort pages larger than n MB (0 for no limit)")
+                .hasArg()
+                .withArgName("n")
+                .withType(Long.class)
+                .create(MAX_PAGE_SIZE_FLAG));
+        options.addOption(IMAGE_LINKS_FLAG, false,
+                "download links that point straight at images as images");
+        return options;
+    }
+
+    /**
+     * Converts a flag value in whole seconds to milliseconds.
+     *
+     * @param seconds The flag value.
+     * @throws java.lang.NumberFormatException if the value is not an integer.
+     * @return the value in milliseconds.
+     */
+    private static long secondsToMillis(String seconds) throws NumberFormatException {
+        return Integer.valueOf(seconds) * 1000L;
+    }
+
+    /**
+     * Parses the value of the resolution flag into an {@link com.killeent.ImageResolutionPolicy}.
+     *
+     * @param value One of "largest", "above:w" or "closest:w", where w is a width in pixels.
+     * @throws java.lang.IllegalArgumentException if the value is not a valid policy.
+     * @return the policy.
+     */
+    private static ImageResolutionPolicy parseResolutionPolicy(String value)
+            throws IllegalArgumentException {
+        if (value.equals("largest")) {
+            return ImageResolutionPolicy.largest();
+        }
+        int separator = value.indexOf(':');
+        if (separator > 0) {
+            String mode = value.substring(0, separator);
+            int width = Integer.valueOf(value.substring(separator + 1));
+            if (mode.equals("above")) {
+                return ImageResolutionPolicy.smallestAbove(width);
+            } else if (mode.equals("closest")) {
+                return ImageResolutionPolicy.closestTo(width);
+            }
+        }
+        throw new IllegalArgumentException(
+                String.format("Invalid call to reggie: unknown resolution policy %s", value));
+    }
+
     /**
      * Prints the CLI usage specifications.
      */
     private static void usage() {
-        System.out.println("Usage: java Reggie [--depth=n | -outbound | -p ] uri output_directory");
+        new HelpFormatter().printHelp(
+                "java Reggie [options] uri output_directory", commandLineOptions());
     }
 }
@@ -0,0 +1,298 @@
+package com.killeent;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serves a crawl from an archive recorded by {@link com.killeent.RecordingFetcher}, without
+ * touching the network. Recorded responses are served as they were received, headers, content
+ * encoding and all, so a replayed crawl does the same work as the original one.
+ *
+ * To make replays useful for performance testing, each response can be delayed by a fixed
+ * latency before its first byte and its body throttled to a fixed bandwidth. Simulated delays
+ * honor the connection's read timeout and are cut short if the connection is disconnected, as
+ * they would be on a real socket. Requests that are not in the archive fail with an
+ * IOException, as do reads past the end of a body that was truncated when it was recorded;
+ * non-HTTP URLs are fetched live.
+ */
+public class ReplayFetcher implements Fetcher {
+
+    private static final long MAX_SLEEP = 10;  // ms, so that disconnects are noticed quickly
+
+    private final FileChannel data;
+    private final Map<String, long[]> index;
+    private final long latency;
+    private final long bandwidth;
+    private final Fetcher live;
+
+    /**
+     * Opens an archive for replay.
+     *
+     * @param archive The path of the archive.
+     * @param latency The simulated time to first byte of each response, in milliseconds.
+     * @param bandwidth The simulated bandwidth of each connection, in bytes per second. 0 for
+     *                  unlimited.
+     * @throws java.io.IOException if the archive cannot be read.
+     */
+    public ReplayFetcher(String archive, long latency, long bandwidth) throws IOException {
+        this.index = FetchArchive.readIndex(FetchArchive.indexPath(archive));
+        this.data = FileChannel.open(Paths.get(archive), StandardOpenOption.READ);
+        this.latency = latency;
+        this.bandwidth = bandwidth;
+        this.live = new LiveFetcher();
+    }
+
+    @Override
+    public URLConnection open(URL url) throws IOException {
+        if (!url.getProtocol().startsWith("http")) {
+            return live.open(url);
+        }
+        return new ReplayConnection(url);
+    }
+
+    @Override
+    public void close() throws IOException {
+        data.close();
+    }
+
+    /**
+     * @return the recorded response to the request with the given key, or null if there is none.
+     */
+    private FetchArchive.Response find(String key) throws IOException {
+        long[] entry = index.get(key);
+        if (entry == null) {
+            return null;
+        }
+        ByteBuffer record = ByteBuffer.allocate((int) entry[1]);
+        long position = entry[0];
+        while (record.hasRemaining()) {
+            int read = data.read(record, position);
+            if (read < 0) {
+                throw new EOFException(String.format("Truncated fetch archive at %d", position));
+            }
+            position += read;
+        }
+        return FetchArchive.Response.fromRecord(record.array());
+    }
+
+    /**
+     * A connection that serves a recorded response.
+     */
+    private class ReplayConnection extends HttpURLConnection {
+
+        private FetchArchive.Response response;
+        private volatile boolean disconnected;
+
+        private ReplayConnection(URL url) {
+            super(url);
+        }
+
+        @Override
+        public synchronized void connect() throws IOException {
+            if (connected) {
+                return;
+            }
+            String key = FetchArchive.key(method, url.toString(), getRequestProperty("Range"));
+            response = find(key);
+            if (response == null) {
+                throw new IOException(String.format("Not in the fetch archive: %s", key));
+            }
+            int timeout = getReadTimeout();
+            if (timeout > 0 && latency > timeout) {
+                pause(timeout);
+                throw new SocketTimeoutException("Read timed out");
+            }
+            pause(latency);
+            connected = true;
+        }
+
+        @Override
+        public void disconnect() {
+            disconnected = true;
+        }
+
+        @Override
+        public boolean usingProxy() {
+            return false;
+        }
+
+        @Override
+        public int getResponseCode() throws IOException {
+            connect();
+            return response.getStatus();
+        }
+
+        @Override
+        public String getResponseMessage() throws IOException {
+            connect();
+            return response.getMessage();
+        }
+
+        @Override
+        public String getHeaderField(String name) {
+            if (!ensureConnected()) {
+                return null;
+            }
+            String value = null;
+            for (String[] header : response.getHeaders()) {
+                if (header[0].equalsIgnoreCase(name)) {
+                    value = header[1];
+                }
+            }
+            return value;
+        }
+
+        @Override
+        public String getHeaderFieldKey(int n) {
+            if (!ensureConnected() || n < 1 || n > response.getHeaders().size()) {
+                return null;
+            }
+            return response.getHeaders().get(n - 1)[0];
+        }
+
+        @Override
+        public String getHeaderField(int n) {
+            if (!ensureConnected() || n < 0 || n > response.getHeaders().size()) {
+                return null;
+            }
+            if (n == 0) {
+                return String.format("HTTP/1.1 %d %s", response.getStatus(),
+                        response.getMessage() == null ? "" : response.getMessage());
+            }
+            return response.getHeaders().get(n - 1)[1];
+        }
+
+        @Override
+        public Map<String, List<String>> getHeaderFields() {
+            if (!ensureConnected()) {
+                return Collections.emptyMap();
+            }
+            Map<String, List<String>> fields = new LinkedHashMap<String, List<String>>();
+            for (String[] header : response.getHeaders()) {
+                List<String> values = fields.get(header[0]);
+                if (values == null) {
+                    values = new ArrayList<String>();
+                    fields.put(header[0], values);
+                }
+                values.add(header[1]);
+            }
+            return Collections.unmodifiableMap(fields);
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            connect();
+            int status = response.getStatus();
+            if (status == HTTP_NOT_FOUND || status == HTTP_GONE) {
+                throw new FileNotFoundException(url.toString());
+            } else if (status >= HTTP_BAD_REQUEST) {
+                throw new IOException(String.format(
+                        "Server returned HTTP response code: %d for URL: %s", status, url));
+            }
+            return new ThrottledInputStream(response.getBody(), response.isTruncated());
+        }
+
+        /**
+         * Connects if need be, for the header accessors, which can't throw.
+         */
+        private boolean ensureConnected() {
+            try {
+                connect();
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        /**
+         * Sleeps, failing like a socket would if the connection is disconnected meanwhile.
+         */
+        private void pause(long millis) throws IOException {
+            long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+            long remaining;
+            while ((remaining = end - System.nanoTime()) > 0) {
+                if (disconnected) {
+                    throw new SocketException("Socket closed");
+                }
+                try {
+                    Thread.sleep(Math.min(TimeUnit.NANOSECONDS.toMillis(remaining) + 1, MAX_SLEEP));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted during simulated delay");
+                }
+            }
+            if (disconnected) {
+                throw new SocketException("Socket closed");
+            }
+        }
+
+        /**
+         * Serves a recorded body no faster than the simulated bandwidth allows.
+         */
+        private class ThrottledInputStream extends InputStream {
+
+            private final byte[] body;
+            private final boolean truncated;
+            private final long start;
+            private int position;
+
+            private ThrottledInputStream(byte[] body, boolean truncated) {
+                this.body = body;
+                this.truncated = truncated;
+                this.start = System.nanoTime();
+            }
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (disconnected) {
+                    throw new SocketException("Socket closed");
+                }
+                if (position >= body.length) {
+                    if (truncated) {
+                        throw new EOFException(String.format(
+                                "Response truncated at byte %d when it was recorded: %s",
+                                position, url));
+                    }
+                    return -1;
+                }
+                int n = Math.min(len, body.length - position);
+                if (bandwidth > 0) {
+                    // serve about 10ms worth of data at a time
+                    n = (int) Math.min(n, Math.max(1, bandwidth / 100));
+                }
+                System.arraycopy(body, position, b, off, n);
+                position += n;
+                if (bandwidth > 0) {
+                    long due = position * 1000L / bandwidth;
+                    pause(due - (System.nanoTime() - start) / 1000000);
+                }
+                return n;
+            }
+
+            @Override
+            public int available() {
+                return body.length - position;
+            }
+        }
+    }
+}
@@ -0,0 +1,325 @@
+package com.killeent;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.NoRouteToHostException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Wraps another fetcher with retries and per-host circuit breaking.
+ *
+ * A request that fails before its response arrives with a transient error (a timeout, a
+ * refused or reset connection), or that is answered with 429 Too Many Requests or 503 Service
+ * Unavailable, is retried a bounded number of times. Retries wait with jittered exponential
+ * backoff, or as long as the server asked in its Retry-After header. Failures that are not
+ * going to go away (e.g. an unknown host, a 404) are not retried.
+ *
+ * Every outcome is reported to a {@link com.killeent.HostCircuitBreaker}, and requests to
+ * hosts whose circuit is open fail straight away, leaving workers free for healthy hosts.
+ * Trial requests that end without an outcome, because they were disconnected or could not be
+ * sent, are released without counting against the host.
+ * Responses whose body fails part way through are not retried, since the caller has already
+ * started consuming them.
+ */
+public class ResilientFetcher implements Fetcher {
+
+    private static final long MAX_SLEEP = 50;  // ms, so that disconnects are noticed quickly
+
+    private final Fetcher fetcher;
+    private final int maxRetries;
+    private final long baseDelay;
+    private final long maxDelay;
+    private final HostCircuitBreaker breaker;
+    private final CrawlStats stats;
+
+    /**
+     * @param fetcher The fetcher to wrap.
+     * @param maxRetries The maximum number of times a request is retried.
+     * @param baseDelay The backoff before the first retry, in milliseconds. Doubles with each
+     *                  retry.
+     * @param maxDelay The longest we wait before a retry, in milliseconds. A request whose
+     *                 server asks us to wait longer fails instead.
+     * @param breaker The circuit breaker to consult and report to.
+     * @param stats The stats of the crawl, in which retries and shed requests are counted.
+     */
+    public ResilientFetcher(Fetcher fetcher, int maxRetries, long baseDelay, long maxDelay,
+                            HostCircuitBreaker breaker, CrawlStats stats) {
+        this.fetcher = fetcher;
+        this.maxRetries = maxRetries;
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+        this.breaker = breaker;
+        this.stats = stats;
+    }
+
+    @Override
+    public URLConnection open(URL url) throws IOException {
+        if (!url.getProtocol().startsWith("http")) {
+            return fetcher.open(url);
+        }
+        return new ResilientConnection(url);
+    }
+
+    @Override
+    public void close() throws IOException {
+        fetcher.close();
+    }
+
+    /**
+     * @return the backoff before the given retry: a random delay between half and all of
+     * baseDelay * 2^retry, so that requests that failed together don't all come back at once.
+     */
+    long backoff(int retry) {
+        long ceiling = Math.min(maxDelay, baseDelay << Math.min(retry, 30));
+        return ThreadLocalRandom.current().nextLong(ceiling / 2, ceiling + 1);
+    }
+
+    /**
+     * Parses a Retry-After header value, which is either a number of seconds or an HTTP date.
+     *
+     * @param value The header value. May be null.
+     * @return the requested delay in milliseconds, or -1 if the value is missing or invalid.
+     */
+    static long parseRetryAfter(String value) {
+        if (value == null) {
+            return -1;
+        }
+        value = value.trim();
+        try {
+            return Math.max(0, Long.parseLong(value) * 1000);
+        } catch (NumberFormatException e) {
+            // not a number of seconds, so it should be a date
+        }
+        try {
+            ZonedDateTime date = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME);
+            return Math.max(0, date.toInstant().toEpochMilli() - System.currentTimeMillis());
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return true if a request that failed with e may succeed if we try again.
+     */
+    private static boolean isTransient(IOException e) {
+        if (e instanceof SocketTimeoutException) {
+            return true;
+        }
+        if (e instanceof InterruptedIOException) {
+            return false;  // the crawl was cancelled
+        }
+        return e instanceof ConnectException
+                || e instanceof NoRouteToHostException
+                || e instanceof SocketException;
+    }
+
+    private static boolean isOverloaded(int status) {
+        return status == 429 || status == HttpURLConnection.HTTP_UNAVAILABLE;
+    }
+
+    /**
+     * A connection that keeps the request it is given, and sends it as many times as it takes
+     * to get an answer when the response is first asked for.
+     */
+    private class ResilientConnection extends HttpURLConnection {
+
+        private volatile HttpURLConnection delegate;
+        private volatile boolean disconnected;
+
+        private ResilientConnection(URL url) {
+            super(url);
+        }
+
+        @Override
+        public synchronized void connect() throws IOException {
+            if (connected) {
+                return;
+            }
+            String host = url.getHost();
+            for (int attempt = 0; ; attempt++) {
+                boolean trial;
+                try {
+                    trial = breaker.acquire(host);
+                } catch (IOException e) {
+                    stats.requestShed();
+                    throw e;
+                }
+                boolean reported = false;
+                long delay;
+                try {
+                    HttpURLConnection candidate = prepare();
+                    delegate = candidate;
+                    int status = candidate.getResponseCode();
+                    if (!isOverloaded(status) && status < HttpURLConnection.HTTP_INTERNAL_ERROR) {
+                        breaker.success(host);
+                        reported = true;
+                        connected = true;
+                        return;
+                    }
+                    long retryAfter = parseRetryAfter(candidate.getHeaderField("Retry-After"));
+                    breaker.failure(host, isOverloaded(status) ? Math.max(0, retryAfter) : 0);
+                    reported = true;
+                    if (!isOverloaded(status) || attempt >= maxRetries || retryAfter > maxDelay) {
+                        // let the caller see the response
+                        connected = true;
+                        return;
+                    }
+                    delay = retryAfter >= 0 ? retryAfter : backoff(attempt);
+                    candidate.disconnect();
+                } catch (IOException e) {
+                    if (disconnected) {
+                        throw e;  // aborted, which says nothing about the host
+                    }
+                    breaker.failure(host, 0);
+                    reported = true;
+                    if (!isTransient(e) || attempt >= maxRetries) {
+                        throw e;
+                    }
+                    delay = backoff(attempt);
+                } catch (RuntimeException e) {
+                    if (!disconnected) {
+                        throw e;
+                    }
+                    // HttpURLConnection isn't safe to disconnect from another thread while it
+                    // reads the response headers, and can fail with a NullPointerException
+                    InterruptedIOException aborted = new InterruptedIOException(
+                            String.format("Request aborted: %s", url));
+                    aborted.initCause(e);
+                    throw aborted;
+                } finally {
+                    if (trial && !reported) {
+                        // don't leave the host's circuit waiting on a trial that never ends
+                        breaker.release(host);
+                    }
+                }
+                stats.requestRetried();
+                pause(delay);
+            }
+        }
+
+        /**
+         * Opens a connection for the next attempt, with this connection's request.
+         */
+        private HttpURLConnection prepare() throws IOException {
+            if (disconnected) {
+                throw new SocketException("Socket closed");
+            }
+            HttpURLConnection candidate = (HttpURLConnection) fetcher.open(url);
+            candidate.setRequestMethod(method);
+            candidate.setConnectTimeout(getConnectTimeout());
+            candidate.setReadTimeout(getReadTimeout());
+            candidate.setInstanceFollowRedirects(getInstanceFollowRedirects());
+            for (Map.Entry<String, List<String>> property : getRequestProperties().entrySet()) {
+                for (String value : property.getValue()) {
+                    candidate.addRequestProperty(property.getKey(), value);
+                }
+            }
+            return candidate;
+        }
+
+        /**
+         * Waits before a retry, failing like a socket would if we are disconnected meanwhile.
+         */
+        private void pause(long millis) throws IOException {
+            long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+            long remaining;
+            while ((remaining = end - System.nanoTime()) > 0 && !disconnected) {
+                try {
+                    Thread.sleep(Math.min(TimeUnit.NANOSECONDS.toMillis(remaining) + 1, MAX_SLEEP));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while backing off");
+                }
+            }
+            if (disconnected) {
+                throw new SocketException("Socket closed");
+            }
+        }
+
+        @Override
+        public void disconnect() {
+            disconnected = true;
+            HttpURLConnection current = delegate;
+            if (current != null) {
+                current.disconnect();
+            }
+        }
+
+        @Override
+        public boolean usingProxy() {
+            HttpURLConnection current = delegate;
+            return current != null && current.usingProxy();
+        }
+
+        @Override
+        public int getResponseCode() throws IOException {
+            connect();
+            return delegate.getResponseCode();
+        }
+
+        @Override
+        public String getResponseMessage() throws IOException {
+            connect();
+            return delegate.getResponseMessage();
+        }
+
+        @Override
+        public String getHeaderField(String name) {
+            return ensureConnected() ? delegate.getHeaderField(name) : null;
+        }
+
+        @Override
+        public String getHeaderFieldKey(int n) {
+            return ensureConnected() ? delegate.getHeaderFieldKey(n) : null;
+        }
+
+        @Override
+        public String getHeaderField(int n) {
+            return ensureConnected() ? delegate.getHeaderField(n) : null;
+        }
+
+        @Override
+        public Map<String, List<String>> getHeaderFields() {
+            return ensureConnected() ?
+                    delegate.getHeaderFields() :
+                    super.getHeaderFields();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            connect();
+            return delegate.getInputStream();
+        }
+
+        @Override
+        public InputStream getErrorStream() {
+            HttpURLConnection current = delegate;
+            return connected && current != null ? current.getErrorStream() : null;
+        }
+
+        /**
+         * Connects if need be, for the header accessors, which can't throw.
+         */
+        private boolean ensureConnected() {
+            try {
+                connect();
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.killeent;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.net.URL;
+
+/**
+ * An image downloaded into memory by a crawl, e.g. to be published by an
+ * {@link com.killeent.ImagePublisher}, which never writes it to disk.
+ */
+public class ScrapedImage {
+
+    private final URL url;
+    private final String page;
+    private final int depth;
+    private final String contentType;
+    private final long latencyMillis;
+    private final byte[] data;
+
+    /**
+     * @param url The URL of the image.
+     * @param page The URL of the page the image was found on.
+     * @param depth The depth of that page.
+     * @param contentType The content type the server gave the image, or null.
+     * @param latencyMillis How long the image took to download.
+     * @param data The image.
+     */
+    public ScrapedImage(URL url, String page, int depth, String contentType,
+                        long latencyMillis, byte[] data) {
+        this.url = url;
+        this.page = page;
+        this.depth = depth;
+        this.contentType = contentType;
+        this.latencyMillis = latencyMillis;
+        this.data = data;
+    }
+
+    public URL getURL() {
+        return url;
+    }
+
+    /**
+     * @return the URL of the page the image was found on.
+     */
+    public String getPage() {
+        return page;
+    }
+
+    /**
+     * @return the depth of the page the image was found on.
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * @return the content type the server gave the image, or null if it gave none.
+     */
+    public String getContentType() {
+        return contentType;
+    }
+
+    public long getLatencyMillis() {
+        return latencyMillis;
+    }
+
+    /**
+     * @return the size of the image in bytes.
+     */
+    public int getLength() {
+        return data.length;
+    }
+
+    /**
+     * @return the image. The array is not copied; do not modify it.
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    /**
+     * @return a stream over the image.
+     */
+    public InputStream openStream() {
+        return new ByteArrayInputStream(data);
+    }
+}
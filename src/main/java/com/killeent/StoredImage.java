@@ -0,0 +1,34 @@
+package com.killeent;
+
+/**
+ * An image written to an {@link com.killeent.ImageStore}.
+ */
+public class StoredImage {
+
+    private final String location;
+    private final long bytes;
+
+    /**
+     * @param location Where the image was stored.
+     * @param bytes The size of the image.
+     */
+    public StoredImage(String location, long bytes) {
+        this.location = location;
+        this.bytes = bytes;
+    }
+
+    /**
+     * @return where the image was stored: a file path, "pack:offset" for pack files,
+     * or "subscriber" for images handed to an {@link com.killeent.ImagePublisher}.
+     */
+    public String getLocation() {
+        return location;
+    }
+
+    /**
+     * @return the size of the image in bytes.
+     */
+    public long getBytes() {
+        return bytes;
+    }
+}
@@ -0,0 +1,256 @@
+package com.killeent;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Spots pages that are near-duplicates of pages already crawled, and the URL patterns that keep
+ * producing them. Calendars, faceted search and session IDs in URLs generate endless distinct
+ * URLs with essentially the same content; without this, they eat the crawl's budget.
+ *
+ * Each page is summarized by a 64 bit SimHash of its text, links and images. Pages whose
+ * fingerprints differ in at most {@value #MAX_DISTANCE} bits are near-duplicates. Every
+ * near-duplicate is charged to the URL pattern of its page (its host and path with numbers and
+ * query values wiped out); once a pattern has been charged threshold times it is flagged as a
+ * trap, and links matching it are no longer fetched.
+ *
+ * Safe to use from multiple threads.
+ */
+public class TrapDetector {
+
+    // Fingerprints at most this many bits apart are near-duplicates
+    private static final int MAX_DISTANCE = 3;
+
+    // Fingerprints are indexed by each of their 16 bit bands. Two fingerprints at most
+    // MAX_DISTANCE bits apart agree on at least one of the bands, so only the fingerprints
+    // sharing a band with a page need to be compared with it.
+    private static final int BANDS = 4;
+    private static final int BAND_BITS = 64 / BANDS;
+
+    // Pages with fewer features than this are too small to be told apart reliably
+    private static final int MIN_FEATURES = 8;
+
+    // Number of consecutive words in a text feature
+    private static final int SHINGLE = 3;
+
+    private final int threshold;
+    private final CrawlStats stats;
+    private final Map<Integer, List<Long>> index;
+    private final Map<String, Integer> duplicatesOfPattern;
+    private final Set<String> traps;
+
+    /**
+     * @param threshold The number of near-duplicates after which a URL pattern is a trap.
+     * @param stats The stats of the crawl.
+     */
+    public TrapDetector(int threshold, CrawlStats stats) {
+        this.threshold = threshold;
+        this.stats = stats;
+        this.index = new HashMap<Integer, List<Long>>();
+        this.duplicatesOfPattern = new HashMap<String, Integer>();
+        this.traps = new HashSet<String>();
+    }
+
+    /**
+     * Computes the SimHash fingerprint of a page: every feature of the page votes on each bit
+     * of the fingerprint with the corresponding bit of its own hash.
+     *
+     * @param text The text of the page. Contributes every run of {@value #SHINGLE} words,
+     *             with numbers wiped out.
+     * @param links The links on the page. Contribute their URL patterns, so links that only
+     *              differ in a date or session ID count as the same.
+     * @param images The images on the page.
+     * @return the fingerprint, or 0 if the page has too few features to fingerprint.
+     */
+    public static long fingerprint(String text, Collection<String> links,
+                                   Collection<String> images) {
+        int[] votes = new int[64];
+        int features = 0;
+
+        // numbers are wiped out, as they are what tells apart the pages of most traps
+        String[] words = text.toLowerCase(Locale.ROOT)
+                .replaceAll("[0-9]+", "0")
+                .split("[^\\p{L}\\p{N}]+");
+        List<String> tokens = new ArrayList<String>(words.length);
+        for (String word : words) {
+            if (!word.isEmpty()) {
+                tokens.add(word);
+            }
+        }
+        int shingles = tokens.isEmpty() ? 0 : Math.max(1, tokens.size() - SHINGLE + 1);
+        for (int i = 0; i < shingles; i++) {
+            StringBuilder shingle = new StringBuilder("t:");
+            for (int j = i; j < Math.min(i + SHINGLE, tokens.size()); j++) {
+                shingle.append(tokens.get(j)).append(' ');
+            }
+            vote(votes, shingle.toString());
+            features++;
+        }
+        for (String link : links) {
+            vote(votes, "l:" + pattern(link));
+            features++;
+        }
+        for (String image : images) {
+            vote(votes, "i:" + image);
+            features++;
+        }
+        if (features < MIN_FEATURES) {
+            return 0;
+        }
+
+        long fingerprint = 0;
+        for (int bit = 0; bit < 64; bit++) {
+            if (votes[bit] > 0) {
+                fingerprint |= 1L << bit;
+            }
+        }
+        return fingerprint;
+    }
+
+    /**
+     * Records a crawled page, and checks whether it is a near-duplicate of one crawled before.
+     *
+     * @param page The URL of the page.
+     * @param fingerprint The fingerprint of the page, from
+     *                    {@link #fingerprint(String, java.util.Collection, java.util.Collection)}.
+     * @return true if the page is a near-duplicate, in which case its links should be dropped.
+     */
+    public synchronized boolean isNearDuplicate(URL page, long fingerprint) {
+        if (fingerprint == 0) {
+            return false;
+        }
+        if (!hasNearDuplicate(fingerprint)) {
+            // only distinct pages are indexed, so a trap doesn't grow the index
+            for (int band = 0; band < BANDS; band++) {
+                List<Long> bucket = index.get(bandKey(fingerprint, band));
+                if (bucket == null) {
+                    bucket = new ArrayList<Long>(1);
+                    index.put(bandKey(fingerprint, band), bucket);
+                }
+                bucket.add(fingerprint);
+            }
+            return false;
+        }
+
+        stats.nearDuplicateFound();
+        String pattern = pattern(page.toString());
+        Integer count = duplicatesOfPattern.get(pattern);
+        count = count == null ? 1 : count + 1;
+        duplicatesOfPattern.put(pattern, count);
+        if (count == threshold && traps.add(pattern)) {
+            stats.trapFlagged(pattern);
+        }
+        return true;
+    }
+
+    /**
+     * Checks whether a link leads into a flagged trap. Links that do are counted as skipped.
+     *
+     * @param link The link.
+     * @return true if the link should not be fetched.
+     */
+    public synchronized boolean isTrap(URL link) {
+        if (traps.isEmpty() || !traps.contains(pattern(link.toString()))) {
+            return false;
+        }
+        stats.trapLinkSkipped();
+        return true;
+    }
+
+    /**
+     * Reduces a URL to a pattern shared by the URLs a trap generates: the fragment and any
+     * path parameters (e.g. ";jsessionid=...") are dropped, runs of digits in the path become
+     * "N", and the query keeps only its sorted parameter names.
+     *
+     * @param url The URL.
+     * @return the pattern of the URL.
+     */
+    static String pattern(String url) {
+        int end = url.indexOf('#');
+        if (end >= 0) {
+            url = url.substring(0, end);
+        }
+        String query = null;
+        int q = url.indexOf('?');
+        if (q >= 0) {
+            query = url.substring(q + 1);
+            url = url.substring(0, q);
+        }
+        int semicolon = url.indexOf(';');
+        if (semicolon >= 0) {
+            url = url.substring(0, semicolon);
+        }
+        StringBuilder pattern = new StringBuilder(
+                url.toLowerCase(Locale.ROOT).replaceAll("[0-9]+", "N"));
+        if (query != null && !query.isEmpty()) {
+            String[] params = query.split("&");
+            for (int i = 0; i < params.length; i++) {
+                int equals = params[i].indexOf('=');
+                params[i] = equals < 0 ? params[i] : params[i].substring(0, equals);
+            }
+            Arrays.sort(params);
+            pattern.append('?');
+            for (int i = 0; i < params.length; i++) {
+                pattern.append(i == 0 ? "" : "&").append(params[i]).append('=');
+            }
+        }
+        return pattern.toString();
+    }
+
+    /**
+     * @return the number of bits in which two fingerprints differ.
+     */
+    static int distance(long a, long b) {
+        return Long.bitCount(a ^ b);
+    }
+
+    private boolean hasNearDuplicate(long fingerprint) {
+        for (int band = 0; band < BANDS; band++) {
+            List<Long> bucket = index.get(bandKey(fingerprint, band));
+            if (bucket == null) {
+                continue;
+            }
+            for (long other : bucket) {
+                if (distance(fingerprint, other) <= MAX_DISTANCE) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static int bandKey(long fingerprint, int band) {
+        int value = (int) (fingerprint >>> (band * BAND_BITS)) & ((1 << BAND_BITS) - 1);
+        return band << BAND_BITS | value;
+    }
+
+    private static void vote(int[] votes, String feature) {
+        long hash = hash(feature);
+        for (int bit = 0; bit < 64; bit++) {
+            votes[bit] += ((hash >>> bit) & 1) == 1 ? 1 : -1;
+        }
+    }
+
+    /**
+     * 64 bit FNV-1a, finished with a mixing step so that similar features give unrelated bits.
+     */
+    private static long hash(String feature) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < feature.length(); i++) {
+            hash ^= feature.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,321 @@
+package com.killeent;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact set of URLs, each identified by a dense int ID. Crawls discover millions of URLs
+ * that share a scheme, host and long path prefixes, so rather than one String object per URL:
+ *
+ * - the scheme and host of each URL are interned and stored once, as an int host ID,
+ * - the rest of the URL is stored as UTF-8 bytes, front coded against the previous URL added
+ *   for the same host: only the length of the prefix they share and the differing suffix are
+ *   kept. Every {@value #RESTART_INTERVAL}th URL of a host is stored in full, which bounds the
+ *   work needed to decode a URL,
+ * - all of it is packed into large byte array chunks, with the offset of each URL in a
+ *   chunked long array. A URL costs a handful of bytes plus its suffix, and no objects.
+ *
+ * Membership is checked through an open addressing hash table of IDs, so the store doubles as
+ * the visited set of a crawl. Safe to use from multiple threads.
+ */
+public class UrlStore {
+
+    private static final int CHUNK_SIZE = 1 << 20;        // bytes per data chunk
+    private static final int INDEX_CHUNK_SIZE = 1 << 12;  // offsets per index chunk
+    private static final int RESTART_INTERVAL = 16;
+    private static final int INITIAL_TABLE_SIZE = 1024;   // must be a power of two
+
+    private byte[][] chunks;
+    private int chunkCount;
+    private int chunkPosition;       // write position in the last chunk
+    private long[][] offsets;        // chunk << 32 | position of every URL
+    private int size;
+
+    private Map<String, Integer> hostIds;
+    private List<String> hosts;
+    private int[] lastOfHost;        // ID of the last URL added for each host
+    private int[] runOfHost;         // URLs added for each host since the last full one
+    private byte[][] lastPathOfHost; // the path of that URL
+
+    private int[] table;             // ID + 1 of the URL in each slot, 0 if empty
+    private int[] tableHashes;       // hash of the URL in each slot
+
+    private int cursorChunk;         // where the record being decoded is read from
+    private int cursorPosition;
+
+    public UrlStore() {
+        clear();
+    }
+
+    /**
+     * Removes every URL from the store and releases its memory.
+     */
+    public synchronized void clear() {
+        chunks = new byte[8][];
+        chunkCount = 0;
+        chunkPosition = 0;
+        offsets = new long[8][];
+        size = 0;
+        hostIds = new HashMap<String, Integer>();
+        hosts = new ArrayList<String>();
+        lastOfHost = new int[16];
+        runOfHost = new int[16];
+        lastPathOfHost = new byte[16][];
+        table = new int[INITIAL_TABLE_SIZE];
+        tableHashes = new int[INITIAL_TABLE_SIZE];
+    }
+
+    /**
+     * Adds a URL to the store, unless it is already there.
+     *
+     * @param url The URL.
+     * @return the ID of the URL, or -1 if the store already held it.
+     */
+    public synchronized int add(String url) {
+        int hash = url.hashCode();
+        int slot = findSlot(url, hash);
+        if (table[slot] != 0) {
+            return -1;
+        }
+        int id = append(url);
+        table[slot] = id + 1;
+        tableHashes[slot] = hash;
+        if (size * 2 > table.length) {
+            grow();
+        }
+        return id;
+    }
+
+    /**
+     * @param url The URL.
+     * @return true if the store holds url.
+     */
+    public synchronized boolean contains(String url) {
+        return table[findSlot(url, url.hashCode())] != 0;
+    }
+
+    /**
+     * @param id The ID of a URL in the store.
+     * @return the URL.
+     */
+    public synchronized String get(int id) {
+        if (id < 0 || id >= size) {
+            throw new IndexOutOfBoundsException(String.format("No URL with ID %d", id));
+        }
+        // walk back to the last URL of the host stored in full...
+        int[] chain = new int[RESTART_INTERVAL];
+        int length = 0;
+        int current = id;
+        int host;
+        while (true) {
+            chain[length++] = current;
+            seek(current);
+            host = readVarint();
+            int back = readVarint();
+            if (back == 0) {
+                break;
+            }
+            current -= back;
+        }
+        // ...then rebuild the path forwards from it
+        byte[] path = new byte[0];
+        for (int i = length - 1; i >= 0; i--) {
+            seek(chain[i]);
+            readVarint();
+            readVarint();
+            int prefix = readVarint();
+            int suffix = readVarint();
+            byte[] next = Arrays.copyOf(path, prefix + suffix);
+            System.arraycopy(chunks[cursorChunk], cursorPosition, next, prefix, suffix);
+            path = next;
+        }
+        return hosts.get(host) + new String(path, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the number of URLs in the store.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of distinct hosts in the store.
+     */
+    public synchronized int hostCount() {
+        return hosts.size();
+    }
+
+    /**
+     * Finds the slot of url in the hash table: the slot holding it if it is in the store,
+     * otherwise the empty slot it would go in.
+     */
+    private int findSlot(String url, int hash) {
+        int mask = table.length - 1;
+        int slot = mix(hash) & mask;
+        while (table[slot] != 0) {
+            if (tableHashes[slot] == hash && get(table[slot] - 1).equals(url)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void grow() {
+        int[] oldTable = table;
+        int[] oldHashes = tableHashes;
+        table = new int[oldTable.length * 2];
+        tableHashes = new int[oldTable.length * 2];
+        int mask = table.length - 1;
+        for (int i = 0; i < oldTable.length; i++) {
+            if (oldTable[i] == 0) {
+                continue;
+            }
+            int slot = mix(oldHashes[i]) & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = oldTable[i];
+            tableHashes[slot] = oldHashes[i];
+        }
+    }
+
+    /**
+     * Spreads the bits of String.hashCode(), whose low bits are poor for similar URLs.
+     */
+    private static int mix(int hash) {
+        hash *= 0x9e3779b9;
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Appends the record of a URL and returns its ID.
+     */
+    private int append(String url) {
+        int split = hostEnd(url);
+        byte[] path = url.substring(split).getBytes(StandardCharsets.UTF_8);
+        int host = hostId(url.substring(0, split));
+        int id = size;
+
+        int back = 0;
+        int prefix = 0;
+        byte[] previous = lastPathOfHost[host];
+        if (previous != null && runOfHost[host] < RESTART_INTERVAL - 1) {
+            back = id - lastOfHost[host];
+            int limit = Math.min(previous.length, path.length);
+            while (prefix < limit && previous[prefix] == path[prefix]) {
+                prefix++;
+            }
+            runOfHost[host]++;
+        } else {
+            runOfHost[host] = 0;
+        }
+        lastOfHost[host] = id;
+        lastPathOfHost[host] = path;
+
+        int suffix = path.length - prefix;
+        int length = varintLength(host) + varintLength(back) + varintLength(prefix)
+                + varintLength(suffix) + suffix;
+        if (chunkCount == 0 || chunkPosition + length > chunks[chunkCount - 1].length) {
+            newChunk(length);
+        }
+        byte[] chunk = chunks[chunkCount - 1];
+        int start = chunkPosition;
+        chunkPosition = writeVarint(chunk, chunkPosition, host);
+        chunkPosition = writeVarint(chunk, chunkPosition, back);
+        chunkPosition = writeVarint(chunk, chunkPosition, prefix);
+        chunkPosition = writeVarint(chunk, chunkPosition, suffix);
+        System.arraycopy(path, prefix, chunk, chunkPosition, suffix);
+        chunkPosition += suffix;
+
+        int index = id / INDEX_CHUNK_SIZE;
+        if (index == offsets.length) {
+            offsets = Arrays.copyOf(offsets, offsets.length * 2);
+        }
+        if (offsets[index] == null) {
+            offsets[index] = new long[INDEX_CHUNK_SIZE];
+        }
+        offsets[index][id % INDEX_CHUNK_SIZE] = ((long) (chunkCount - 1) << 32) | start;
+        size++;
+        return id;
+    }
+
+    private void newChunk(int length) {
+        if (chunkCount == chunks.length) {
+            chunks = Arrays.copyOf(chunks, chunks.length * 2);
+        }
+        // URLs longer than a chunk get a chunk of their own
+        chunks[chunkCount++] = new byte[Math.max(CHUNK_SIZE, length)];
+        chunkPosition = 0;
+    }
+
+    private int hostId(String host) {
+        Integer id = hostIds.get(host);
+        if (id != null) {
+            return id;
+        }
+        id = hosts.size();
+        hosts.add(host);
+        hostIds.put(host, id);
+        if (id == lastOfHost.length) {
+            lastOfHost = Arrays.copyOf(lastOfHost, id * 2);
+            runOfHost = Arrays.copyOf(runOfHost, id * 2);
+            lastPathOfHost = Arrays.copyOf(lastPathOfHost, id * 2);
+        }
+        return id;
+    }
+
+    /**
+     * @return the index at which the path of url starts, i.e. the end of its scheme and host.
+     */
+    private static int hostEnd(String url) {
+        int scheme = url.indexOf("://");
+        if (scheme < 0) {
+            return 0;
+        }
+        int slash = url.indexOf('/', scheme + 3);
+        return slash < 0 ? url.length() : slash;
+    }
+
+    private void seek(int id) {
+        long offset = offsets[id / INDEX_CHUNK_SIZE][id % INDEX_CHUNK_SIZE];
+        cursorChunk = (int) (offset >>> 32);
+        cursorPosition = (int) offset;
+    }
+
+    private int readVarint() {
+        byte[] chunk = chunks[cursorChunk];
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = chunk[cursorPosition++];
+            value |= (b & 0x7f) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+
+    private static int writeVarint(byte[] chunk, int position, int value) {
+        while ((value & ~0x7f) != 0) {
+            chunk[position++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        chunk[position++] = (byte) value;
+        return position;
+    }
+
+    private static int varintLength(int value) {
+        int length = 1;
+        while ((value & ~0x7f) != 0) {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+}
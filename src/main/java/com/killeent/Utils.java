@@ -2,6 +2,7 @@ package com.killeent;
 
 import java.io.*;
 import java.net.URL;
+import java.net.URLConnection;
 import java.nio.channels.Channels;
 import java.nio.channels.ReadableByteChannel;
 
@@ -31,14 +32,67 @@ public class Utils {
      * @return the HTML of that page, as a String.
      */
     public static String getHTML(URL url) throws IOException {
-        BufferedReader in = new BufferedReader(new InputStreamReader(url.openStream()));
-        StringBuilder result = new StringBuilder();
-        String inputLine;
-        while ((inputLine = in.readLine()) != null) {
-            result.append(inputLine);
+        FetchedPage page = openPage(url, new CrawlStats(), new CrawlDeadline(0, 0, 0, 0), 0);
+        try {
+            Reader reader = page.getCharset() == null ?
+                    new InputStreamReader(page.getBody()) :
+                    new InputStreamReader(page.getBody(), page.getCharset());
+            BufferedReader in = new BufferedReader(reader);
+            StringBuilder result = new StringBuilder();
+            String inputLine;
+            while ((inputLine = in.readLine()) != null) {
+                result.append(inputLine);
+            }
+            return result.toString();
+        } finally {
+            page.close();
         }
-        in.close();
-        return result.toString();
+    }
+
+    /**
+     * Opens a connection to the web page at the given URL. We ask the server for a compressed
+     * response and decode it on the fly, so the returned body can be streamed straight into
+     * {@link com.killeent.PageParser}.
+     *
+     * @param url The URL to connect to.
+     * @param stats The stats of the current crawl. Updated when the page is closed.
+     * @param deadline The deadline of the current crawl, which applies its timeouts.
+     * @param maxPageSize The largest page we accept in bytes, or 0 for no limit.
+     * @throws com.killeent.PageRejectedException if the response is not an HTML page or is
+     * larger than maxPageSize; the transfer is aborted.
+     * @throws java.io.IOException if we cannot connect to the URL for whatever reason.
+     * @return the open page. The caller must close it.
+     */
+    public static FetchedPage openPage(URL url, CrawlStats stats, CrawlDeadline deadline,
+                                       long maxPageSize) throws IOException {
+        URLConnection connection = deadline.open(url);
+        try {
+            connection.setRequestProperty("Accept-Encoding", ContentDecoder.ACCEPT_ENCODING);
+            return new FetchedPage(connection, deadline, stats, maxPageSize);
+        } catch (IOException e) {
+            deadline.release(connection);
+            throw e;
+        }
+    }
+
+    /**
+     * Extracts the charset parameter from a Content-Type header value.
+     *
+     * @param contentType The Content-Type header value. May be null.
+     * @return the charset, or null if there isn't one.
+     */
+    static String parseCharset(String contentType) {
+        if (contentType == null) {
+            return null;
+        }
+        for (String parameter : contentType.split(";")) {
+            parameter = parameter.trim();
+            if (parameter.toLowerCase().startsWith("charset=")) {
+                String charset = parameter.substring("charset=".length()).replace("\"", "").trim();
+                return charset.isEmpty() ? null : charset;
+            }
+        }
+        return null;
     }
 
     /**
@@ -71,11 +125,142 @@ public class Utils {
      * @param image The URL of the image to download.
      * @param path Local name of file to download the image to.
      * @throws java.io.IOException if we cannot connect to the URL for whatever reason.
+     * @return the number of bytes downloaded.
+     */
+    public static long downloadImage(URL image, String path) throws IOException {
+        return downloadImage(image, path, new CrawlDeadline(0, 0, 0, 0));
+    }
+
+    /**
+     * Downloads the image at url to the given directory, subject to the timeouts of the
+     * crawl's deadline.
+     *
+     * @param image The URL of the image to download.
+     * @param path Local name of file to download the image to.
+     * @param deadline The deadline of the current crawl.
+     * @throws java.io.IOException if we cannot connect to the URL for whatever reason.
+     * @return the number of bytes downloaded.
+     */
+    public static long downloadImage(URL image, String path, CrawlDeadline deadline)
+            throws IOException {
+        URLConnection connection = deadline.open(image);
+        try {
+            return saveImage(connection, path);
+        } finally {
+            deadline.release(connection);
+        }
+    }
+
+    /**
+     * Writes the body of a response to a file.
+     *
+     * @param connection The connection the image is being received on.
+     * @param path Local name of file to write the image to.
+     * @throws java.io.IOException if the image cannot be received or written.
+     * @return the number of bytes written.
+     */
+    static long saveImage(URLConnection connection, String path) throws IOException {
+        ReadableByteChannel channel = Channels.newChannel(connection.getInputStream());
+        try {
+            FileOutputStream outputStream = new FileOutputStream(path);
+            try {
+                return outputStream.getChannel().transferFrom(channel, 0, Long.MAX_VALUE);
+            } finally {
+                outputStream.close();
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Downloads the image at url into memory, subject to the timeouts of the crawl's deadline.
+     *
+     * @param image The URL of the image to download.
+     * @param page The URL of the page the image was found on.
+     * @param depth The depth of that page.
+     * @param deadline The deadline of the current crawl.
+     * @throws java.io.IOException if we cannot connect to the URL for whatever reason.
+     * @return the image, with its content type and how long it took to download.
+     */
+    public static ScrapedImage readImage(URL image, String page, int depth,
+                                         CrawlDeadline deadline) throws IOException {
+        long start = System.nanoTime();
+        URLConnection connection = deadline.open(image);
+        try {
+            InputStream in = connection.getInputStream();
+            try {
+                String contentType = connection.getContentType();
+                int length = connection.getContentLength();
+                ByteArrayOutputStream out = new ByteArrayOutputStream(length > 0 ? length : 8192);
+                byte[] buffer = new byte[8192];
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, n);
+                }
+                return new ScrapedImage(image, page, depth, contentType, millisSince(start),
+                        out.toByteArray());
+            } finally {
+                in.close();
+            }
+        } finally {
+            deadline.release(connection);
+        }
+    }
+
+    /**
+     * Opens the fetcher of a crawl: one that replays or records an archive if params asks for
+     * it, otherwise one that fetches from the live web. Unless params disables them, requests
+     * are retried and failing hosts are shed by a {@link com.killeent.ResilientFetcher}.
+     *
+     * @param params The scraping params.
+     * @param stats The stats of the crawl.
+     * @throws java.io.IOException if the archive cannot be opened.
+     * @return the fetcher. The caller must close it once the crawl is over.
+     */
+    public static Fetcher openFetcher(ImageScraperParams params, CrawlStats stats)
+            throws IOException {
+        Fetcher fetcher;
+        if (params.getReplayArchive() != null) {
+            fetcher = new ReplayFetcher(params.getReplayArchive(), params.replayLatency(),
+                    params.replayBandwidth());
+        } else if (params.getRecordArchive() != null) {
+            fetcher = new RecordingFetcher(params.getRecordArchive());
+        } else {
+            fetcher = new LiveFetcher();
+        }
+        if (params.maxRetries() == 0 && params.breakerThreshold() == 0) {
+            return fetcher;
+        }
+        return new ResilientFetcher(fetcher, params.maxRetries(), params.retryDelay(),
+                params.maxRetryDelay(),
+                new HostCircuitBreaker(params.breakerThreshold(), params.breakerCooldown()),
+                stats);
+    }
+
+    /**
+     * Opens the image store of a crawl: pack files if params asks for them, otherwise one file
+     * per image in the output directory.
+     *
+     * @param params The scraping params.
+     * @param deadline The deadline of the crawl.
+     * @return the store. The caller must close it once the crawl is over.
+     */
+    public static ImageStore openImageStore(ImageScraperParams params, CrawlDeadline deadline) {
+        if (params.packSize() > 0) {
+            return new PackImageStore(params.getDirectory(), params.packSize(),
+                    params.packWriters(), deadline);
+        }
+        return new DirectoryImageStore(params.getDirectory(), new RangeDownloader(
+                params.rangeThreshold(), params.rangeConnections(), deadline));
+    }
+
+    /**
+     * @param startNanos A start time, as returned by {@link System#nanoTime()}.
+     * @return the number of milliseconds elapsed since startNanos.
      */
-    public static void downloadImage(URL image, String path) throws IOException {
-        ReadableByteChannel channel = Channels.newChannel(image.openStream());
-        FileOutputStream outputStream = new FileOutputStream(path);
-        outputStream.getChannel().transferFrom(channel, 0, Long.MAX_VALUE);
+    public static long millisSince(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1000000;
     }
 
 }
@@ -1,9 +1,11 @@
+import com.killeent.ImageResolutionPolicy;
 import com.killeent.ImageScraperParams;
 import com.killeent.Reggie;
 import org.junit.Assert;
 import org.junit.Test;
 
 import java.net.MalformedURLException;
+import java.net.URL;
 
 /**
  * Original Author: Trevor Killeen (2014)
@@ -180,4 +182,78 @@ public class CommandLineTest {
         Assert.assertEquals(params.getURL().toString(), "http://google.com");
         Assert.assertEquals(params.getDirectory(), System.getProperty("java.io.tmpdir"));
     }
+
+    /**
+     * Tests proper parsing of the resolution policy flag.
+     */
+    @Test
+    public void testParseResolutionPolicy() {
+        ImageScraperParams params = Reggie.parseCommandLineParameters(
+                new String[]{
+                        String.format("--%s=above:800", Reggie.RESOLUTION_FLAG),
+                        "http://google.com",
+                        System.getProperty("java.io.tmpdir")});
+        Assert.assertEquals(params.getImageResolutionPolicy().getMode(),
+                ImageResolutionPolicy.Mode.SMALLEST_ABOVE);
+        Assert.assertEquals(params.getImageResolutionPolicy().getWidth(), 800);
+    }
+
+    /**
+     * Tests that an exception is thrown if the resolution policy is unknown.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidResolutionPolicy() {
+        Reggie.parseCommandLineParameters(
+                new String[]{
+                        String.format("--%s=biggest", Reggie.RESOLUTION_FLAG),
+                        "http://google.com",
+                        System.getProperty("java.io.tmpdir")});
+    }
+
+    /**
+     * Tests proper parsing of the range download and manifest flags.
+     */
+    @Test
+    public void testParseRangeAndManifest() {
+        ImageScraperParams params = Reggie.parseCommandLineParameters(
+                new String[]{
+                        String.format("--%s=1048576", Reggie.RANGE_THRESHOLD_FLAG),
+                        String.format("--%s=8", Reggie.RANGE_CONNECTIONS_FLAG),
+                        String.format("--%s=manifest.jsonl", Reggie.MANIFEST_FLAG),
+                        "http://google.com",
+                        System.getProperty("java.io.tmpdir")});
+        Assert.assertEquals(params.rangeThreshold(), 1048576);
+        Assert.assertEquals(params.rangeConnections(), 8);
+        Assert.assertEquals(params.getManifest(), "manifest.jsonl");
+    }
+
+    /**
+     * Tests that repeated scope rule flags are all parsed into the scope.
+     */
+    @Test
+    public void testParseScopeRules() throws MalformedURLException {
+        ImageScraperParams params = Reggie.parseCommandLineParameters(
+                new String[]{
+                        String.format("-%s", Reggie.INCLUDE_FLAG), "host:google.com",
+                        String.format("-%s", Reggie.INCLUDE_FLAG), "host:gstatic.com",
+                        String.format("-%s", Reggie.EXCLUDE_FLAG), "query:sid",
+                        "http://google.com",
+                        System.getProperty("java.io.tmpdir")});
+        Assert.assertTrue(params.getScope().contains(new URL("http://images.google.com/a")));
+        Assert.assertTrue(params.getScope().contains(new URL("http://gstatic.com/b")));
+        Assert.assertFalse(params.getScope().contains(new URL("http://google.com/a?sid=1")));
+        Assert.assertFalse(params.getScope().contains(new URL("http://bing.com/")));
+    }
+
+    /**
+     * Tests that an exception is thrown if a scope rule is malformed.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidScopeRule() {
+        Reggie.parseCommandLineParameters(
+                new String[]{
+                        String.format("-%s", Reggie.EXCLUDE_FLAG), "regex:(unclosed",
+                        "http://google.com",
+                        System.getProperty("java.io.tmpdir")});
+    }
 }
@@ -0,0 +1,129 @@
+import com.killeent.ContentDecoder;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Unit tests for {@link com.killeent.ContentDecoder}.
+ */
+public class ContentDecoderTest {
+
+    private static final String HTML =
+            "<html><body><img src=\"a.jpg\"><a href=\"b.html\">b</a></body></html>";
+
+    private static byte[] gzip(String text) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+        gzip.write(text.getBytes("UTF-8"));
+        gzip.close();
+        return bytes.toByteArray();
+    }
+
+    private static String readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[64];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+        }
+        in.close();
+        return out.toString("UTF-8");
+    }
+
+    /**
+     * Tests decoding a gzip body. Decodes twice so the second pass reuses a pooled inflater.
+     */
+    @Test
+    public void testGzip() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+        gzip.write(HTML.getBytes("UTF-8"));
+        gzip.close();
+
+        for (int i = 0; i < 2; i++) {
+            InputStream in = ContentDecoder.decode(
+                    new ByteArrayInputStream(bytes.toByteArray()), "gzip");
+            Assert.assertEquals(HTML, readAll(in));
+        }
+    }
+
+    /**
+     * Tests that every member of a multi-member gzip body is decoded.
+     */
+    @Test
+    public void testGzipMembers() throws IOException {
+        byte[] first = gzip(HTML);
+        byte[] second = gzip(HTML.toUpperCase());
+        byte[] body = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, body, first.length, second.length);
+
+        InputStream in = ContentDecoder.decode(new ByteArrayInputStream(body), "gzip");
+        Assert.assertEquals(HTML + HTML.toUpperCase(), readAll(in));
+    }
+
+    /**
+     * Tests that a gzip body whose trailer doesn't match its data is rejected.
+     */
+    @Test(expected = IOException.class)
+    public void testGzipCorruptTrailer() throws IOException {
+        byte[] body = gzip(HTML);
+        body[body.length - 8] ^= 1;  // first byte of the CRC-32
+        readAll(ContentDecoder.decode(new ByteArrayInputStream(body), "gzip"));
+    }
+
+    /**
+     * Tests that a gzip body cut off in its trailer is rejected.
+     */
+    @Test(expected = IOException.class)
+    public void testGzipTruncated() throws IOException {
+        byte[] body = gzip(HTML);
+        readAll(ContentDecoder.decode(
+                new ByteArrayInputStream(Arrays.copyOf(body, body.length - 3)), "gzip"));
+    }
+
+    /**
+     * Tests decoding both zlib wrapped and raw deflate bodies.
+     */
+    @Test
+    public void testDeflate() throws IOException {
+        for (boolean nowrap : new boolean[]{false, true}) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DeflaterOutputStream deflate =
+                    new DeflaterOutputStream(bytes, new Deflater(Deflater.DEFAULT_COMPRESSION, nowrap));
+            deflate.write(HTML.getBytes("UTF-8"));
+            deflate.close();
+
+            InputStream in = ContentDecoder.decode(
+                    new ByteArrayInputStream(bytes.toByteArray()), "deflate");
+            Assert.assertEquals(HTML, readAll(in));
+        }
+    }
+
+    /**
+     * Tests that identity and missing encodings pass the body through untouched.
+     */
+    @Test
+    public void testIdentity() throws IOException {
+        Assert.assertEquals(HTML, readAll(ContentDecoder.decode(
+                new ByteArrayInputStream(HTML.getBytes("UTF-8")), null)));
+        Assert.assertEquals(HTML, readAll(ContentDecoder.decode(
+                new ByteArrayInputStream(HTML.getBytes("UTF-8")), "identity")));
+    }
+
+    /**
+     * Tests that an encoding we cannot decode is rejected.
+     */
+    @Test(expected = IOException.class)
+    public void testUnsupportedEncoding() throws IOException {
+        ContentDecoder.decode(new ByteArrayInputStream(new byte[0]), "br");
+    }
+
+}
@@ -0,0 +1,296 @@
+import com.killeent.BasicImageScraper;
+import com.killeent.CrawlDeadline;
+import com.killeent.ImageScraper;
+import com.killeent.ImageScraperParams;
+import com.killeent.ParallelImageScraper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Unit tests for {@link com.killeent.CrawlDeadline}, and for how the scrapers honor it.
+ */
+public class CrawlDeadlineTest {
+
+    private static final String INDEX = "<html><body><a href=\"/slow/1.html\">1</a>"
+            + "<a href=\"/slow/2.html\">2</a><a href=\"/slow/3.html\">3</a></body></html>";
+
+    // how long the server takes to answer a slow request
+    private static final long STALL = 10 * 1000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private TestServer server;
+    private String base;
+    private final AtomicInteger indexRequests = new AtomicInteger();
+
+    @Before
+    public void startServer() throws IOException {
+        server = new TestServer();
+        server.handle("/index.html", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                indexRequests.incrementAndGet();
+                byte[] body = INDEX.getBytes("UTF-8");
+                exchange.getResponseHeaders().add("Content-Type", "text/html; charset=UTF-8");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        server.handle("/slow", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                // never answers in time
+                pause(STALL);
+                exchange.sendResponseHeaders(500, -1);
+                exchange.close();
+            }
+        });
+        server.handle("/stall", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                // sends the headers and part of the body, then goes quiet
+                exchange.sendResponseHeaders(200, 100);
+                OutputStream out = exchange.getResponseBody();
+                out.write(new byte[10]);
+                out.flush();
+                pause(STALL);
+                exchange.close();
+            }
+        });
+        server.start();
+        base = server.getBase();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop();
+    }
+
+    private static void pause(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Tests that a request that gets no answer is aborted once it has taken the request
+     * timeout.
+     */
+    @Test
+    public void testRequestTimeout() throws IOException {
+        CrawlDeadline deadline = new CrawlDeadline(0, 0, 0, 300);
+        long start = System.currentTimeMillis();
+        HttpURLConnection connection =
+                (HttpURLConnection) deadline.open(new URL(base + "/slow"));
+        try {
+            connection.getResponseCode();
+            Assert.fail("Expected the request to be aborted");
+        } catch (IOException e) {
+            // expected
+        } finally {
+            deadline.release(connection);
+            deadline.shutdown();
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        Assert.assertTrue(elapsed >= 250 && elapsed < STALL / 2);
+        Assert.assertFalse(deadline.isCancelled());
+    }
+
+    /**
+     * Tests that a request whose time is up before it even connects is still aborted, as
+     * happens when the crawl has only a moment left when the request is opened.
+     */
+    @Test
+    public void testTimeoutBeforeConnect() throws IOException {
+        CrawlDeadline deadline = new CrawlDeadline(0, 0, 0, 1);
+        HttpURLConnection connection =
+                (HttpURLConnection) deadline.open(new URL(base + "/slow"));
+        pause(100);
+        long start = System.currentTimeMillis();
+        try {
+            connection.getResponseCode();
+            Assert.fail("Expected the request to be aborted");
+        } catch (IOException e) {
+            // expected
+        } finally {
+            deadline.release(connection);
+            deadline.shutdown();
+        }
+        Assert.assertTrue(System.currentTimeMillis() - start < STALL / 2);
+    }
+
+    /**
+     * Tests that the connect and read timeouts are applied to every connection, and that a
+     * body that stops arriving fails with a read timeout.
+     */
+    @Test
+    public void testReadTimeout() throws IOException {
+        CrawlDeadline deadline = new CrawlDeadline(0, 1234, 200, 0);
+        URL url = new URL(base + "/stall");
+        HttpURLConnection connection = (HttpURLConnection) deadline.open(url);
+        Assert.assertEquals(1234, connection.getConnectTimeout());
+        Assert.assertEquals(200, connection.getReadTimeout());
+        long start = System.currentTimeMillis();
+        try {
+            InputStream in = connection.getInputStream();
+            byte[] buffer = new byte[100];
+            while (in.read(buffer) >= 0) {
+                // read until the body stalls
+            }
+            Assert.fail("Expected the read to time out");
+        } catch (SocketTimeoutException e) {
+            // expected
+        } finally {
+            deadline.release(connection);
+            deadline.shutdown();
+        }
+        Assert.assertTrue(System.currentTimeMillis() - start < STALL / 2);
+    }
+
+    /**
+     * Tests that a request in flight when the crawl runs out of time is aborted, and that no
+     * more requests can be opened afterwards.
+     */
+    @Test
+    public void testCrawlDeadline() throws IOException {
+        CrawlDeadline deadline = new CrawlDeadline(300, 0, 0, 0);
+        Assert.assertFalse(deadline.isCancelled());
+        long start = System.currentTimeMillis();
+        HttpURLConnection connection =
+                (HttpURLConnection) deadline.open(new URL(base + "/slow"));
+        try {
+            connection.getResponseCode();
+            Assert.fail("Expected the request to be aborted");
+        } catch (IOException e) {
+            // expected
+        } finally {
+            deadline.release(connection);
+        }
+        Assert.assertTrue(System.currentTimeMillis() - start < STALL / 2);
+        Assert.assertTrue(deadline.isCancelled());
+        Assert.assertEquals(0, deadline.remainingMillis());
+        try {
+            deadline.open(new URL(base + "/index.html"));
+            Assert.fail("Expected the crawl to be over");
+        } catch (InterruptedIOException e) {
+            // expected
+        } finally {
+            deadline.shutdown();
+        }
+    }
+
+    private ImageScraperParams.Builder params(boolean parallel, String manifest)
+            throws IOException {
+        return new ImageScraperParams.Builder(new URL(base + "/index.html"),
+                folder.getRoot().getAbsolutePath())
+                .maxDepth(1)
+                .scrapeInParallel(parallel)
+                .maxRetries(0)
+                .manifest(manifest);
+    }
+
+    /**
+     * Tests that both scrapers give up on their crawl once it runs out of time, even while
+     * they are waiting on slow pages.
+     */
+    @Test
+    public void testScrapersStopAtDeadline() throws IOException {
+        ImageScraper[] scrapers = { new BasicImageScraper(), new ParallelImageScraper() };
+        for (ImageScraper scraper : scrapers) {
+            ImageScraperParams params = params(scraper instanceof ParallelImageScraper, null)
+                    .crawlTimeout(500)
+                    .build();
+            long start = System.currentTimeMillis();
+            scraper.scrapePage(params);
+            long elapsed = System.currentTimeMillis() - start;
+            Assert.assertTrue(String.format("Took %d ms", elapsed), elapsed < STALL / 2);
+        }
+    }
+
+    /**
+     * Tests that cancelling a crawl from another thread makes both scrapers return promptly,
+     * and that the requests it aborted are recorded as cancelled in the manifest.
+     */
+    @Test
+    public void testCancel() throws Exception {
+        ImageScraper[] scrapers = { new BasicImageScraper(), new ParallelImageScraper() };
+        for (final ImageScraper scraper : scrapers) {
+            File manifest = folder.newFile();
+            final ImageScraperParams params = params(scraper instanceof ParallelImageScraper,
+                    manifest.getAbsolutePath()).build();
+            Thread crawl = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    scraper.scrapePage(params);
+                }
+            });
+            crawl.start();
+            Thread.sleep(500);
+            long start = System.currentTimeMillis();
+            scraper.cancel();
+            crawl.join(STALL / 2);
+            Assert.assertFalse(crawl.isAlive());
+            Assert.assertTrue(System.currentTimeMillis() - start < STALL / 2);
+
+            List<String> records =
+                    Files.readAllLines(manifest.toPath(), StandardCharsets.UTF_8);
+            int cancelled = 0;
+            for (String record : records) {
+                if (record.contains("/index.html")) {
+                    Assert.assertTrue(record, record.contains("\"status\":\"ok\""));
+                } else {
+                    Assert.assertTrue(record, record.contains("\"status\":\"cancelled\""));
+                    cancelled++;
+                }
+            }
+            Assert.assertTrue(cancelled > 0);
+        }
+    }
+
+    /**
+     * Tests that a crawl cancelled before it starts fetches nothing, and that the cancel
+     * doesn't carry over to the crawl after it.
+     */
+    @Test
+    public void testCancelBeforeStart() throws Exception {
+        ImageScraper[] scrapers = { new BasicImageScraper(), new ParallelImageScraper() };
+        for (ImageScraper scraper : scrapers) {
+            indexRequests.set(0);
+            boolean parallel = scraper instanceof ParallelImageScraper;
+            File manifest = folder.newFile();
+            scraper.cancel();
+            scraper.scrapePage(params(parallel, manifest.getAbsolutePath()).build());
+            Assert.assertEquals(0, indexRequests.get());
+            for (String record : Files.readAllLines(manifest.toPath(), StandardCharsets.UTF_8)) {
+                Assert.assertTrue(record, record.contains("\"status\":\"cancelled\""));
+            }
+
+            scraper.scrapePage(params(parallel, null).maxDepth(0).build());
+            Assert.assertEquals(1, indexRequests.get());
+        }
+    }
+}
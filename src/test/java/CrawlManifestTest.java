@@ -0,0 +1,218 @@
+import com.killeent.CrawlManifest;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Unit tests for {@link com.killeent.CrawlManifest}.
+ */
+public class CrawlManifestTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private List<Map<String, Object>> read(File file) throws IOException {
+        List<Map<String, Object>> records = new ArrayList<Map<String, Object>>();
+        for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+            records.add(new JsonObjectParser(line).parse());
+        }
+        return records;
+    }
+
+    /**
+     * Tests that records are written as JSON lines with their fields in order, and that
+     * optional fields are left out when they are null.
+     */
+    @Test
+    public void testJsonLines() throws IOException {
+        File file = folder.newFile("manifest.jsonl");
+        CrawlManifest manifest = new CrawlManifest(file.getAbsolutePath());
+        manifest.page("http://a.com/", CrawlManifest.STATUS_OK, 1234, 56, 0, null);
+        manifest.image("http://a.com/a.jpg", CrawlManifest.STATUS_OK, 789, 12, "/tmp/a.jpg", 1,
+                null);
+        manifest.page("http://a.com/b.html", CrawlManifest.STATUS_FAILED, 0, 3, 1, "404");
+        manifest.close();
+
+        List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        Assert.assertEquals(3, lines.size());
+        Assert.assertEquals("{\"type\":\"page\",\"url\":\"http://a.com/\",\"status\":\"ok\","
+                + "\"bytes\":1234,\"latency_ms\":56,\"depth\":0}", lines.get(0));
+        Assert.assertEquals("{\"type\":\"image\",\"url\":\"http://a.com/a.jpg\","
+                + "\"status\":\"ok\",\"bytes\":789,\"latency_ms\":12,\"depth\":1,"
+                + "\"path\":\"/tmp/a.jpg\"}", lines.get(1));
+        Assert.assertEquals("{\"type\":\"page\",\"url\":\"http://a.com/b.html\","
+                + "\"status\":\"failed\",\"bytes\":0,\"latency_ms\":3,\"depth\":1,"
+                + "\"error\":\"404\"}", lines.get(2));
+    }
+
+    /**
+     * Tests that quotes, backslashes, control characters and non-ASCII characters survive a
+     * round trip through the manifest.
+     */
+    @Test
+    public void testEscaping() throws IOException {
+        String url = "http://a.com/caf\u00e9/\u65e5\u672c?q=\"x\"&p=a\\b";
+        String path = "/tmp/\u00e9\t\u0001.jpg";
+        String error = "line one\nline two\r\u001f";
+        File file = folder.newFile("manifest.jsonl");
+        CrawlManifest manifest = new CrawlManifest(file.getAbsolutePath());
+        manifest.image(url, CrawlManifest.STATUS_FAILED, 0, 1, path, 2, error);
+        manifest.close();
+
+        List<Map<String, Object>> records = read(file);
+        Assert.assertEquals(1, records.size());
+        Map<String, Object> record = records.get(0);
+        Assert.assertEquals(url, record.get("url"));
+        Assert.assertEquals(path, record.get("path"));
+        Assert.assertEquals(error, record.get("error"));
+        Assert.assertEquals(2L, record.get("depth"));
+        Assert.assertEquals(1, Files.readAllLines(file.toPath(), StandardCharsets.UTF_8).size());
+    }
+
+    /**
+     * Tests that every record offered from many threads at once is written exactly once by the
+     * time the manifest is closed.
+     */
+    @Test
+    public void testConcurrentRecords() throws Exception {
+        final int threads = 8;
+        final int records = 5000;
+        File file = folder.newFile("manifest.jsonl");
+        final CrawlManifest manifest = new CrawlManifest(file.getAbsolutePath());
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < records; i++) {
+                        manifest.page(String.format("http://a.com/%d/%d", thread, i),
+                                CrawlManifest.STATUS_OK, i, 0, thread, null);
+                        if (i % 1000 == 0) {
+                            // let the writer go idle, so that it has to be woken again
+                            try {
+                                Thread.sleep(5);
+                            } catch (InterruptedException e) {
+                                return;
+                            }
+                        }
+                    }
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        manifest.close();
+
+        Set<Object> urls = new HashSet<Object>();
+        for (Map<String, Object> record : read(file)) {
+            Assert.assertTrue(urls.add(record.get("url")));
+        }
+        Assert.assertEquals(threads * records, urls.size());
+    }
+
+    /**
+     * Tests that a record offered to an idle manifest is written without waiting for close.
+     */
+    @Test
+    public void testWritesWhileOpen() throws Exception {
+        File file = folder.newFile("manifest.jsonl");
+        CrawlManifest manifest = new CrawlManifest(file.getAbsolutePath());
+        Thread.sleep(50);
+        manifest.page("http://a.com/", CrawlManifest.STATUS_OK, 1, 1, 0, null);
+        long end = System.currentTimeMillis() + 5000;
+        while (file.length() == 0 && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(file.length() > 0);
+        manifest.close();
+    }
+
+    /**
+     * Just enough of a JSON parser to read back a manifest record: a flat object of strings
+     * and integers.
+     */
+    private static class JsonObjectParser {
+        private final String json;
+        private int i;
+
+        private JsonObjectParser(String json) {
+            this.json = json;
+        }
+
+        private Map<String, Object> parse() {
+            Map<String, Object> object = new LinkedHashMap<String, Object>();
+            expect('{');
+            while (json.charAt(i) != '}') {
+                String key = string();
+                expect(':');
+                object.put(key, json.charAt(i) == '"' ? string() : number());
+                if (json.charAt(i) == ',') {
+                    i++;
+                }
+            }
+            expect('}');
+            Assert.assertEquals(json.length(), i);
+            return object;
+        }
+
+        private void expect(char c) {
+            Assert.assertEquals(c, json.charAt(i++));
+        }
+
+        private Long number() {
+            int start = i;
+            while (json.charAt(i) == '-' || Character.isDigit(json.charAt(i))) {
+                i++;
+            }
+            return Long.parseLong(json.substring(start, i));
+        }
+
+        private String string() {
+            expect('"');
+            StringBuilder sb = new StringBuilder();
+            char c;
+            while ((c = json.charAt(i++)) != '"') {
+                Assert.assertTrue("Unescaped control character", c >= 0x20);
+                if (c != '\\') {
+                    sb.append(c);
+                    continue;
+                }
+                c = json.charAt(i++);
+                switch (c) {
+                    case 'n':
+                        sb.append('\n');
+                        break;
+                    case 'r':
+                        sb.append('\r');
+                        break;
+                    case 't':
+                        sb.append('\t');
+                        break;
+                    case 'u':
+                        sb.append((char) Integer.parseInt(json.substring(i, i + 4), 16));
+                        i += 4;
+                        break;
+                    default:
+                        sb.append(c);
+                }
+            }
+            return sb.toString();
+        }
+    }
+}
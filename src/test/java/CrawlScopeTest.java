@@ -0,0 +1,125 @@
+import com.killeent.CrawlScope;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Unit tests for {@link com.killeent.CrawlScope}.
+ */
+public class CrawlScopeTest {
+
+    private static CrawlScope scope(List<String> includes, List<String> excludes)
+            throws MalformedURLException {
+        return new CrawlScope(new URL("http://www.example.com/"), false, includes, excludes);
+    }
+
+    private static boolean contains(CrawlScope scope, String url) throws MalformedURLException {
+        return scope.contains(new URL(url));
+    }
+
+    /**
+     * Tests that without rules only links on the seed's host are in scope.
+     */
+    @Test
+    public void testDefaultScope() throws MalformedURLException {
+        CrawlScope scope = scope(Collections.<String>emptyList(), Collections.<String>emptyList());
+        Assert.assertTrue(contains(scope, "http://www.example.com/a/b.html"));
+        Assert.assertFalse(contains(scope, "http://img.example.com/a/b.html"));
+        Assert.assertFalse(contains(scope, "http://other.com/"));
+    }
+
+    /**
+     * Tests that host rules match subdomains on label boundaries, and that excludes win.
+     */
+    @Test
+    public void testHostSuffixes() throws MalformedURLException {
+        CrawlScope scope = scope(Arrays.asList("host:example.com", "host:*.cdn.net"),
+                Arrays.asList("host:ads.example.com"));
+        Assert.assertTrue(contains(scope, "http://example.com/"));
+        Assert.assertTrue(contains(scope, "http://img.EXAMPLE.com/x"));
+        Assert.assertTrue(contains(scope, "http://a.b.cdn.net/x"));
+        Assert.assertFalse(contains(scope, "http://notexample.com/"));
+        Assert.assertFalse(contains(scope, "http://ads.example.com/"));
+        Assert.assertFalse(contains(scope, "http://x.ads.example.com/"));
+    }
+
+    /**
+     * Tests path globs, regexes and query predicates, and that a link must match an include
+     * rule of every kind that has some.
+     */
+    @Test
+    public void testPathsRegexesAndQueries() throws MalformedURLException {
+        CrawlScope scope = scope(
+                Arrays.asList("path:/gallery/**", "path:/photo-?.html", "query:page"),
+                Arrays.asList("path:/gallery/*/private/**", "regex:.*\\.(pdf|zip)(\\?.*)?",
+                        "query:sort=date"));
+        Assert.assertTrue(contains(scope, "http://www.example.com/gallery/a/b.html?page=2"));
+        Assert.assertTrue(contains(scope, "http://www.example.com/photo-1.html?page=1&x=y"));
+        Assert.assertFalse(contains(scope, "http://www.example.com/photo-12.html?page=1"));
+        Assert.assertFalse(contains(scope, "http://www.example.com/gallery/a/b.html"));
+        Assert.assertFalse(contains(scope, "http://www.example.com/blog/?page=1"));
+        Assert.assertFalse(
+                contains(scope, "http://www.example.com/gallery/a/private/b.html?page=1"));
+        Assert.assertTrue(
+                contains(scope, "http://www.example.com/gallery/a/b/private/c.html?page=1"));
+        Assert.assertFalse(contains(scope, "http://www.example.com/gallery/a.zip?page=1"));
+        Assert.assertFalse(contains(scope, "http://www.example.com/gallery/?page=1&sort=date"));
+        Assert.assertTrue(contains(scope, "http://www.example.com/gallery/?page=1&sort=name"));
+    }
+
+    /**
+     * Tests that thousands of globs are matched correctly, each against the right paths.
+     */
+    @Test
+    public void testManyGlobs() throws MalformedURLException {
+        List<String> excludes = new ArrayList<String>();
+        for (int i = 0; i < 5000; i++) {
+            excludes.add(String.format("path:/section%d/*/item-*.html", i));
+        }
+        CrawlScope scope = scope(Collections.<String>emptyList(), excludes);
+        for (int i = 0; i < 5000; i += 7) {
+            Assert.assertFalse(contains(scope,
+                    String.format("http://www.example.com/section%d/x/item-%d.html", i, i)));
+            Assert.assertTrue(contains(scope,
+                    String.format("http://www.example.com/section%d/x/y/item-%d.html", i, i)));
+        }
+        Assert.assertTrue(contains(scope, "http://www.example.com/section5000/x/item-1.html"));
+    }
+
+    /**
+     * Tests that a regex rule can refer back to a named group even when it is joined with
+     * other rules, and that escapes which are not backreferences are accepted.
+     */
+    @Test
+    public void testRegexBackreferences() throws MalformedURLException {
+        CrawlScope scope = scope(
+                Arrays.asList("regex:.*/(a|b)/.*", "regex:.*/(?<n>\\d+)/\\k<n>\\.html"),
+                Arrays.<String>asList());
+        Assert.assertTrue(contains(scope, "http://www.example.com/12/12.html"));
+        Assert.assertFalse(contains(scope, "http://www.example.com/12/13.html"));
+        Assert.assertTrue(contains(scope, "http://www.example.com/b/13.html"));
+        CrawlScope.checkRule("regex:.*\\\\1\\Q\\1\\E");
+    }
+
+    /**
+     * Tests that malformed rules are rejected.
+     */
+    @Test
+    public void testInvalidRules() {
+        for (String rule : new String[] { "example.com", "domain:example.com", "host:",
+                "path:gallery/*", "regex:[a-", "regex:.*/(\\d+)/\\1\\.jpg" }) {
+            try {
+                CrawlScope.checkRule(rule);
+                Assert.fail(rule);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+}
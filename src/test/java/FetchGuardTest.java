@@ -0,0 +1,156 @@
+import com.killeent.CrawlDeadline;
+import com.killeent.CrawlStats;
+import com.killeent.FetchGuard;
+import com.killeent.FetchedPage;
+import com.killeent.PageRejectedException;
+import com.killeent.Utils;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Unit tests for {@link com.killeent.FetchGuard}.
+ */
+public class FetchGuardTest {
+
+    private static final int MAX_PAGE_SIZE = 64 * 1024;
+    private static final String PAGE = "<!DOCTYPE html><html><body><a href=\"a.html\">a</a>";
+
+    private TestServer server;
+    private String base;
+
+    @Before
+    public void startServer() throws IOException {
+        server = new TestServer();
+        server.handle("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String path = exchange.getRequestURI().getPath();
+                String type = "text/html; charset=UTF-8";
+                byte[] prefix = PAGE.getBytes("UTF-8");
+                int length = 1024;
+                boolean chunked = false;
+                if (path.equals("/report.pdf")) {
+                    type = "application/pdf";
+                    length = 10 * 1024 * 1024;
+                } else if (path.equals("/mislabeled")) {
+                    prefix = "%PDF-1.4\n".getBytes("UTF-8");
+                } else if (path.equals("/untyped")) {
+                    type = "application/octet-stream";
+                } else if (path.equals("/text")) {
+                    type = "text/plain";
+                    prefix = "Just some notes, no markup".getBytes("UTF-8");
+                } else if (path.equals("/huge")) {
+                    length = MAX_PAGE_SIZE * 4;
+                } else if (path.equals("/huge-chunked")) {
+                    length = MAX_PAGE_SIZE * 4;
+                    chunked = true;
+                }
+                exchange.getResponseHeaders().add("Content-Type", type);
+                exchange.sendResponseHeaders(200, chunked ? 0 : length);
+                OutputStream out = exchange.getResponseBody();
+                try {
+                    byte[] body = new byte[length];
+                    Arrays.fill(body, (byte) ' ');
+                    System.arraycopy(prefix, 0, body, 0, prefix.length);
+                    out.write(body);
+                    out.close();
+                } catch (IOException e) {
+                    // the client hung up, as it should
+                }
+            }
+        });
+        server.start();
+        base = server.getBase();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop();
+    }
+
+    /**
+     * Opens a page through the guard and reads all of it.
+     *
+     * @return the number of bytes read.
+     */
+    private long fetch(String path, CrawlStats stats) throws IOException {
+        FetchedPage page = Utils.openPage(new URL(base + path), stats,
+                new CrawlDeadline(0, 0, 0, 0), MAX_PAGE_SIZE);
+        try {
+            InputStream in = page.getBody();
+            byte[] buffer = new byte[8192];
+            long total = 0;
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                total += n;
+            }
+            return total;
+        } finally {
+            page.close();
+        }
+    }
+
+    private void assertRejected(String path, String contentType) throws IOException {
+        CrawlStats stats = new CrawlStats();
+        try {
+            fetch(path, stats);
+            Assert.fail(path);
+        } catch (PageRejectedException e) {
+            Assert.assertEquals(contentType, e.getContentType());
+        }
+        // rejected pages are counted as such by the scrapers, not as fetched
+        Assert.assertEquals(path, 0, stats.getPagesFetched());
+    }
+
+    /**
+     * Tests that HTML pages get through, including ones served with a generic type.
+     */
+    @Test
+    public void testAcceptsPages() throws IOException {
+        CrawlStats stats = new CrawlStats();
+        Assert.assertEquals(1024, fetch("/index.html", stats));
+        Assert.assertEquals(1024, fetch("/untyped", stats));
+        Assert.assertEquals(2, stats.getPagesFetched());
+    }
+
+    /**
+     * Tests that responses are rejected by their declared type, their first bytes, and their
+     * size, whether or not the size is declared, and that none of them count as fetched.
+     */
+    @Test
+    public void testRejectsNonPages() throws IOException {
+        assertRejected("/report.pdf", "application/pdf");
+        assertRejected("/mislabeled", "application/pdf");
+        assertRejected("/text", "text/plain");
+        assertRejected("/huge", "text/html");
+        assertRejected("/huge-chunked", null);
+    }
+
+    /**
+     * Tests that links to images are moved over to the images.
+     */
+    @Test
+    public void testRouteImageLinks() {
+        List<String> links = new ArrayList<String>(Arrays.asList(
+                "http://a.com/page.html", "http://a.com/full/1.JPG", "http://a.com/2.png?w=800",
+                "http://a.com/photo.jpg.html", "http://a.com/3.webp#top"));
+        List<String> images = new ArrayList<String>();
+        FetchGuard.routeImageLinks(links, images);
+        Assert.assertEquals(Arrays.asList("http://a.com/page.html", "http://a.com/photo.jpg.html"),
+                links);
+        Assert.assertEquals(Arrays.asList("http://a.com/full/1.JPG", "http://a.com/2.png?w=800",
+                "http://a.com/3.webp#top"), images);
+    }
+}
@@ -0,0 +1,231 @@
+import com.killeent.ImagePublisher;
+import com.killeent.ImageScraperParams;
+import com.killeent.ScrapedImage;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Unit tests for {@link com.killeent.ImagePublisher}.
+ */
+public class ImagePublisherTest {
+
+    private static final String PAGE = "<html><body><img src=\"a.jpg\"><img src=\"b.jpg\">"
+            + "<img src=\"c.jpg\"></body></html>";
+
+    // how long a crawl gets to overshoot its demand before we check that it hasn't
+    private static final long SETTLE = 200;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private TestServer server;
+    private String base;
+    private AtomicInteger pageRequests;
+    private AtomicInteger imageRequests;
+
+    @Before
+    public void startServer() throws IOException {
+        pageRequests = new AtomicInteger();
+        imageRequests = new AtomicInteger();
+        server = new TestServer();
+        server.handle("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String path = exchange.getRequestURI().getPath();
+                byte[] body;
+                if (path.equals("/page.html")) {
+                    pageRequests.incrementAndGet();
+                    body = PAGE.getBytes("UTF-8");
+                    exchange.getResponseHeaders().add("Content-Type", "text/html; charset=UTF-8");
+                } else {
+                    imageRequests.incrementAndGet();
+                    body = path.getBytes("UTF-8");
+                    exchange.getResponseHeaders().add("Content-Type", "image/jpeg");
+                }
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        server.start();
+        base = server.getBase();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop();
+    }
+
+    private ImageScraperParams params(boolean parallel) throws IOException {
+        return new ImageScraperParams.Builder(new URL(base + "/page.html"),
+                folder.getRoot().getAbsolutePath())
+                .maxDepth(0)
+                .scrapeInParallel(parallel)
+                .build();
+    }
+
+    /**
+     * Subscriber that records what it is sent, and requests one image at a time when told to.
+     */
+    private static class RecordingSubscriber implements Flow.Subscriber<ScrapedImage> {
+        private final List<ScrapedImage> images = new CopyOnWriteArrayList<ScrapedImage>();
+        private final CountDownLatch done = new CountDownLatch(1);
+        private final boolean requestOnNext;
+        private volatile Flow.Subscription subscription;
+        private volatile Throwable error;
+
+        private RecordingSubscriber(boolean requestOnNext) {
+            this.requestOnNext = requestOnNext;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(1);
+        }
+
+        @Override
+        public void onNext(ScrapedImage image) {
+            images.add(image);
+            if (requestOnNext) {
+                subscription.request(1);
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error = throwable;
+            done.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+            done.countDown();
+        }
+    }
+
+    /**
+     * Tests that every image of the crawl is published with its page and metadata, from both
+     * scrapers, that the subscriber is completed at the end, and that the crawl prints
+     * nothing to standard out.
+     */
+    @Test
+    public void testPublishesImages() throws Exception {
+        for (boolean parallel : new boolean[] { false, true }) {
+            RecordingSubscriber subscriber = new RecordingSubscriber(true);
+            PrintStream stdout = System.out;
+            ByteArrayOutputStream printed = new ByteArrayOutputStream();
+            System.setOut(new PrintStream(printed, true, "UTF-8"));
+            try {
+                new ImagePublisher(params(parallel)).subscribe(subscriber);
+                Assert.assertTrue(subscriber.done.await(10, TimeUnit.SECONDS));
+            } finally {
+                System.setOut(stdout);
+            }
+            Assert.assertEquals("", printed.toString("UTF-8"));
+            Assert.assertNull(subscriber.error);
+            Assert.assertEquals(3, subscriber.images.size());
+            for (ScrapedImage image : subscriber.images) {
+                Assert.assertEquals(base + "/page.html", image.getPage());
+                Assert.assertEquals(0, image.getDepth());
+                Assert.assertEquals("image/jpeg", image.getContentType());
+                Assert.assertEquals(image.getURL().getPath(),
+                        new String(image.getData(), "UTF-8"));
+            }
+        }
+        Assert.assertEquals(0, folder.getRoot().list().length);
+    }
+
+    /**
+     * Waits for a subscriber to be sent the given number of images, then for a moment more
+     * to check that it isn't sent any more than that.
+     */
+    private static void awaitImages(RecordingSubscriber subscriber, int expected)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10 * 1000;
+        while (subscriber.images.size() < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(expected, subscriber.images.size());
+        Thread.sleep(SETTLE);
+        Assert.assertEquals(expected, subscriber.images.size());
+    }
+
+    /**
+     * Tests that images are only downloaded once they are requested, and that cancelling the
+     * subscription ends the crawl without completing the subscriber.
+     */
+    @Test
+    public void testDemandThrottlesCrawl() throws Exception {
+        RecordingSubscriber subscriber = new RecordingSubscriber(false);
+        new ImagePublisher(params(true)).subscribe(subscriber);
+        awaitImages(subscriber, 1);
+        Assert.assertEquals(1, imageRequests.get());
+
+        subscriber.subscription.request(1);
+        awaitImages(subscriber, 2);
+        Assert.assertEquals(2, imageRequests.get());
+
+        subscriber.subscription.cancel();
+        Assert.assertFalse(subscriber.done.await(SETTLE, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(2, subscriber.images.size());
+        Assert.assertEquals(2, imageRequests.get());
+    }
+
+    /**
+     * Waits for the crawls started by the publishers to finish.
+     */
+    private static void joinCrawls() throws InterruptedException {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("reggie-publisher")) {
+                thread.join(10 * 1000);
+                Assert.assertFalse(thread.isAlive());
+            }
+        }
+    }
+
+    /**
+     * Tests that a subscriber that cancels, or makes an invalid request, from onSubscribe
+     * doesn't start a crawl, and that the invalid request is signalled as an error.
+     */
+    @Test
+    public void testCancelFromOnSubscribe() throws Exception {
+        for (final boolean invalid : new boolean[] { false, true }) {
+            RecordingSubscriber subscriber = new RecordingSubscriber(true) {
+                @Override
+                public void onSubscribe(Flow.Subscription subscription) {
+                    if (invalid) {
+                        subscription.request(0);
+                    } else {
+                        subscription.cancel();
+                    }
+                }
+            };
+            new ImagePublisher(params(false)).subscribe(subscriber);
+            joinCrawls();
+            Assert.assertEquals(invalid, subscriber.done.getCount() == 0);
+            Assert.assertEquals(invalid, subscriber.error instanceof IllegalArgumentException);
+            Assert.assertEquals(0, pageRequests.get());
+            Assert.assertEquals(0, subscriber.images.size());
+        }
+    }
+}
@@ -0,0 +1,187 @@
+import com.killeent.BasicImageScraper;
+import com.killeent.ImageScraper;
+import com.killeent.ImageScraperParams;
+import com.killeent.ParallelImageScraper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Unit tests for the {@link com.killeent.ImageScraper} implementations.
+ */
+public class ImageScraperTest {
+
+    private static final String INDEX = "<html><body><a href=\"/1.html\">1</a>"
+            + "<a href=\"/2.html\">2</a><a href=\"/3.html\">3</a><a href=\"/4.html\">4</a>"
+            + "</body></html>";
+
+    private static final int GALLERY_PAGES = 10;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private TestServer server;
+    private String base;
+    private final AtomicInteger pageRequests = new AtomicInteger();
+    private final List<String> treeRequests = new CopyOnWriteArrayList<String>();
+
+    @Before
+    public void startServer() throws IOException {
+        server = new TestServer();
+        server.handle("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                pageRequests.incrementAndGet();
+                String path = exchange.getRequestURI().getPath();
+                byte[] body = (path.equals("/index.html") ?
+                        INDEX :
+                        "<html><body>A page without images</body></html>").getBytes("UTF-8");
+                exchange.getResponseHeaders().add("Content-Type", "text/html; charset=UTF-8");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        server.handle("/gallery", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                // page n of a gallery: a few images, and a link to the next page
+                String query = exchange.getRequestURI().getQuery();
+                int n = query == null ? 1 : Integer.parseInt(query.substring("page=".length()));
+                StringBuilder page = new StringBuilder("<html><body><h1>Gallery</h1>"
+                        + "<p>Photos from the spring market in the old town square, taken "
+                        + "by members of the local photography club over the weekend.</p>");
+                page.append("<p>The club meets every first Tuesday of the month in the "
+                        + "library hall. New members are always welcome, whatever camera they "
+                        + "use, and the annual exhibition opens in the autumn with prints "
+                        + "chosen by a vote of all members. Please ask before reusing any of "
+                        + "the photos on this site, and credit the photographer.</p>");
+                for (String section : new String[] {"home", "news", "events", "members",
+                        "exhibitions", "contact", "about"}) {
+                    page.append(String.format("<a href=\"/%s.html\">%s</a>", section, section));
+                }
+                for (int i = 0; i < 3; i++) {
+                    page.append(String.format("<img src=\"/img/%d-%d.jpg\">", n, i));
+                }
+                if (n < GALLERY_PAGES) {
+                    page.append(String.format("<a href=\"/gallery?page=%d\">Next</a>", n + 1));
+                }
+                byte[] body = page.append("</body></html>").toString().getBytes("UTF-8");
+                exchange.getResponseHeaders().add("Content-Type", "text/html; charset=UTF-8");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        server.handle("/tree", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                // page r12 of a binary tree links to r121 and r122, then to r2 and r
+                String path = exchange.getRequestURI().getPath();
+                String name = path.substring("/tree/".length(), path.length() - ".html".length());
+                treeRequests.add(name);
+                StringBuilder page = new StringBuilder("<html><body>");
+                for (String link : new String[] { name + "1", name + "2", "r2", "r" }) {
+                    page.append(String.format("<a href=\"/tree/%s.html\">%s</a>", link, link));
+                }
+                byte[] body = page.append("</body></html>").toString().getBytes("UTF-8");
+                exchange.getResponseHeaders().add("Content-Type", "text/html; charset=UTF-8");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        server.handle("/img", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] body = exchange.getRequestURI().getPath().getBytes("UTF-8");
+                exchange.getResponseHeaders().add("Content-Type", "image/jpeg");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        server.start();
+        base = server.getBase();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop();
+    }
+
+    /**
+     * Tests that a scraper can be reused: each crawl gets the full page budget, whatever the
+     * crawl before it spent.
+     */
+    @Test
+    public void testReuse() throws IOException {
+        ImageScraper[] scrapers = { new BasicImageScraper(), new ParallelImageScraper() };
+        for (ImageScraper scraper : scrapers) {
+            for (boolean bestFirst : new boolean[] { false, true }) {
+                for (int crawl = 0; crawl < 2; crawl++) {
+                    pageRequests.set(0);
+                    scraper.scrapePage(new ImageScraperParams.Builder(
+                            new URL(base + "/index.html"),
+                            folder.newFolder().getAbsolutePath())
+                            .maxDepth(1)
+                            .scrapeInParallel(scraper instanceof ParallelImageScraper)
+                            .bestFirst(bestFirst)
+                            .maxPages(3)
+                            .build());
+                    Assert.assertEquals(3, pageRequests.get());
+                }
+            }
+        }
+    }
+
+    /**
+     * Tests that the basic scraper crawls depth first in document order, and that a page is
+     * crawled from the first page that links to it, at that page's depth.
+     */
+    @Test
+    public void testDepthFirstOrder() throws IOException {
+        new BasicImageScraper().scrapePage(new ImageScraperParams.Builder(
+                new URL(base + "/tree/r.html"), folder.newFolder().getAbsolutePath())
+                .maxDepth(2)
+                .build());
+        Assert.assertEquals(Arrays.asList("r", "r1", "r11", "r12", "r2", "r21", "r22"),
+                treeRequests);
+    }
+
+    /**
+     * Tests that the pages of a paginated gallery, which differ only in their images, are all
+     * crawled with the default params.
+     */
+    @Test
+    public void testPaginatedGallery() throws IOException {
+        ImageScraper[] scrapers = { new BasicImageScraper(), new ParallelImageScraper() };
+        for (ImageScraper scraper : scrapers) {
+            File directory = folder.newFolder();
+            scraper.scrapePage(new ImageScraperParams.Builder(new URL(base + "/gallery"),
+                    directory.getAbsolutePath())
+                    .maxDepth(GALLERY_PAGES)
+                    .scrapeInParallel(scraper instanceof ParallelImageScraper)
+                    .build());
+            Assert.assertEquals(GALLERY_PAGES * 3, directory.list().length);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+import com.killeent.CrawlFrontier;
+import com.killeent.LinkScorer;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+
+/**
+ * Unit tests for {@link com.killeent.LinkScorer} and {@link com.killeent.CrawlFrontier}.
+ */
+public class LinkScorerTest {
+
+    /**
+     * Tests that links sharing a URL pattern with high-yield pages outscore the others.
+     */
+    @Test
+    public void testLearnsFromYield() throws MalformedURLException {
+        LinkScorer scorer = new LinkScorer();
+        scorer.update(LinkScorer.features(new URL("http://a.com/gallery/1/x.html"), null, 1), 10);
+        scorer.update(LinkScorer.features(new URL("http://a.com/about/team.html"), null, 1), 0);
+
+        double gallery = scorer.score(
+                LinkScorer.features(new URL("http://a.com/gallery/2/y.html"), null, 1));
+        double about = scorer.score(
+                LinkScorer.features(new URL("http://a.com/about/jobs.html"), null, 1));
+        Assert.assertTrue(gallery > about);
+    }
+
+    /**
+     * Tests that the scorer's version moves with every outcome fed back, so that callers can
+     * tell when their scores are stale.
+     */
+    @Test
+    public void testVersion() throws MalformedURLException {
+        LinkScorer scorer = new LinkScorer();
+        LinkScorer.Features features =
+                LinkScorer.features(new URL("http://a.com/gallery/1/x.html"), null, 1);
+        Assert.assertEquals(0, scorer.getVersion());
+        double before = scorer.score(features);
+        scorer.update(features, 10);
+        Assert.assertEquals(1, scorer.getVersion());
+        Assert.assertTrue(scorer.score(features) > before);
+    }
+
+    /**
+     * Tests that the frontier pops the highest scoring link first, and breaks ties
+     * in discovery order.
+     */
+    @Test
+    public void testFrontierOrder() throws MalformedURLException {
+        LinkScorer scorer = new LinkScorer();
+        scorer.update(LinkScorer.features(new URL("http://a.com/photos/1/a.html"), null, 2), 5);
+        scorer.update(LinkScorer.features(new URL("http://a.com/misc/c.html"), null, 1), 0);
+
+        CrawlFrontier frontier = new CrawlFrontier(scorer);
+        frontier.push(0, new URL("http://a.com/blog/post.html"), 1, null);
+        frontier.push(1, new URL("http://a.com/photos/2/b.html"), 2, null);
+        frontier.push(2, new URL("http://a.com/news/item.html"), 1, null);
+
+        Assert.assertEquals(3, frontier.size());
+        Assert.assertEquals(1, frontier.pop().getId());
+        Assert.assertEquals(0, frontier.pop().getId());
+        Assert.assertEquals(2, frontier.pop().getId());
+        Assert.assertTrue(frontier.isEmpty());
+    }
+}
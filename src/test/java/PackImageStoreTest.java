@@ -0,0 +1,84 @@
+import com.killeent.CrawlDeadline;
+import com.killeent.PackImageStore;
+import com.killeent.PackIndex;
+import com.killeent.StoredImage;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URL;
+
+/**
+ * Unit tests for {@link com.killeent.PackImageStore} and {@link com.killeent.PackIndex}.
+ */
+public class PackImageStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private URL image(String name, int size) throws IOException {
+        File file = new File(folder.getRoot(), name);
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (name.hashCode() + i);
+        }
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return file.toURI().toURL();
+    }
+
+    /**
+     * Tests that packs roll over at the configured size, and that every image can be read back
+     * from its pack through the pack's index.
+     */
+    @Test
+    public void testStoreAndFind() throws IOException {
+        File packs = folder.newFolder("packs");
+        PackImageStore store = new PackImageStore(packs.getAbsolutePath(), 4096, 1,
+                new CrawlDeadline(0, 0, 0, 0));
+        URL[] images = new URL[5];
+        for (int i = 0; i < images.length; i++) {
+            images[i] = image(String.format("%d.jpg", i), 1000 + i * 700);
+            StoredImage stored = store.store(images[i], "http://localhost/index.html", 0);
+            Assert.assertEquals(1000 + i * 700, stored.getBytes());
+        }
+        store.close();
+
+        File[] tars = packs.listFiles();
+        int found = 0;
+        for (File tar : tars) {
+            if (!tar.getName().endsWith(".tar")) {
+                continue;
+            }
+            PackIndex index = new PackIndex(PackIndex.indexPath(tar.getAbsolutePath()));
+            for (URL image : images) {
+                long[] entry = index.find(image.toString());
+                if (entry == null) {
+                    continue;
+                }
+                found++;
+                byte[] expected = new byte[(int) entry[1]];
+                RandomAccessFile source = new RandomAccessFile(new File(image.getPath()), "r");
+                source.readFully(expected);
+                source.close();
+                byte[] actual = new byte[(int) entry[1]];
+                RandomAccessFile pack = new RandomAccessFile(tar, "r");
+                pack.seek(entry[0]);
+                pack.readFully(actual);
+                pack.close();
+                Assert.assertArrayEquals(expected, actual);
+            }
+        }
+        Assert.assertEquals(images.length, found);
+        Assert.assertTrue(tars.length > 2);
+    }
+}
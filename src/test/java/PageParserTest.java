@@ -0,0 +1,128 @@
+import com.killeent.ImageResolutionPolicy;
+import com.killeent.PageParser;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Unit tests for {@link com.killeent.PageParser}.
+ */
+public class PageParserTest {
+
+    private static final String BASE = "http://test.com/gallery/";
+
+    /**
+     * Parses html relative to BASE with the given policy and returns the image links.
+     */
+    private static List<String> images(String html, ImageResolutionPolicy policy) {
+        List<String> links = new LinkedList<String>();
+        List<String> images = new LinkedList<String>();
+        try {
+            PageParser.extractLinksAndImages(html, BASE, links, images, policy);
+        } catch (IOException e) {
+            Assert.fail("Failed to parse html");
+        }
+        return images;
+    }
+
+    /**
+     * Tests that a plain img element yields its resolved src.
+     */
+    @Test
+    public void testPlainSrc() {
+        List<String> images = images("<img src=\"a.jpg\">", ImageResolutionPolicy.largest());
+        Assert.assertEquals(1, images.size());
+        Assert.assertEquals("http://test.com/gallery/a.jpg", images.get(0));
+    }
+
+    /**
+     * Tests that the largest width descriptor in a srcset wins over src.
+     */
+    @Test
+    public void testSrcsetLargest() {
+        List<String> images = images(
+                "<img src=\"a.jpg\" srcset=\"a-320.jpg 320w, a-1280.jpg 1280w, a-640.jpg 640w\">",
+                ImageResolutionPolicy.largest());
+        Assert.assertEquals(1, images.size());
+        Assert.assertEquals("http://test.com/gallery/a-1280.jpg", images.get(0));
+    }
+
+    /**
+     * Tests picking the smallest variant above a threshold, and falling back to the
+     * largest one when nothing is big enough.
+     */
+    @Test
+    public void testSrcsetSmallestAbove() {
+        String html = "<img srcset=\"a-320.jpg 320w, a-1280.jpg 1280w, a-640.jpg 640w\">";
+        Assert.assertEquals("http://test.com/gallery/a-640.jpg",
+                images(html, ImageResolutionPolicy.smallestAbove(500)).get(0));
+        Assert.assertEquals("http://test.com/gallery/a-1280.jpg",
+                images(html, ImageResolutionPolicy.smallestAbove(5000)).get(0));
+    }
+
+    /**
+     * Tests picking the variant closest to a target width.
+     */
+    @Test
+    public void testSrcsetClosestTo() {
+        String html = "<img srcset=\"a-320.jpg 320w, a-1280.jpg 1280w, a-640.jpg 640w\">";
+        Assert.assertEquals("http://test.com/gallery/a-320.jpg",
+                images(html, ImageResolutionPolicy.closestTo(400)).get(0));
+    }
+
+    /**
+     * Tests that density descriptors are compared, and that commas inside URLs survive.
+     */
+    @Test
+    public void testSrcsetDensityWithCommaInUrl() {
+        List<String> images = images(
+                "<img srcset=\"/c/w_100,h_100/a.jpg 1x, /c/w_200,h_200/a.jpg 2x\">",
+                ImageResolutionPolicy.largest());
+        Assert.assertEquals(1, images.size());
+        Assert.assertEquals("http://test.com/c/w_200,h_200/a.jpg", images.get(0));
+    }
+
+    /**
+     * Tests that picture sources are considered alongside the img they wrap.
+     */
+    @Test
+    public void testPictureSources() {
+        List<String> images = images(
+                "<picture>"
+                        + "<source srcset=\"big.webp 2000w\" type=\"image/webp\">"
+                        + "<source srcset=\"mid.jpg 1000w\">"
+                        + "<img src=\"small.jpg\">"
+                        + "</picture>",
+                ImageResolutionPolicy.largest());
+        Assert.assertEquals(1, images.size());
+        Assert.assertEquals("http://test.com/gallery/big.webp", images.get(0));
+    }
+
+    /**
+     * Tests that lazy-load attributes replace a placeholder src.
+     */
+    @Test
+    public void testLazyLoadReplacesPlaceholder() {
+        List<String> images = images(
+                "<img src=\"spacer.gif\" data-src=\"real.jpg\">"
+                        + "<img src=\"data:image/gif;base64,R0lGODlhAQABAAAAACw=\" "
+                        + "data-lazy=\"other.jpg\">",
+                ImageResolutionPolicy.largest());
+        Assert.assertEquals(2, images.size());
+        Assert.assertEquals("http://test.com/gallery/real.jpg", images.get(0));
+        Assert.assertEquals("http://test.com/gallery/other.jpg", images.get(1));
+    }
+
+    /**
+     * Tests that an img with only an inline data URI yields nothing.
+     */
+    @Test
+    public void testDataUriIgnored() {
+        Assert.assertTrue(images("<img src=\"data:image/gif;base64,R0lGODlhAQABAAAAACw=\">",
+                ImageResolutionPolicy.largest()).isEmpty());
+    }
+
+}
@@ -0,0 +1,266 @@
+import com.killeent.CrawlDeadline;
+import com.killeent.RangeDownloader;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Unit tests for {@link com.killeent.RangeDownloader}.
+ */
+public class RangeDownloaderTest {
+
+    private static final int CHUNK = 256 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private TestServer server;
+    private URL image;
+    private RangeDownloader downloader;
+
+    // what the server serves, and how
+    private volatile byte[] content;
+    private volatile String etag;
+    private volatile boolean acceptRanges;
+    private volatile long failingChunk;         // start of a range answered with 404, or -1
+    private volatile boolean failAllFrom;       // whether ranges after failingChunk fail too
+    private volatile byte[] contentAfterFirst;  // replaces content once a range is answered
+    private final AtomicInteger rangeRequests = new AtomicInteger();
+    private final AtomicInteger fullRequests = new AtomicInteger();
+    private final AtomicInteger otherRequests = new AtomicInteger();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+
+    @Before
+    public void startServer() throws IOException {
+        content = randomBytes(5 * CHUNK - 1000, 1);
+        etag = "\"1\"";
+        acceptRanges = true;
+        failingChunk = -1;
+        server = new TestServer();
+        server.handle("/image.jpg", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange);
+            }
+        });
+        server.start();
+        image = new URL(server.getBase() + "/image.jpg");
+        downloader = new RangeDownloader(1, 2, new CrawlDeadline(0, 0, 0, 0));
+    }
+
+    @After
+    public void stopServer() {
+        downloader.shutdown();
+        server.stop();
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        int n = inFlight.incrementAndGet();
+        for (int max = maxInFlight.get(); n > max; max = maxInFlight.get()) {
+            maxInFlight.compareAndSet(max, n);
+        }
+        try {
+            serveImage(exchange);
+        } finally {
+            inFlight.decrementAndGet();
+        }
+    }
+
+    private void serveImage(HttpExchange exchange) throws IOException {
+        byte[] body = content;
+        if (acceptRanges) {
+            exchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+        }
+        exchange.getResponseHeaders().add("ETag", etag);
+        if (!exchange.getRequestMethod().equals("GET")) {
+            otherRequests.incrementAndGet();
+            exchange.sendResponseHeaders(405, -1);
+            exchange.close();
+            return;
+        }
+
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+        if (range == null || !acceptRanges || (ifRange != null && !ifRange.equals(etag))) {
+            if (range != null) {
+                rangeRequests.incrementAndGet();
+            } else {
+                fullRequests.incrementAndGet();
+            }
+            send(exchange, 200, body);
+            return;
+        }
+
+        rangeRequests.incrementAndGet();
+        String[] bounds = range.substring("bytes=".length()).split("-");
+        int start = Integer.parseInt(bounds[0]);
+        int end = Math.min(Integer.parseInt(bounds[1]), body.length - 1);
+        if (start == failingChunk || (failAllFrom && failingChunk >= 0 && start > failingChunk)) {
+            exchange.sendResponseHeaders(404, -1);
+            exchange.close();
+            return;
+        }
+        exchange.getResponseHeaders().add("Content-Range",
+                String.format("bytes %d-%d/%d", start, end, body.length));
+        if (contentAfterFirst != null) {
+            content = contentAfterFirst;
+            etag = "\"2\"";
+            contentAfterFirst = null;
+        }
+        send(exchange, 206, Arrays.copyOfRange(body, start, end + 1));
+    }
+
+    private static void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+        exchange.sendResponseHeaders(status, body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+    }
+
+    private static byte[] randomBytes(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static int rangeThreads() {
+        int threads = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("reggie-range") && thread.isAlive()) {
+                threads++;
+            }
+        }
+        return threads;
+    }
+
+    private String path() {
+        return new File(folder.getRoot(), "image.jpg").getAbsolutePath();
+    }
+
+    private void assertDownloaded(byte[] expected) throws IOException {
+        Assert.assertArrayEquals(expected, Files.readAllBytes(new File(path()).toPath()));
+        Assert.assertFalse(new File(path() + ".part").exists());
+        Assert.assertFalse(new File(path() + ".part.ranges").exists());
+    }
+
+    /**
+     * Tests that a large image is split into chunks that are fetched as range requests, the
+     * first of which also tells the downloader the size of the image, and that the chunks are
+     * fetched by no more threads than connections.
+     */
+    @Test
+    public void testDownloadsInRanges() throws IOException {
+        int threads = rangeThreads();
+        Assert.assertEquals(content.length, downloader.download(image, path()));
+        assertDownloaded(content);
+        Assert.assertEquals(5, rangeRequests.get());
+        Assert.assertEquals(0, fullRequests.get());
+        Assert.assertEquals(0, otherRequests.get());
+        Assert.assertTrue(maxInFlight.get() <= 2);
+        Assert.assertTrue(rangeThreads() - threads <= 2);
+    }
+
+    /**
+     * Tests that a failed download keeps its completed chunks, that refused ranges are not
+     * retried, and that the next attempt only fetches the missing chunks.
+     */
+    @Test
+    public void testResumesMissingChunks() throws IOException {
+        failingChunk = 2 * CHUNK;
+        failAllFrom = true;
+        try {
+            downloader.download(image, path());
+            Assert.fail("Expected the download to fail");
+        } catch (IOException e) {
+            // expected
+        }
+        Assert.assertEquals(5, rangeRequests.get());
+        Assert.assertTrue(new File(path() + ".part").exists());
+        Assert.assertTrue(new File(path() + ".part.ranges").exists());
+
+        failingChunk = -1;
+        rangeRequests.set(0);
+        Assert.assertEquals(content.length, downloader.download(image, path()));
+        assertDownloaded(content);
+        // the first chunk, which is on disk already, and the three missing ones
+        Assert.assertEquals(4, rangeRequests.get());
+    }
+
+    /**
+     * Tests that the progress of a download is thrown away once the image has a new
+     * validator, and that what is left of the old, longer part file doesn't end up in the
+     * new image.
+     */
+    @Test
+    public void testValidatorMismatchStartsOver() throws IOException {
+        failingChunk = CHUNK;
+        try {
+            downloader.download(image, path());
+            Assert.fail("Expected the download to fail");
+        } catch (IOException e) {
+            // expected
+        }
+        Assert.assertEquals(content.length, new File(path() + ".part").length());
+
+        content = randomBytes(3 * CHUNK + 1000, 2);
+        etag = "\"2\"";
+        failingChunk = -1;
+        rangeRequests.set(0);
+        Assert.assertEquals(content.length, downloader.download(image, path()));
+        assertDownloaded(content);
+        Assert.assertEquals(4, rangeRequests.get());
+    }
+
+    /**
+     * Tests that an image that changes during the download is fetched again as a whole, without
+     * retrying the range requests the server answered with the whole image.
+     */
+    @Test
+    public void testFallsBackWhenImageChanges() throws IOException {
+        byte[] changed = randomBytes(4 * CHUNK, 3);
+        contentAfterFirst = changed;
+        Assert.assertEquals(changed.length, downloader.download(image, path()));
+        assertDownloaded(changed);
+        Assert.assertEquals(5, rangeRequests.get());
+        Assert.assertEquals(1, fullRequests.get());
+    }
+
+    /**
+     * Tests that images on servers without range support, and images below the threshold,
+     * are downloaded with a single request: the one for the first chunk.
+     */
+    @Test
+    public void testSingleRequestFallback() throws IOException {
+        acceptRanges = false;
+        Assert.assertEquals(content.length, downloader.download(image, path()));
+        assertDownloaded(content);
+
+        acceptRanges = true;
+        RangeDownloader small = new RangeDownloader(content.length + 1, 2,
+                new CrawlDeadline(0, 0, 0, 0));
+        try {
+            Assert.assertEquals(content.length, small.download(image, path()));
+        } finally {
+            small.shutdown();
+        }
+        assertDownloaded(content);
+        Assert.assertEquals(2, rangeRequests.get());
+        Assert.assertEquals(0, fullRequests.get());
+        Assert.assertEquals(0, otherRequests.get());
+    }
+}
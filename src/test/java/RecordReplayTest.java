@@ -0,0 +1,180 @@
+import com.killeent.RecordingFetcher;
+import com.killeent.ReplayFetcher;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Unit tests for {@link com.killeent.RecordingFetcher} and {@link com.killeent.ReplayFetcher}.
+ */
+public class RecordReplayTest {
+
+    private static final String PAGE = "<html><body><img src=\"a.jpg\"></body></html>";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private TestServer server;
+    private String base;
+
+    @Before
+    public void startServer() throws IOException {
+        server = new TestServer();
+        server.handle("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                if (exchange.getRequestURI().getPath().equals("/page.html")) {
+                    byte[] body = PAGE.getBytes("UTF-8");
+                    exchange.getResponseHeaders().add("Content-Type", "text/html; charset=UTF-8");
+                    exchange.sendResponseHeaders(200, body.length);
+                    OutputStream out = exchange.getResponseBody();
+                    out.write(body);
+                    out.close();
+                } else if (exchange.getRequestURI().getPath().equals("/short.html")) {
+                    // the connection drops before the declared length has been sent
+                    byte[] body = PAGE.getBytes("UTF-8");
+                    exchange.sendResponseHeaders(200, body.length * 2);
+                    OutputStream out = exchange.getResponseBody();
+                    out.write(body);
+                    out.flush();
+                    exchange.close();
+                } else {
+                    exchange.sendResponseHeaders(404, -1);
+                    exchange.close();
+                }
+            }
+        });
+        server.start();
+        base = server.getBase();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop();
+    }
+
+    private static String readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[64];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+        }
+        in.close();
+        return out.toString("UTF-8");
+    }
+
+    /**
+     * Tests that a recorded crawl replays with the same statuses, headers and bodies after the
+     * server is gone, and that requests that were never recorded fail.
+     */
+    @Test
+    public void testRecordAndReplay() throws IOException {
+        String archive = folder.newFile("archive").getAbsolutePath();
+        RecordingFetcher recorder = new RecordingFetcher(archive);
+        HttpURLConnection page = (HttpURLConnection) recorder.open(new URL(base + "/page.html"));
+        Assert.assertEquals(PAGE, readAll(page.getInputStream()));
+        HttpURLConnection missing = (HttpURLConnection) recorder.open(new URL(base + "/gone"));
+        Assert.assertEquals(404, missing.getResponseCode());
+        recorder.close();
+        server.stop();
+
+        ReplayFetcher replay = new ReplayFetcher(archive, 0, 0);
+        page = (HttpURLConnection) replay.open(new URL(base + "/page.html"));
+        Assert.assertEquals(200, page.getResponseCode());
+        Assert.assertEquals("text/html; charset=UTF-8", page.getContentType());
+        Assert.assertEquals(PAGE.length(), page.getContentLength());
+        Assert.assertEquals(PAGE, readAll(page.getInputStream()));
+
+        missing = (HttpURLConnection) replay.open(new URL(base + "/gone"));
+        Assert.assertEquals(404, missing.getResponseCode());
+        try {
+            missing.getInputStream();
+            Assert.fail("Expected the recorded 404 to be replayed");
+        } catch (FileNotFoundException e) {
+            // expected
+        }
+
+        try {
+            replay.open(new URL(base + "/never.html")).getInputStream();
+            Assert.fail("Expected a request that was never recorded to fail");
+        } catch (IOException e) {
+            // expected
+        }
+        replay.close();
+    }
+
+    /**
+     * Tests that replayed responses are delayed by the simulated latency.
+     */
+    @Test
+    public void testSimulatedLatency() throws IOException {
+        String archive = folder.newFile("archive").getAbsolutePath();
+        RecordingFetcher recorder = new RecordingFetcher(archive);
+        readAll(recorder.open(new URL(base + "/page.html")).getInputStream());
+        recorder.close();
+
+        ReplayFetcher replay = new ReplayFetcher(archive, 200, 0);
+        long start = System.nanoTime();
+        Assert.assertEquals(PAGE,
+                readAll(replay.open(new URL(base + "/page.html")).getInputStream()));
+        Assert.assertTrue((System.nanoTime() - start) / 1000000 >= 200);
+        replay.close();
+    }
+
+    /**
+     * Tests that bodies that weren't read to the end, whether the crawl stopped reading or the
+     * server cut them off, replay the bytes that were read and then fail, instead of passing
+     * for complete responses.
+     */
+    @Test
+    public void testTruncatedBodies() throws IOException {
+        String archive = folder.newFile("archive").getAbsolutePath();
+        RecordingFetcher recorder = new RecordingFetcher(archive);
+        InputStream in = recorder.open(new URL(base + "/page.html")).getInputStream();
+        byte[] head = new byte[10];
+        Assert.assertEquals(10, in.read(head));
+        in.close();
+        try {
+            readAll(recorder.open(new URL(base + "/short.html")).getInputStream());
+        } catch (IOException e) {
+            // whether the short body fails or just ends early is up to HttpURLConnection
+        }
+        recorder.close();
+
+        ReplayFetcher replay = new ReplayFetcher(archive, 0, 0);
+        for (String path : new String[] {"/page.html", "/short.html"}) {
+            HttpURLConnection connection =
+                    (HttpURLConnection) replay.open(new URL(base + path));
+            Assert.assertEquals(200, connection.getResponseCode());
+            in = connection.getInputStream();
+            ByteArrayOutputStream read = new ByteArrayOutputStream();
+            try {
+                int b;
+                while ((b = in.read()) != -1) {
+                    read.write(b);
+                }
+                Assert.fail("Expected the truncated body of " + path + " to fail");
+            } catch (EOFException e) {
+                // expected
+            }
+            Assert.assertTrue(PAGE.startsWith(read.toString("UTF-8")));
+            Assert.assertTrue(read.size() > 0);
+        }
+        replay.close();
+    }
+}
@@ -0,0 +1,179 @@
+import com.killeent.CrawlStats;
+import com.killeent.HostCircuitBreaker;
+import com.killeent.LiveFetcher;
+import com.killeent.ResilientFetcher;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Unit tests for {@link com.killeent.ResilientFetcher} and
+ * {@link com.killeent.HostCircuitBreaker}.
+ */
+public class ResilientFetcherTest {
+
+    private TestServer server;
+    private String base;
+    private final AtomicInteger requests = new AtomicInteger();
+
+    @Before
+    public void startServer() throws IOException {
+        server = new TestServer();
+        server.handle("/busy", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                // overloaded for the first two requests
+                if (requests.incrementAndGet() <= 2) {
+                    exchange.getResponseHeaders().add("Retry-After", "0");
+                    exchange.sendResponseHeaders(503, -1);
+                    exchange.close();
+                    return;
+                }
+                byte[] body = "ok".getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        server.handle("/broken", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                requests.incrementAndGet();
+                exchange.sendResponseHeaders(500, -1);
+                exchange.close();
+            }
+        });
+        server.handle("/hang", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                requests.incrementAndGet();
+                try {
+                    Thread.sleep(10 * 1000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                exchange.sendResponseHeaders(500, -1);
+                exchange.close();
+            }
+        });
+        server.handle("/ok", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                requests.incrementAndGet();
+                exchange.sendResponseHeaders(200, -1);
+                exchange.close();
+            }
+        });
+        // hanging requests mustn't hold up the others
+        server.start();
+        base = server.getBase();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop();
+    }
+
+    /**
+     * Tests that 503 responses are retried until the server recovers.
+     */
+    @Test
+    public void testRetriesOverloadedServer() throws IOException {
+        CrawlStats stats = new CrawlStats();
+        ResilientFetcher fetcher = new ResilientFetcher(new LiveFetcher(), 3, 1, 1000,
+                new HostCircuitBreaker(5, 1000), stats);
+        HttpURLConnection connection = (HttpURLConnection) fetcher.open(new URL(base + "/busy"));
+        Assert.assertEquals(200, connection.getResponseCode());
+        Assert.assertEquals(3, requests.get());
+        Assert.assertEquals(2, stats.getRequestsRetried());
+    }
+
+    /**
+     * Tests that requests to a host stop reaching it once it has failed often enough, and
+     * that the host gets another chance after the cool-down.
+     */
+    @Test
+    public void testCircuitBreaker() throws IOException, InterruptedException {
+        CrawlStats stats = new CrawlStats();
+        ResilientFetcher fetcher = new ResilientFetcher(new LiveFetcher(), 0, 1, 1000,
+                new HostCircuitBreaker(3, 200), stats);
+        for (int i = 0; i < 3; i++) {
+            HttpURLConnection connection =
+                    (HttpURLConnection) fetcher.open(new URL(base + "/broken"));
+            Assert.assertEquals(500, connection.getResponseCode());
+        }
+        try {
+            ((HttpURLConnection) fetcher.open(new URL(base + "/broken"))).getResponseCode();
+            Assert.fail("Expected the circuit to be open");
+        } catch (IOException e) {
+            // expected
+        }
+        Assert.assertEquals(3, requests.get());
+        Assert.assertEquals(1, stats.getRequestsShed());
+
+        // the trial request after the cool-down fails, so the circuit opens again at once
+        Thread.sleep(250);
+        HttpURLConnection trial = (HttpURLConnection) fetcher.open(new URL(base + "/broken"));
+        Assert.assertEquals(500, trial.getResponseCode());
+        Assert.assertEquals(4, requests.get());
+        try {
+            ((HttpURLConnection) fetcher.open(new URL(base + "/broken"))).getResponseCode();
+            Assert.fail("Expected the circuit to be open again");
+        } catch (IOException e) {
+            // expected
+        }
+        Assert.assertEquals(4, requests.get());
+    }
+
+    /**
+     * Tests that a trial request that is disconnected before it gets an answer doesn't keep
+     * the host's circuit half open for good: the next request after it is let through.
+     */
+    @Test
+    public void testAbortedTrial() throws IOException, InterruptedException {
+        CrawlStats stats = new CrawlStats();
+        ResilientFetcher fetcher = new ResilientFetcher(new LiveFetcher(), 0, 1, 1000,
+                new HostCircuitBreaker(1, 200), stats);
+        Assert.assertEquals(500,
+                ((HttpURLConnection) fetcher.open(new URL(base + "/broken"))).getResponseCode());
+
+        Thread.sleep(250);
+        final HttpURLConnection trial = (HttpURLConnection) fetcher.open(new URL(base + "/hang"));
+        Thread abort = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                trial.disconnect();
+            }
+        });
+        abort.start();
+        try {
+            trial.getResponseCode();
+            Assert.fail("Expected the trial to be aborted");
+        } catch (IOException e) {
+            // expected
+        }
+        abort.join();
+        Assert.assertEquals(2, requests.get());
+
+        // the circuit is still open, but its cool-down is over, so the next request is the trial
+        HttpURLConnection next = (HttpURLConnection) fetcher.open(new URL(base + "/ok"));
+        Assert.assertEquals(200, next.getResponseCode());
+        Assert.assertEquals(3, requests.get());
+        Assert.assertEquals(0, stats.getRequestsShed());
+    }
+}
@@ -0,0 +1,52 @@
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A local HTTP server for tests, on a free port of 127.0.0.1. Each request is handled on a
+ * thread of its own, so that a slow handler doesn't hold up the others.
+ */
+class TestServer {
+
+    private final HttpServer server;
+    private final ExecutorService handlers;
+
+    TestServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        handlers = Executors.newCachedThreadPool();
+        server.setExecutor(handlers);
+    }
+
+    /**
+     * Serves the requests under path with handler.
+     */
+    void handle(String path, HttpHandler handler) {
+        server.createContext(path, handler);
+    }
+
+    /**
+     * Starts accepting requests.
+     */
+    void start() {
+        server.start();
+    }
+
+    /**
+     * @return the URL of the server, without a trailing slash.
+     */
+    String getBase() {
+        return String.format("http://127.0.0.1:%d", server.getAddress().getPort());
+    }
+
+    /**
+     * Stops the server, aborting any requests still being handled.
+     */
+    void stop() {
+        server.stop(0);
+        handlers.shutdownNow();
+    }
+}
@@ -0,0 +1,100 @@
+import com.killeent.CrawlStats;
+import com.killeent.TrapDetector;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Unit tests for {@link com.killeent.TrapDetector}.
+ */
+public class TrapDetectorTest {
+
+    private static final String TEMPLATE = "Welcome to the community events calendar. Here you "
+            + "can find every concert, market, lecture and meeting held in the town hall and "
+            + "the surrounding parks. Events are added by the organizers themselves, so check "
+            + "back often. To submit an event, contact the front desk or use the form on the "
+            + "about page. Showing events for %s. There are no events scheduled for this day.";
+
+    /**
+     * @return the fingerprint of a calendar page for the given day.
+     */
+    private static long calendarPage(int year, int month, int day) {
+        String date = String.format("%d-%02d-%02d", year, month, day);
+        List<String> links = Arrays.asList(
+                String.format("http://a.com/calendar/%d/%d/%d", year, month, day - 1),
+                String.format("http://a.com/calendar/%d/%d/%d", year, month, day + 1),
+                String.format("http://a.com/calendar/%d/%d/%d", year, month + 1, day),
+                "http://a.com/about.html",
+                "http://a.com/index.html");
+        List<String> images = Arrays.asList("http://a.com/logo.png");
+        return TrapDetector.fingerprint(String.format(TEMPLATE, date), links, images);
+    }
+
+    /**
+     * Tests that pages that only differ in a date are near-duplicates, and that a different
+     * page is not.
+     */
+    @Test
+    public void testNearDuplicates() throws MalformedURLException {
+        CrawlStats stats = new CrawlStats();
+        TrapDetector detector = new TrapDetector(5, stats);
+        Assert.assertFalse(detector.isNearDuplicate(
+                new URL("http://a.com/calendar/2014/5/1"), calendarPage(2014, 5, 1)));
+        Assert.assertTrue(detector.isNearDuplicate(
+                new URL("http://a.com/calendar/2014/5/2"), calendarPage(2014, 5, 2)));
+
+        long gallery = TrapDetector.fingerprint("Photos from the spring market in the town "
+                        + "square, taken by our volunteers over the weekend of the festival.",
+                Arrays.asList("http://a.com/gallery/2.html", "http://a.com/index.html"),
+                Arrays.asList("http://a.com/img/1.jpg", "http://a.com/img/2.jpg",
+                        "http://a.com/img/3.jpg"));
+        Assert.assertFalse(detector.isNearDuplicate(new URL("http://a.com/gallery/1.html"),
+                gallery));
+        Assert.assertEquals(1, stats.getNearDuplicates());
+    }
+
+    /**
+     * Tests that a URL pattern is flagged as a trap once it has produced threshold
+     * near-duplicates and listed in the summary, and that only links matching it are skipped
+     * from then on.
+     */
+    @Test
+    public void testFlagsTraps() throws MalformedURLException {
+        CrawlStats stats = new CrawlStats();
+        TrapDetector detector = new TrapDetector(3, stats);
+        for (int day = 1; day <= 3; day++) {
+            detector.isNearDuplicate(new URL(String.format("http://a.com/calendar/2014/5/%d",
+                    day)), calendarPage(2014, 5, day));
+            Assert.assertFalse(detector.isTrap(new URL("http://a.com/calendar/2015/1/1")));
+        }
+        detector.isNearDuplicate(new URL("http://a.com/calendar/2014/5/4;jsessionid=x1"),
+                calendarPage(2014, 5, 4));
+
+        Assert.assertTrue(detector.isTrap(new URL("http://a.com/calendar/2015/1/1")));
+        Assert.assertTrue(detector.isTrap(new URL("http://a.com/calendar/1999/12/31#top")));
+        Assert.assertFalse(detector.isTrap(new URL("http://a.com/calendar/2015/1")));
+        Assert.assertFalse(detector.isTrap(new URL("http://a.com/gallery/1.html")));
+        Assert.assertEquals(1, stats.getTrapsFlagged());
+        Assert.assertEquals(Arrays.asList("http://a.com/calendar/N/N/N"), stats.getFlaggedTraps());
+        Assert.assertTrue(stats.summary(),
+                stats.summary().contains("in 1 crawler traps (http://a.com/calendar/N/N/N)"));
+        Assert.assertEquals(2, stats.getTrapLinksSkipped());
+    }
+
+    /**
+     * Tests that pages too small to tell apart are never reported as near-duplicates.
+     */
+    @Test
+    public void testSmallPagesAreNotFingerprinted() throws MalformedURLException {
+        TrapDetector detector = new TrapDetector(1, new CrawlStats());
+        long empty = TrapDetector.fingerprint("Hello",
+                Arrays.asList("http://a.com/next.html"), Arrays.<String>asList());
+        Assert.assertEquals(0, empty);
+        Assert.assertFalse(detector.isNearDuplicate(new URL("http://a.com/1.html"), empty));
+        Assert.assertFalse(detector.isNearDuplicate(new URL("http://a.com/2.html"), empty));
+    }
+}
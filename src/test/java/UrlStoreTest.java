@@ -0,0 +1,61 @@
+import com.killeent.UrlStore;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for {@link com.killeent.UrlStore}.
+ */
+public class UrlStoreTest {
+
+    /**
+     * Tests that every URL added to the store comes back unchanged from its ID, across hosts,
+     * front coding restarts and URLs that do not fit in a chunk.
+     */
+    @Test
+    public void testRoundTrip() {
+        UrlStore store = new UrlStore();
+        List<String> urls = new ArrayList<String>();
+        for (int i = 0; i < 5000; i++) {
+            urls.add(String.format("http://host%d.com/gallery/%d/photo-%d.html?page=%d",
+                    i % 7, i / 50, i, i % 3));
+        }
+        urls.add("https://example.com");
+        urls.add("https://example.com/caf\u00e9/\u00fcber.html");
+        urls.add("mailto:someone@example.com");
+        StringBuilder longURL = new StringBuilder("http://example.com/");
+        while (longURL.length() < (1 << 21)) {
+            longURL.append("abcdefghij");
+        }
+        urls.add(longURL.toString());
+
+        for (int i = 0; i < urls.size(); i++) {
+            Assert.assertEquals(i, store.add(urls.get(i)));
+        }
+        Assert.assertEquals(urls.size(), store.size());
+        Assert.assertEquals(10, store.hostCount());
+        for (int i = 0; i < urls.size(); i++) {
+            Assert.assertEquals(urls.get(i), store.get(i));
+        }
+    }
+
+    /**
+     * Tests that a URL is only added once, and that clearing the store forgets it.
+     */
+    @Test
+    public void testDedupe() {
+        UrlStore store = new UrlStore();
+        Assert.assertEquals(0, store.add("http://a.com/x.html"));
+        Assert.assertEquals(1, store.add("http://a.com/y.html"));
+        Assert.assertEquals(-1, store.add("http://a.com/x.html"));
+        Assert.assertTrue(store.contains("http://a.com/y.html"));
+        Assert.assertFalse(store.contains("http://a.com/z.html"));
+        Assert.assertEquals(2, store.size());
+
+        store.clear();
+        Assert.assertFalse(store.contains("http://a.com/x.html"));
+        Assert.assertEquals(0, store.add("http://a.com/x.html"));
+    }
+}